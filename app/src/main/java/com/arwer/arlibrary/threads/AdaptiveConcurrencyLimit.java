@@ -0,0 +1,138 @@
+package com.arwer.arlibrary.threads;
+
+/**
+ * @file AdaptiveConcurrencyLimit.java
+ * @brief 自适应并发上限，根据任务执行延迟在运行时自动调整TaskQueue的有效并发数。
+ * @details 算法为AIMD（加性增、乘性减）结合延迟梯度：
+ *      1、记录窗口内观测到的最小延迟，近似为“无排队”时的延迟；
+ *      2、任务失败、或延迟超过最小延迟的tolerance倍时，认为上游拥塞，上限乘以backoffRatio；
+ *      3、否则当在途任务数接近上限时，上限每轮（约limit个成功任务）加1；
+ *      4、上限始终限制在[minLimit, maxLimit]之间；
+ *      5、每probeInterval个样本重置一次最小延迟，以便跟踪上游响应速度的漂移。
+ *
+ *      用法：taskQueue.setAdaptiveConcurrencyLimit(new AdaptiveConcurrencyLimit(2, 32));
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 并发上限的下限和上限
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    // 当前并发上限（用double累加，对外取整）
+    private double mLimit;
+    // 延迟超过最小延迟多少倍视为拥塞
+    private double mTolerance = 2.0;
+    // 拥塞时的乘性减小比例
+    private double mBackoffRatio = 0.9;
+    // 每多少个样本重置一次最小延迟
+    private int mProbeInterval = 500;
+
+    // 当前窗口内观测到的最小延迟（纳秒）
+    private long mMinLatencyNanos = Long.MAX_VALUE;
+    // 当前窗口内的样本数
+    private int mSampleCount = 0;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param minLimit 并发上限的下限，最小为1
+     * @param maxLimit 并发上限的上限，不能小于minLimit
+     */
+    public AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("require 1 <= minLimit <= maxLimit, minLimit=" + minLimit + ", maxLimit=" + maxLimit);
+        }
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = minLimit;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到当前的并发上限
+     * @return 当前并发上限，范围[minLimit, maxLimit]
+     */
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    public int getMinLimit() {
+        return mMinLimit;
+    }
+
+    public int getMaxLimit() {
+        return mMaxLimit;
+    }
+
+    /**
+     * 设置拥塞判定的延迟倍数，默认2.0
+     * @param tolerance 必须大于1
+     */
+    public synchronized void setTolerance(double tolerance) {
+        if (tolerance <= 1.0) throw new IllegalArgumentException("tolerance must be > 1.0");
+        mTolerance = tolerance;
+    }
+
+    /**
+     * 设置拥塞时的乘性减小比例，默认0.9
+     * @param backoffRatio 范围(0, 1)
+     */
+    public synchronized void setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0.0 || backoffRatio >= 1.0) throw new IllegalArgumentException("backoffRatio must be in (0, 1)");
+        mBackoffRatio = backoffRatio;
+    }
+
+    /**
+     * 设置最小延迟的重置间隔（样本数），默认500
+     * @param probeInterval 必须大于0
+     */
+    public synchronized void setProbeInterval(int probeInterval) {
+        if (probeInterval < 1) throw new IllegalArgumentException("probeInterval must be > 0");
+        mProbeInterval = probeInterval;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 记录一个任务的执行样本，并调整并发上限
+     * @param latencyNanos 任务执行耗时（纳秒）
+     * @param inFlight 样本产生时在途（执行中）的任务数，包括本任务
+     * @param failed 任务是否执行失败
+     */
+    public synchronized void onSample(long latencyNanos, int inFlight, boolean failed) {
+        if (++mSampleCount > mProbeInterval) {
+            // 重新探测无排队时的延迟
+            mSampleCount = 1;
+            mMinLatencyNanos = Long.MAX_VALUE;
+        }
+        if (latencyNanos > 0 && latencyNanos < mMinLatencyNanos) {
+            mMinLatencyNanos = latencyNanos;
+        }
+
+        if (failed || latencyNanos > mMinLatencyNanos * mTolerance) {
+            // 拥塞：乘性减
+            mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+        }
+        else if (inFlight * 2 >= (int) mLimit) {
+            // 未拥塞且上限被实际用到：加性增，约每轮加1
+            mLimit = Math.min(mMaxLimit, mLimit + 1.0 / mLimit);
+        }
+    }
+
+}
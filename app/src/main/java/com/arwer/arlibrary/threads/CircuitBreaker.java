@@ -0,0 +1,279 @@
+package com.arwer.arlibrary.threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @file CircuitBreaker.java
+ * @brief 熔断器：统计一组任务最近的失败率和慢调用率，超过阈值时熔断，熔断期间该组任务不再执行、直接失败。
+ * @details 状态转换：
+ *      1、CLOSED（闭合）：正常执行，在最近windowSize次调用的滑动窗口内统计失败率和慢调用率，
+ *         调用次数达到minimumCalls且任一比率超过阈值时转为OPEN；
+ *      2、OPEN（断开）：任务直接以OpenException失败，不占用线程执行；经过openDuration后转为HALF_OPEN；
+ *      3、HALF_OPEN（半开）：只放行halfOpenCalls个试探调用，全部完成后比率未超过阈值则转为CLOSED，否则重新OPEN。
+ *
+ *      每个许可记录发放时的状态代数（每次状态转换加1），只统计当前代发放的许可的结果：
+ *      闭合时放行、半开后才完成的调用不算试探调用，不会提前闭合或重新断开熔断器。
+ *
+ *      用法：taskQueue.setCircuitBreaker("api.example.com", new CircuitBreaker());
+ *           taskQueue.addToGroup("api.example.com", "task1", callable);
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class CircuitBreaker {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义枚举、异常
+    ////////////////////////////////////////////////////////////////
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * 熔断期间任务直接失败时的异常（作为ExecutionException的cause出现在任务结果中）
+     */
+    public static class OpenException extends Exception {
+        public OpenException(String group) {
+            super("circuit breaker is open, group=" + group);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 滑动窗口中每次调用的结果
+    private static final byte OUTCOME_SUCCESS = 0;
+    private static final byte OUTCOME_FAILED = 1;
+    private static final byte OUTCOME_SLOW = 2;
+
+    // 滑动窗口大小（最近多少次调用）
+    private int mWindowSize = 20;
+    // 开始计算比率所需的最少调用次数
+    private int mMinimumCalls = 10;
+    // 失败率阈值
+    private double mFailureRateThreshold = 0.5;
+    // 慢调用的耗时阈值（纳秒）
+    private long mSlowCallDurationNanos = TimeUnit.SECONDS.toNanos(10);
+    // 慢调用率阈值
+    private double mSlowCallRateThreshold = 1.0;
+    // 断开状态的持续时间（纳秒）
+    private long mOpenDurationNanos = TimeUnit.SECONDS.toNanos(30);
+    // 半开状态放行的试探调用数
+    private int mHalfOpenCalls = 3;
+
+    private State mState = State.CLOSED;
+    // 滑动窗口
+    private byte[] mWindow = new byte[mWindowSize];
+    private int mWindowIndex = 0;
+    private int mCallCount = 0;
+    private int mFailureCount = 0;
+    private int mSlowCount = 0;
+    // 断开状态结束的时间（纳秒）
+    private long mOpenUntilNanos = 0;
+    // 半开状态已放行、已完成的试探调用数
+    private int mHalfOpenPermitted = 0;
+    private int mHalfOpenCompleted = 0;
+    // 状态代数，每次状态转换加1
+    private long mGeneration = 0;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到当前状态
+     * @return 状态；断开时间已过但还没有新调用时依然返回OPEN
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * 得到滑动窗口内的失败率
+     * @return 失败率，没有调用时为0
+     */
+    public synchronized double getFailureRate() {
+        return mCallCount == 0 ? 0 : (double) mFailureCount / mCallCount;
+    }
+
+    /**
+     * 得到滑动窗口内的慢调用率
+     * @return 慢调用率，没有调用时为0
+     */
+    public synchronized double getSlowCallRate() {
+        return mCallCount == 0 ? 0 : (double) mSlowCount / mCallCount;
+    }
+
+    /**
+     * 设置滑动窗口大小和计算比率所需的最少调用次数，默认20和10。会清空已统计的结果
+     */
+    public synchronized void setWindow(int windowSize, int minimumCalls) {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("require 1 <= minimumCalls <= windowSize");
+        }
+        mWindowSize = windowSize;
+        mMinimumCalls = minimumCalls;
+        resetWindow();
+    }
+
+    /**
+     * 设置失败率阈值，默认0.5
+     * @param threshold 范围(0, 1]
+     */
+    public synchronized void setFailureRateThreshold(double threshold) {
+        if (threshold <= 0 || threshold > 1) throw new IllegalArgumentException("threshold must be in (0, 1]");
+        mFailureRateThreshold = threshold;
+    }
+
+    /**
+     * 设置慢调用的判定，默认耗时超过10秒为慢调用，慢调用率阈值1.0（即全部为慢调用时熔断）
+     * @param duration 耗时阈值
+     * @param unit 时间单位
+     * @param rateThreshold 慢调用率阈值，范围(0, 1]
+     */
+    public synchronized void setSlowCall(long duration, TimeUnit unit, double rateThreshold) {
+        if (rateThreshold <= 0 || rateThreshold > 1) throw new IllegalArgumentException("rateThreshold must be in (0, 1]");
+        mSlowCallDurationNanos = unit.toNanos(duration);
+        mSlowCallRateThreshold = rateThreshold;
+    }
+
+    /**
+     * 设置断开状态的持续时间，默认30秒
+     */
+    public synchronized void setOpenDuration(long duration, TimeUnit unit) {
+        mOpenDurationNanos = unit.toNanos(duration);
+    }
+
+    /**
+     * 设置半开状态放行的试探调用数，默认3
+     */
+    public synchronized void setHalfOpenCalls(int calls) {
+        if (calls < 1) throw new IllegalArgumentException("calls must be > 0");
+        mHalfOpenCalls = calls;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 任务执行前申请执行许可
+     * @return 许可（不小于0），执行结束后必须以它调用onResult(permit, ...)或onIgnored(permit)；-1=熔断中，任务应直接失败
+     */
+    public synchronized long acquirePermission() {
+        if (mState == State.OPEN) {
+            if (System.nanoTime() - mOpenUntilNanos < 0) return -1;
+            transitionTo(State.HALF_OPEN);
+        }
+        if (mState == State.HALF_OPEN) {
+            if (mHalfOpenPermitted >= mHalfOpenCalls) return -1;
+            ++mHalfOpenPermitted;
+        }
+        return mGeneration;
+    }
+
+    /**
+     * 记录一次已许可调用的结果。许可不是当前状态发放的（调用期间状态已转换）时忽略
+     * @param permit acquirePermission()返回的许可
+     * @param durationNanos 调用耗时（纳秒）
+     * @param failed 是否失败
+     */
+    public synchronized void onResult(long permit, long durationNanos, boolean failed) {
+        if (permit != mGeneration) return;
+        onResult(durationNanos, failed);
+    }
+
+    /**
+     * 已许可的调用没有结果（如被取消），归还半开状态的试探名额。许可不是当前状态发放的时忽略
+     * @param permit acquirePermission()返回的许可
+     */
+    public synchronized void onIgnored(long permit) {
+        if (permit != mGeneration) return;
+        onIgnored();
+    }
+
+    /**
+     * 任务执行前申请执行许可，不区分许可发放时的状态，见acquirePermission()
+     * @return true=可以执行，执行结束后必须调用onResult()或onIgnored()；false=熔断中，任务应直接失败
+     */
+    public boolean tryAcquirePermission() {
+        return acquirePermission() >= 0;
+    }
+
+    /**
+     * 记录一次已许可调用的结果，计入当前状态。调用期间状态可能转换时使用onResult(permit, ...)
+     * @param durationNanos 调用耗时（纳秒）
+     * @param failed 是否失败
+     */
+    public synchronized void onResult(long durationNanos, boolean failed) {
+        byte outcome = OUTCOME_SUCCESS;
+        if (failed) outcome |= OUTCOME_FAILED;
+        if (durationNanos >= mSlowCallDurationNanos) outcome |= OUTCOME_SLOW;
+        record(outcome);
+
+        if (mState == State.CLOSED) {
+            if (mCallCount >= mMinimumCalls && isOverThreshold()) transitionTo(State.OPEN);
+        }
+        else if (mState == State.HALF_OPEN) {
+            if (++mHalfOpenCompleted >= mHalfOpenCalls) {
+                transitionTo(isOverThreshold() ? State.OPEN : State.CLOSED);
+            }
+        }
+    }
+
+    /**
+     * 已许可的调用没有结果（如被取消），归还半开状态的试探名额
+     */
+    public synchronized void onIgnored() {
+        if (mState == State.HALF_OPEN && mHalfOpenPermitted > 0) {
+            --mHalfOpenPermitted;
+        }
+    }
+
+    private boolean isOverThreshold() {
+        return getFailureRate() >= mFailureRateThreshold || getSlowCallRate() >= mSlowCallRateThreshold;
+    }
+
+    private void record(byte outcome) {
+        if (mCallCount == mWindowSize) {
+            // 窗口已满，移出最早的结果
+            byte oldest = mWindow[mWindowIndex];
+            if ((oldest & OUTCOME_FAILED) != 0) --mFailureCount;
+            if ((oldest & OUTCOME_SLOW) != 0) --mSlowCount;
+        }
+        else {
+            ++mCallCount;
+        }
+        mWindow[mWindowIndex] = outcome;
+        mWindowIndex = (mWindowIndex + 1) % mWindowSize;
+        if ((outcome & OUTCOME_FAILED) != 0) ++mFailureCount;
+        if ((outcome & OUTCOME_SLOW) != 0) ++mSlowCount;
+    }
+
+    private void resetWindow() {
+        if (mWindow.length != mWindowSize) mWindow = new byte[mWindowSize];
+        mWindowIndex = 0;
+        mCallCount = 0;
+        mFailureCount = 0;
+        mSlowCount = 0;
+    }
+
+    private void transitionTo(State state) {
+        mState = state;
+        ++mGeneration;
+        // 每次状态转换后重新统计，半开状态只看试探调用的结果
+        resetWindow();
+        mHalfOpenPermitted = 0;
+        mHalfOpenCompleted = 0;
+        if (state == State.OPEN) {
+            mOpenUntilNanos = System.nanoTime() + mOpenDurationNanos;
+        }
+    }
+
+}
@@ -0,0 +1,287 @@
+package com.arwer.arlibrary.threads;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @file ElasticPoolSize.java
+ * @brief 弹性线程池大小：按排队等待时间扩容，按空闲时间缩容，内存紧张时收缩到最小值，用作TaskQueue的并发上限和线程回收策略。
+ * @details 1、等待派发的任务排队超过growWait时，大小加1，直到maxSize；每growWait最多扩容一次，让新线程先消化积压；
+ *      2、每个keepAlive周期结束时，大小缩到这个周期内实际同时执行的最大任务数（不小于minSize）；
+ *         线程池中空闲超过keepAlive的线程被回收（一个线程约占1M内存）；
+ *      3、内存紧张时（Android的onTrimMemory，或开启堆检查后Java堆占用持续超过heapThreshold）大小立即缩到minSize，
+ *         之后一个keepAlive周期内不扩容，空闲线程立即回收；
+ *         堆检查默认关闭，开启后由TaskQueue的定时器每HEAP_CHECK_INTERVAL_MILLIS检查一次，不在派发任务时检查；
+ *         已用内存包含未回收的垃圾，连续HEAP_CHECK_SAMPLES次超过阈值（期间经过GC仍未降下来）才收缩；
+ *      4、大小变化时回调IResizeListener，便于监控。
+ *
+ *      用法：ElasticPoolSize poolSize = new ElasticPoolSize(2, 16);
+ *           taskQueue.setElasticPoolSize(poolSize);
+ *           // Application/Activity中：
+ *           public void onTrimMemory(int level) { taskQueue.onTrimMemory(level); }
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class ElasticPoolSize {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义枚举、接口
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 大小变化的原因
+     */
+    public enum Reason {
+        /** 任务排队时间过长，扩容 */
+        GROW,
+        /** 空闲，缩容 */
+        IDLE,
+        /** 收到onTrimMemory */
+        TRIM_MEMORY,
+        /** Java堆占用超过阈值 */
+        HEAP
+    }
+
+    public interface IResizeListener {
+        /**
+         * 大小变化的回调，在触发变化的线程上同步执行（持有队列内部的锁），不要阻塞，也不要调用队列的方法
+         * @param oldSize 原大小
+         * @param newSize 新大小
+         * @param reason 原因
+         */
+        void onResize(int oldSize, int newSize, Reason reason);
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 两次检查堆占用的间隔（毫秒）
+    public static final long HEAP_CHECK_INTERVAL_MILLIS = 1000;
+    // 连续超过阈值多少次才收缩
+    public static final int HEAP_CHECK_SAMPLES = 3;
+    private static final long HEAP_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(HEAP_CHECK_INTERVAL_MILLIS);
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    // 当前大小
+    private int mSize;
+    // 空闲线程的存活时间，也是缩容的周期（纳秒）
+    private long mKeepAliveNanos = TimeUnit.SECONDS.toNanos(30);
+    // 排队超过这个时间即扩容（纳秒）
+    private long mGrowWaitNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    // 堆占用比例阈值，0表示不检查
+    private double mHeapThreshold = 0;
+    private IResizeListener mResizeListener = null;
+
+    // 当前缩容周期的开始时间和周期内同时执行的最大任务数
+    private long mWindowStartNanos;
+    private int mWindowPeak = 0;
+    // 上次扩容的时间
+    private long mLastGrowNanos;
+    // 内存紧张，到这个时间为止不扩容、立即回收空闲线程
+    private boolean mLowMemory = false;
+    private long mLowMemoryUntilNanos = 0;
+    private long mLastHeapCheckNanos;
+    // 连续超过阈值的次数
+    private int mHeapOverCount = 0;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param minSize 最小大小，最小为1
+     * @param maxSize 最大大小，不能小于minSize
+     */
+    public ElasticPoolSize(int minSize, int maxSize) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("require 1 <= minSize <= maxSize, minSize=" + minSize + ", maxSize=" + maxSize);
+        }
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mSize = minSize;
+        mWindowStartNanos = System.nanoTime();
+        mLastGrowNanos = mWindowStartNanos - mGrowWaitNanos;
+        mLastHeapCheckNanos = mWindowStartNanos - HEAP_CHECK_INTERVAL_NANOS;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到当前大小
+     * @return 范围[minSize, maxSize]
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public int getMinSize() {
+        return mMinSize;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * 设置空闲线程的存活时间，也是缩容的周期，默认30秒。需在start()前设置
+     * @param time 时间，必须大于0
+     * @param unit 时间单位
+     */
+    public synchronized void setKeepAlive(long time, TimeUnit unit) {
+        if (time < 1) throw new IllegalArgumentException("time must be > 0");
+        mKeepAliveNanos = unit.toNanos(time);
+    }
+
+    public synchronized long getKeepAliveNanos() {
+        return mKeepAliveNanos;
+    }
+
+    /**
+     * 设置触发扩容的排队时间，默认50毫秒
+     * @param time 时间
+     * @param unit 时间单位
+     */
+    public synchronized void setGrowWait(long time, TimeUnit unit) {
+        if (time < 0) throw new IllegalArgumentException("time must be >= 0");
+        mGrowWaitNanos = unit.toNanos(time);
+    }
+
+    public synchronized long getGrowWaitNanos() {
+        return mGrowWaitNanos;
+    }
+
+    /**
+     * 设置Java堆占用比例的阈值（已用/最大），连续HEAP_CHECK_SAMPLES次检查都超过时收缩到最小值。
+     * 默认0（不检查）：Android上应以onTrimMemory为准，堆检查只作为没有内存警告时的补充，如0.9
+     * @param ratio 范围(0, 1]，0表示不检查
+     */
+    public synchronized void setHeapThreshold(double ratio) {
+        if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("ratio must be in [0, 1]");
+        mHeapThreshold = ratio;
+        mHeapOverCount = 0;
+    }
+
+    public synchronized double getHeapThreshold() {
+        return mHeapThreshold;
+    }
+
+    public synchronized void setResizeListener(IResizeListener listener) {
+        mResizeListener = listener;
+    }
+
+    /**
+     * 是否处于内存紧张状态（不扩容、立即回收空闲线程）
+     * @param nowNanos 当前时间（System.nanoTime）
+     * @return true=内存紧张
+     */
+    public synchronized boolean isLowMemory(long nowNanos) {
+        if (mLowMemory && nowNanos - mLowMemoryUntilNanos >= 0) mLowMemory = false;
+        return mLowMemory;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 有任务在排队：排队时间超过growWait且内存不紧张时扩容
+     * @param waitNanos 排队最久的任务已等待的时间（纳秒）
+     * @param nowNanos 当前时间（System.nanoTime）
+     * @return true=已扩容
+     */
+    public synchronized boolean onQueueWait(long waitNanos, long nowNanos) {
+        if (waitNanos < mGrowWaitNanos || mSize >= mMaxSize) return false;
+        if (nowNanos - mLastGrowNanos < mGrowWaitNanos) return false;
+        if (isLowMemory(nowNanos)) return false;
+        mLastGrowNanos = nowNanos;
+        resize(mSize + 1, Reason.GROW);
+        // 刚扩容的名额算作已用到，避免本周期结束时立即缩回
+        mWindowPeak = Math.max(mWindowPeak, mSize);
+        return true;
+    }
+
+    /**
+     * 任务开始或结束：记录同时执行的任务数，周期结束时按空闲缩容
+     * @param running 当前执行中的任务数
+     * @param nowNanos 当前时间（System.nanoTime）
+     */
+    public synchronized void onActivity(int running, long nowNanos) {
+        mWindowPeak = Math.max(mWindowPeak, running);
+        if (nowNanos - mWindowStartNanos < mKeepAliveNanos) return;
+
+        int size = Math.max(mMinSize, mWindowPeak);
+        if (size < mSize) resize(size, Reason.IDLE);
+        mWindowStartNanos = nowNanos;
+        mWindowPeak = running;
+    }
+
+    /**
+     * 收到Android的内存警告（ComponentCallbacks2.onTrimMemory）：
+     * RUNNING_MODERATE时减半；RUNNING_LOW及以上（不含UI_HIDDEN）时收缩到最小值并进入内存紧张状态
+     * @param level onTrimMemory的level
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) return;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            enterLowMemory(System.nanoTime());
+            if (mSize > mMinSize) resize(mMinSize, Reason.TRIM_MEMORY);
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            int size = Math.max(mMinSize, mSize / 2);
+            if (size < mSize) resize(size, Reason.TRIM_MEMORY);
+        }
+    }
+
+    /**
+     * 检查堆占用（开启堆检查时由TaskQueue的定时器调用），连续HEAP_CHECK_SAMPLES次超过阈值时收缩到最小值并进入内存紧张状态。
+     * 距上次检查不足HEAP_CHECK_INTERVAL_MILLIS时不检查
+     * @param nowNanos 当前时间（System.nanoTime）
+     * @return true=已收缩
+     */
+    public synchronized boolean checkHeap(long nowNanos) {
+        if (mHeapThreshold <= 0 || nowNanos - mLastHeapCheckNanos < HEAP_CHECK_INTERVAL_NANOS) return false;
+        mLastHeapCheckNanos = nowNanos;
+        if (getHeapUsage() < mHeapThreshold) {
+            mHeapOverCount = 0;
+            return false;
+        }
+        // 一次超过阈值可能只是垃圾还未回收，连续超过说明GC后仍然紧张
+        if (++mHeapOverCount < HEAP_CHECK_SAMPLES) return false;
+        mHeapOverCount = 0;
+        enterLowMemory(nowNanos);
+        if (mSize > mMinSize) resize(mMinSize, Reason.HEAP);
+        return true;
+    }
+
+    /**
+     * 得到Java堆占用比例（已用/最大），已用部分包含未回收的垃圾
+     * @return 范围[0, 1]
+     */
+    protected double getHeapUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+
+    private void enterLowMemory(long nowNanos) {
+        mLowMemory = true;
+        mLowMemoryUntilNanos = nowNanos + mKeepAliveNanos;
+        mWindowStartNanos = nowNanos;
+        mWindowPeak = 0;
+    }
+
+    private void resize(int size, Reason reason) {
+        int oldSize = mSize;
+        mSize = size;
+        if (mResizeListener != null) mResizeListener.onResize(oldSize, size, reason);
+    }
+
+}
@@ -0,0 +1,288 @@
+package com.arwer.arlibrary.threads;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * @file FileRemoteTransport.java
+ * @brief 基于共享目录的RemoteTransport：同一台机器（或共享文件系统）上的多个进程通过文件协作，不依赖外部服务。
+ * @details 目录结构：
+ *          pending/<id>.<attempt>.task             待认领的任务
+ *          claimed/<id>.<attempt>.<workerId>.task  已认领的任务，文件修改时间即最后一次心跳的时间
+ *          results/<id>.result                     已完成任务的结果
+ *          tmp/                                    写入中的临时文件
+ *      1、所有状态转移都是同一文件系统内的rename，原子且只有一方能成功：认领（pending->claimed）、
+ *         完成（claimed->tmp）、收回（claimed->pending）互斥，因此同一时刻一个任务只被一个租约持有；
+ *      2、文件先写到tmp/再rename到目标目录，读取方不会看到写了一半的文件；
+ *      3、心跳修改已认领文件的修改时间，文件已被收回时修改失败，即租约已失去。
+ *
+ *      租约过期按文件修改时间判断，跨机器共享目录（如NFS）时各机器的时钟需要同步，租约时长应远大于时钟误差。
+ *      用法：RemoteTransport transport = new FileRemoteTransport(new File("/data/batch/queue"), 30000, 3);
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class FileRemoteTransport implements RemoteTransport {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    private static final String TASK_SUFFIX = ".task";
+    private static final String RESULT_SUFFIX = ".result";
+    // 任务id和工作进程id只能包含这些字符（用作文件名的一部分，以'.'分隔）
+    private static final Pattern ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private final File mPendingDir;
+    private final File mClaimedDir;
+    private final File mResultsDir;
+    private final File mTmpDir;
+    private final long mLeaseMillis;
+    private final int mMaxAttempts;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param directory 共享目录，不存在时创建
+     * @param leaseMillis 租约时长（毫秒），工作进程超过这么长时间没有心跳即认为已失效
+     * @param maxAttempts 每个任务最多派发的次数，租约过期这么多次后以TimeoutException结果完成，避免导致进程崩溃的任务无限重试
+     * @throws IOException 无法创建目录
+     */
+    public FileRemoteTransport(File directory, long leaseMillis, int maxAttempts) throws IOException {
+        if (directory == null) throw new IllegalArgumentException("directory can't be null");
+        if (leaseMillis < 1) throw new IllegalArgumentException("leaseMillis must be >= 1");
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be >= 1");
+        mPendingDir = makeDir(new File(directory, "pending"));
+        mClaimedDir = makeDir(new File(directory, "claimed"));
+        mResultsDir = makeDir(new File(directory, "results"));
+        mTmpDir = makeDir(new File(directory, "tmp"));
+        mLeaseMillis = leaseMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    @Override
+    public long getLeaseMillis() {
+        return mLeaseMillis;
+    }
+
+    @Override
+    public void submit(Descriptor descriptor) throws IOException {
+        checkId(descriptor.getId());
+        publish(serialize(descriptor), new File(mPendingDir, descriptor.getId() + ".1" + TASK_SUFFIX));
+    }
+
+    @Override
+    public Lease claim(String workerId) throws IOException {
+        checkId(workerId);
+        String[] names = mPendingDir.list();
+        if (names == null) throw new IOException("can't list " + mPendingDir);
+        // 任务id以提交时间开头（见RemoteDispatcher），按文件名排序即按提交顺序认领
+        Arrays.sort(names);
+        for (String name : names) {
+            String[] parts = parse(name, 2);
+            if (parts == null) continue;
+
+            File pending = new File(mPendingDir, name);
+            File claimed = new File(mClaimedDir, parts[0] + "." + parts[1] + "." + workerId + TASK_SUFFIX);
+            // 先更新修改时间再rename（rename保留修改时间），避免刚认领的任务被当成过期收回
+            pending.setLastModified(System.currentTimeMillis());
+            if (!pending.renameTo(claimed)) continue; // 被其他工作进程抢先认领
+
+            Descriptor descriptor;
+            try {
+                descriptor = (Descriptor) deserialize(claimed);
+            } catch (FileNotFoundException e) {
+                // 认领后立刻被收回（修改时间在rename前被其他进程读取）
+                continue;
+            }
+            return new Lease(descriptor, workerId, Integer.parseInt(parts[1]), claimed);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean renew(Lease lease) throws IOException {
+        // 文件已被收回或完成时修改失败
+        return ((File) lease.getHandle()).setLastModified(System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean complete(Lease lease, Result result) throws IOException {
+        byte[] data;
+        try {
+            data = serialize(result);
+        } catch (IOException e) {
+            // 返回值或异常不可序列化
+            data = serialize(new Result(result.getId(), result.getTaskName(), result.getWorkerId(), result.getAttempt(), null, e));
+        }
+        return finish((File) lease.getHandle(), result.getId(), data);
+    }
+
+    @Override
+    public int reclaimExpired() throws IOException {
+        String[] names = mClaimedDir.list();
+        if (names == null) throw new IOException("can't list " + mClaimedDir);
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (String name : names) {
+            String[] parts = parse(name, 3);
+            if (parts == null) continue;
+            File claimed = new File(mClaimedDir, name);
+            long lastModified = claimed.lastModified();
+            // 0表示文件已不存在
+            if (lastModified == 0 || now - lastModified <= mLeaseMillis) continue;
+
+            int attempt = Integer.parseInt(parts[1]);
+            if (attempt >= mMaxAttempts) {
+                Throwable error = new TimeoutException("lease expired " + attempt + " times, last worker: " + parts[2]);
+                Descriptor descriptor;
+                try {
+                    descriptor = (Descriptor) deserialize(claimed);
+                } catch (FileNotFoundException e) {
+                    continue;
+                }
+                byte[] data = serialize(new Result(parts[0], descriptor.getTaskName(), null, attempt, null, error));
+                if (finish(claimed, parts[0], data)) ++count;
+            }
+            else if (claimed.renameTo(new File(mPendingDir, parts[0] + "." + (attempt + 1) + TASK_SUFFIX))) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public List<Result> pollResults() throws IOException {
+        String[] names = mResultsDir.list();
+        if (names == null) throw new IOException("can't list " + mResultsDir);
+        Arrays.sort(names);
+        List<Result> results = new ArrayList<>();
+        for (String name : names) {
+            if (!name.endsWith(RESULT_SUFFIX)) continue;
+            File file = new File(mResultsDir, name);
+            try {
+                results.add((Result) deserialize(file));
+            } catch (FileNotFoundException e) {
+                continue;
+            }
+            if (!file.delete()) throw new IOException("can't delete " + file);
+        }
+        return results;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 私有方法
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 完成已认领的任务：先取得所有权（rename到tmp/），成功后再发布结果
+     * @return true=已完成；false=任务已被收回或已完成
+     */
+    private boolean finish(File claimed, String id, byte[] result) throws IOException {
+        File temp = File.createTempFile(id, ".tmp", mTmpDir);
+        write(result, temp);
+        File done = new File(mTmpDir, claimed.getName() + ".done");
+        if (!claimed.renameTo(done)) {
+            temp.delete();
+            return false;
+        }
+        if (!temp.renameTo(new File(mResultsDir, id + RESULT_SUFFIX))) {
+            throw new IOException("can't publish result of " + id);
+        }
+        done.delete();
+        return true;
+    }
+
+    /**
+     * 写到tmp/后rename到目标文件，读取方不会看到写了一半的文件
+     */
+    private void publish(byte[] data, File target) throws IOException {
+        File temp = File.createTempFile(target.getName(), ".tmp", mTmpDir);
+        write(data, temp);
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("can't rename " + temp + " to " + target);
+        }
+    }
+
+    /**
+     * 解析"<id>.<attempt>[.<workerId>].task"
+     * @param count 除后缀外的段数
+     * @return 各段，格式不符时返回null
+     */
+    private static String[] parse(String name, int count) {
+        if (!name.endsWith(TASK_SUFFIX)) return null;
+        String[] parts = name.substring(0, name.length() - TASK_SUFFIX.length()).split("\\.");
+        if (parts.length != count || !parts[1].matches("[0-9]+")) return null;
+        return parts;
+    }
+
+    private static void checkId(String id) {
+        if (id == null || !ID_PATTERN.matcher(id).matches()) {
+            throw new IllegalArgumentException("id must match " + ID_PATTERN.pattern() + ": " + id);
+        }
+    }
+
+    private static File makeDir(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("can't create " + dir);
+        }
+        return dir;
+    }
+
+    private static byte[] serialize(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        try {
+            out.writeObject(object);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unknown class in " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(byte[] data, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+            // 落盘后再rename，避免掉电后留下空文件
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+}
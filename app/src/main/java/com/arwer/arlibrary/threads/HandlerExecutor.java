@@ -0,0 +1,104 @@
+package com.arwer.arlibrary.threads;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @file HandlerExecutor.java
+ * @brief 把Runnable投递到Android的Looper线程（默认主线程）执行的Executor，用作TaskQueue的回调执行器。
+ * @details 用法：taskQueue.setCallbackExecutor(new HandlerExecutor());
+ *      之后onFinished、单个任务结果、进度回调都在主线程执行，可以直接更新界面，不用再手动post。
+ *
+ *      指定最小间隔（如16毫秒，约一帧）时，TaskQueue的合并进度回调通过executePaced()投递，相邻两次至少间隔这么长时间，
+ *      每帧最多更新一次界面；onFinished、单个任务结果等其他回调由execute()立即投递，不受间隔影响，也不会被推迟。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class HandlerExecutor implements Executor {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 一帧的时间（毫秒）
+    public static final long FRAME_INTERVAL_MILLIS = 16;
+
+    private final Handler mHandler;
+    // 相邻两次执行的最小间隔（毫秒），0表示不限制
+    private final long mMinIntervalMillis;
+    // 上一次安排限速执行的时间（SystemClock.uptimeMillis）
+    private long mLastAtMillis = 0;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 投递到主线程执行
+     */
+    public HandlerExecutor() {
+        this(Looper.getMainLooper(), 0);
+    }
+
+    /**
+     * @param looper 执行的Looper线程
+     * @param minIntervalMillis executePaced()相邻两次执行的最小间隔（毫秒），0表示不限制；合并界面更新时可用FRAME_INTERVAL_MILLIS
+     */
+    public HandlerExecutor(Looper looper, long minIntervalMillis) {
+        if (looper == null) throw new IllegalArgumentException("looper can't be null");
+        if (minIntervalMillis < 0) throw new IllegalArgumentException("minIntervalMillis must be >= 0");
+        mHandler = new Handler(looper);
+        mMinIntervalMillis = minIntervalMillis;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    public long getMinIntervalMillis() {
+        return mMinIntervalMillis;
+    }
+
+    /**
+     * 立即投递，按提交顺序执行
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) throw new NullPointerException();
+
+        // Looper已退出
+        if (!mHandler.post(command)) throw new RejectedExecutionException("looper has quit");
+    }
+
+    /**
+     * 限速投递：距上一次限速投递不足最小间隔时推迟到间隔满后执行，用于合并的界面更新（如进度回调）。
+     * 推迟的Runnable可能晚于之后execute()的Runnable执行，只能用于与其他回调顺序无关的操作
+     * @param command 要执行的Runnable
+     */
+    public void executePaced(Runnable command) {
+        if (command == null) throw new NullPointerException();
+
+        boolean posted;
+        if (mMinIntervalMillis == 0) {
+            posted = mHandler.post(command);
+        }
+        else {
+            long atMillis;
+            synchronized (this) {
+                atMillis = Math.max(SystemClock.uptimeMillis(), mLastAtMillis + mMinIntervalMillis);
+                mLastAtMillis = atMillis;
+            }
+            posted = mHandler.postAtTime(command, atMillis);
+        }
+        // Looper已退出
+        if (!posted) throw new RejectedExecutionException("looper has quit");
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.arwer.arlibrary.threads;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @file HedgePolicy.java
+ * @brief 对冲（推测）执行策略：任务执行超过一定时间仍未完成时，再并发执行一次同样的任务，取先完成的结果。
+ * @details 用于降低尾延迟，例如偶尔很慢的上游网络请求。两种触发时间：
+ *      1、afterDelay：固定延迟；
+ *      2、atPercentile：使用本策略最近完成任务延迟的百分位数（如p95），样本不足时使用给定的默认延迟。
+ *
+ *      同一个策略对象可被多个同类任务共用，延迟样本也在这些任务之间共享。
+ *      注意：任务会被执行两次，只能用于幂等的任务（如GET请求、只读查询）。
+ *      用法：taskQueue.add("task1", callable, HedgePolicy.atPercentile(0.95, 200, TimeUnit.MILLISECONDS));
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class HedgePolicy {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 保留的最近延迟样本数
+    private static final int SAMPLE_SIZE = 256;
+    // 使用百分位数所需的最少样本数
+    private static final int MIN_SAMPLES = 20;
+
+    // 百分位数（0, 1]，小于等于0表示使用固定延迟
+    private final double mPercentile;
+    // 固定延迟，或样本不足时的默认延迟（纳秒）
+    private final long mDelayNanos;
+
+    // 最近完成任务的延迟（纳秒），环形覆盖
+    private final long[] mSamples = new long[SAMPLE_SIZE];
+    private int mSampleCount = 0;
+    private int mSampleIndex = 0;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    private HedgePolicy(double percentile, long delayNanos) {
+        mPercentile = percentile;
+        mDelayNanos = delayNanos;
+    }
+
+    /**
+     * 固定延迟的对冲策略
+     * @param delay 任务开始执行后多久仍未完成则对冲
+     * @param unit 时间单位
+     * @return 对冲策略
+     */
+    public static HedgePolicy afterDelay(long delay, TimeUnit unit) {
+        if (delay < 0) throw new IllegalArgumentException("delay must be >= 0");
+        return new HedgePolicy(0, unit.toNanos(delay));
+    }
+
+    /**
+     * 按延迟百分位数对冲的策略
+     * @param percentile 百分位数，范围(0, 1)，如0.95表示p95
+     * @param defaultDelay 样本不足时使用的延迟
+     * @param unit 时间单位
+     * @return 对冲策略
+     */
+    public static HedgePolicy atPercentile(double percentile, long defaultDelay, TimeUnit unit) {
+        if (percentile <= 0 || percentile >= 1) throw new IllegalArgumentException("percentile must be in (0, 1)");
+        if (defaultDelay < 0) throw new IllegalArgumentException("defaultDelay must be >= 0");
+        return new HedgePolicy(percentile, unit.toNanos(defaultDelay));
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到当前的对冲延迟
+     * @return 任务开始执行后多久（纳秒）发起对冲
+     */
+    public synchronized long getDelayNanos() {
+        if (mPercentile <= 0 || mSampleCount < MIN_SAMPLES) {
+            return mDelayNanos;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mSampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(mPercentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * 记录一个成功完成的任务的延迟
+     * @param latencyNanos 从开始执行到完成的时间（纳秒）
+     */
+    public synchronized void recordLatency(long latencyNanos) {
+        mSamples[mSampleIndex] = latencyNanos;
+        mSampleIndex = (mSampleIndex + 1) % SAMPLE_SIZE;
+        if (mSampleCount < SAMPLE_SIZE) ++mSampleCount;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.arwer.arlibrary.threads;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @file MpmcRingBuffer.java
+ * @brief 预分配、无锁的有界多生产者多消费者（MPMC）环形队列。
+ * @details 实现参考Dmitry Vyukov的bounded MPMC queue（JCTools的MpmcArrayQueue同源）：
+ *      1、数组和每个槽位的序号在构造时一次分配，入队/出队不再分配节点对象；
+ *      2、生产者和消费者各自用CAS推进tail/head计数，不使用锁；
+ *      3、tail/head计数做了缓存行填充，避免生产者和消费者之间的伪共享。
+ *
+ *      offer()在队列满时返回false，poll()在队列空时返回null，由调用方决定等待策略（见RingBufferExecutor）。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class MpmcRingBuffer<E> {
+
+    ////////////////////////////////////////////////////////////////
+    // 缓存行填充的计数器
+    ////////////////////////////////////////////////////////////////
+    @SuppressWarnings("unused")
+    private static final class PaddedAtomicLong extends AtomicLong {
+        // 填充到64字节以上，使相邻的计数器不落在同一缓存行
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        private PaddedAtomicLong(long initialValue) {
+            super(initialValue);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 槽位数组，长度为2的幂
+    private final Object[] mBuffer;
+    // 每个槽位的序号：等于位置时可写，等于位置+1时可读
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    // 下一个写入位置
+    private final PaddedAtomicLong mTail = new PaddedAtomicLong(0);
+    // 下一个读取位置
+    private final PaddedAtomicLong mHead = new PaddedAtomicLong(0);
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param capacity 容量，向上取整到2的幂，最小为2
+     */
+    public MpmcRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = 2;
+        while (size < capacity) size <<= 1;
+
+        mBuffer = new Object[size];
+        mSequences = new AtomicLongArray(size);
+        mMask = size - 1;
+        for (int i=0; i<size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到容量
+     * @return 容量（2的幂）
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * 入队，不阻塞
+     * @param e 元素，不能为null
+     * @return true=成功；false=队列已满
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+
+        while (true) {
+            long pos = mTail.get();
+            int index = (int) pos & mMask;
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    mBuffer[index] = e;
+                    // 发布：序号写入对消费者可见前，元素写入已完成
+                    mSequences.lazySet(index, pos + 1);
+                    return true;
+                }
+            }
+            else if (diff < 0) {
+                // 槽位还未被上一轮的消费者释放，队列已满
+                return false;
+            }
+            // diff > 0：其他生产者已占用该位置，重读tail
+        }
+    }
+
+    /**
+     * 出队，不阻塞
+     * @return 队头元素；队列为空时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long pos = mHead.get();
+            int index = (int) pos & mMask;
+            long diff = mSequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    E e = (E) mBuffer[index];
+                    mBuffer[index] = null;
+                    // 释放槽位给下一轮的生产者
+                    mSequences.lazySet(index, pos + mMask + 1);
+                    return e;
+                }
+            }
+            else if (diff < 0) {
+                // 槽位还未被生产者发布，队列为空
+                return null;
+            }
+            // diff > 0：其他消费者已取走该位置，重读head
+        }
+    }
+
+    /**
+     * 得到近似的元素个数（并发修改时只是一个瞬时估计值）
+     * @return 元素个数
+     */
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * 队列是否为空（近似值）
+     * @return true=空
+     */
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.arwer.arlibrary.threads;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @file RemoteDispatcher.java
+ * @brief 远程派发的提交方：把可序列化的任务提交到RemoteTransport，由各进程中的RemoteWorker认领执行，并收集结果。
+ * @details 结果集合的格式与TaskQueue队列完成回调的一致：任务名 -> 返回值，执行出错为ExecutionException。
+ *      等待结果期间也会收回过期的租约，即使所有工作进程都在忙，崩溃进程的任务也能尽快重新派发。
+ *      一个逻辑队列（如FileRemoteTransport的一个共享目录）只能有一个提交方，工作进程可以有多个。
+ *      用法：RemoteDispatcher dispatcher = new RemoteDispatcher(transport);
+ *           dispatcher.submit("report-1", new ReportTask(1));
+ *           Map<String, Object> result = dispatcher.awaitAll(1, TimeUnit.HOURS);
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class RemoteDispatcher {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    private final RemoteTransport mTransport;
+    // 区分提交方的任务id（如进程重启前后）
+    private final String mNodeId = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+    private long mNextSequence = 0;
+    // 任务id -> 任务名，已提交未完成的任务
+    private final HashMap<String, String> mOutstanding = new HashMap<>();
+    // 已完成任务的结果，按完成顺序
+    private final LinkedHashMap<String, Object> mResults = new LinkedHashMap<>();
+    // 没有结果时再次检查的间隔（毫秒）
+    private long mPollIntervalMillis = 50;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    public RemoteDispatcher(RemoteTransport transport) {
+        if (transport == null) throw new IllegalArgumentException("transport can't be null");
+        mTransport = transport;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 设置等待结果时检查的间隔
+     * @param millis 毫秒，默认50
+     */
+    public synchronized void setPollInterval(long millis) {
+        if (millis < 1) throw new IllegalArgumentException("millis must be >= 1");
+        mPollIntervalMillis = millis;
+    }
+
+    /**
+     * 得到已提交、尚未收到结果的任务数
+     * @return 任务数
+     */
+    public synchronized int getOutstandingCount() {
+        return mOutstanding.size();
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 提交一个任务
+     * @param taskName 任务名，结果集合的键
+     * @param task 任务，需要可序列化，所有工作进程的classpath中都要有这个类
+     * @return 任务id
+     * @throws IOException 传输出错
+     */
+    public String submit(String taskName, RemoteTransport.Task<?> task) throws IOException {
+        String id;
+        synchronized (this) {
+            // 以提交时间开头，传输层按id排序即按提交顺序派发
+            id = String.format(Locale.US, "%013d-%s-%06d", System.currentTimeMillis(), mNodeId, mNextSequence++ % 1000000);
+            mOutstanding.put(id, taskName);
+        }
+        try {
+            mTransport.submit(new RemoteTransport.Descriptor(id, taskName, task));
+        } catch (IOException e) {
+            synchronized (this) {
+                mOutstanding.remove(id);
+            }
+            throw e;
+        }
+        return id;
+    }
+
+    /**
+     * 等待已提交的任务全部完成，并取走结果
+     * @param timeout 最长等待时间
+     * @param unit 时间单位
+     * @return 结果集合：任务名 -> 返回值，执行出错为ExecutionException
+     * @throws IOException 传输出错
+     * @throws InterruptedException 等待时被中断
+     * @throws TimeoutException 超时，已完成的结果保留到下次调用
+     */
+    public Map<String, Object> awaitAll(long timeout, TimeUnit unit) throws IOException, InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long pollInterval;
+            synchronized (this) {
+                collect();
+                if (mOutstanding.isEmpty()) {
+                    Map<String, Object> result = new LinkedHashMap<>(mResults);
+                    mResults.clear();
+                    return result;
+                }
+                pollInterval = mPollIntervalMillis;
+            }
+            mTransport.reclaimExpired();
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException(getOutstandingCount() + " remote tasks unfinished");
+            Thread.sleep(Math.min(pollInterval, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+        }
+    }
+
+    /**
+     * 取走传输层中本提交方任务的结果，调用方需持有this
+     */
+    private void collect() throws IOException {
+        for (RemoteTransport.Result result : mTransport.pollResults()) {
+            String taskName = mOutstanding.remove(result.getId());
+            // 重启前提交的任务的结果
+            if (taskName == null) continue;
+            if (result.getError() != null) {
+                mResults.put(taskName, new ExecutionException(result.getError()));
+            }
+            else {
+                mResults.put(taskName, result.getValue());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.arwer.arlibrary.threads;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * @file RemoteTransport.java
+ * @brief 远程派发的传输层接口：多个进程（或多台机器）上的RemoteWorker通过它共用同一个逻辑队列。
+ * @details 派发模型为租约认领（lease）：
+ *      1、RemoteDispatcher提交可序列化的任务描述（Descriptor）；
+ *      2、RemoteWorker认领任务得到租约，执行期间定时续约（心跳）；
+ *      3、执行完成后交回结果，只有仍持有租约时才算完成；
+ *      4、租约过期（进程崩溃、卡死、断网）的任务由任意节点调用reclaimExpired()放回待认领，由其他工作进程重新执行。
+ *      因此任务至少执行一次，可能执行多次（如续约不及时），只能用于幂等的任务。
+ *
+ *      实现需要线程安全，并保证同一时刻一个任务只被一个租约持有。
+ *      自带的实现：FileRemoteTransport（共享目录，不依赖外部服务，同一台机器上即可测试）。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public interface RemoteTransport {
+
+    ////////////////////////////////////////////////////////////////
+    // 可远程执行的任务：工作进程反序列化后执行，类需要在所有进程的classpath中
+    ////////////////////////////////////////////////////////////////
+    interface Task<V> extends Callable<V>, Serializable {
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 任务描述：唯一id、任务名和任务本身
+    ////////////////////////////////////////////////////////////////
+    final class Descriptor implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String mId;
+        private final String mTaskName;
+        private final Task<?> mTask;
+
+        public Descriptor(String id, String taskName, Task<?> task) {
+            if (id == null || taskName == null || task == null) {
+                throw new IllegalArgumentException("id, taskName and task can't be null");
+            }
+            mId = id;
+            mTaskName = taskName;
+            mTask = task;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getTaskName() {
+            return mTaskName;
+        }
+
+        public Task<?> getTask() {
+            return mTask;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 租约：工作进程认领到的任务，handle由传输层实现使用
+    ////////////////////////////////////////////////////////////////
+    final class Lease {
+        private final Descriptor mDescriptor;
+        private final String mWorkerId;
+        private final int mAttempt;
+        private final Object mHandle;
+
+        public Lease(Descriptor descriptor, String workerId, int attempt, Object handle) {
+            mDescriptor = descriptor;
+            mWorkerId = workerId;
+            mAttempt = attempt;
+            mHandle = handle;
+        }
+
+        public Descriptor getDescriptor() {
+            return mDescriptor;
+        }
+
+        public String getWorkerId() {
+            return mWorkerId;
+        }
+
+        /**
+         * 第几次执行，从1开始；租约过期重新派发后加1
+         */
+        public int getAttempt() {
+            return mAttempt;
+        }
+
+        public Object getHandle() {
+            return mHandle;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 执行结果：返回值或异常
+    ////////////////////////////////////////////////////////////////
+    final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String mId;
+        private final String mTaskName;
+        private final String mWorkerId;
+        private final int mAttempt;
+        private final Object mValue;
+        private final Throwable mError;
+
+        public Result(String id, String taskName, String workerId, int attempt, Object value, Throwable error) {
+            mId = id;
+            mTaskName = taskName;
+            mWorkerId = workerId;
+            mAttempt = attempt;
+            mValue = value;
+            mError = error;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getTaskName() {
+            return mTaskName;
+        }
+
+        /**
+         * 执行该任务的工作进程，租约多次过期而放弃的任务为null
+         */
+        public String getWorkerId() {
+            return mWorkerId;
+        }
+
+        public int getAttempt() {
+            return mAttempt;
+        }
+
+        public Object getValue() {
+            return mValue;
+        }
+
+        /**
+         * 执行中抛出的异常，成功时为null
+         */
+        public Throwable getError() {
+            return mError;
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到租约时长，工作进程按它的1/3间隔续约
+     * @return 毫秒
+     */
+    long getLeaseMillis();
+
+    /**
+     * 提交任务，等待工作进程认领
+     * @param descriptor 任务描述
+     * @throws IOException 传输出错
+     */
+    void submit(Descriptor descriptor) throws IOException;
+
+    /**
+     * 认领一个待执行的任务（按提交顺序）
+     * @param workerId 工作进程id
+     * @return 租约，没有待执行的任务时返回null
+     * @throws IOException 传输出错
+     */
+    Lease claim(String workerId) throws IOException;
+
+    /**
+     * 续约（心跳）
+     * @param lease 租约
+     * @return true=续约成功；false=租约已过期并被收回，应停止执行该任务
+     * @throws IOException 传输出错
+     */
+    boolean renew(Lease lease) throws IOException;
+
+    /**
+     * 交回结果，完成任务
+     * @param lease 租约
+     * @param result 结果，值和异常需可序列化，否则传输层以异常代替
+     * @return true=已完成；false=租约已失去，结果被丢弃（任务由其他工作进程执行）
+     * @throws IOException 传输出错
+     */
+    boolean complete(Lease lease, Result result) throws IOException;
+
+    /**
+     * 收回所有过期的租约，任务放回待认领；重试次数用完的任务以异常结果完成
+     * @return 收回的租约数
+     * @throws IOException 传输出错
+     */
+    int reclaimExpired() throws IOException;
+
+    /**
+     * 取走已完成任务的结果，每个结果只返回一次
+     * @return 结果列表，没有时为空列表
+     * @throws IOException 传输出错
+     */
+    List<Result> pollResults() throws IOException;
+
+}
@@ -0,0 +1,295 @@
+package com.arwer.arlibrary.threads;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @file RemoteWorker.java
+ * @brief 远程派发的工作进程：从RemoteTransport认领任务，在本地TaskQueue上执行，定时续约并交回结果。
+ * @details 1、认领的任务数不超过TaskQueue当前的并发上限（自适应模式下随之变化），不会在本地堆积任务；
+ *      2、后台线程每隔租约时长的1/3为执行中的任务续约，同时收回其他工作进程过期的租约；
+ *      3、续约失败（租约已过期并被收回）时中断该任务，它已由其他工作进程重新执行，结果被丢弃；
+ *      4、传输出错（IOException，如共享目录暂时不可用）时记录错误并退避重试，连续出错时间隔加倍，最长为续约间隔；
+ *         其他无法恢复的错误也记录到getLastError()，之后不再认领新任务。
+ *
+ *      TaskQueue由本类独占：会设置它的单个任务结果回调，stop()后执行中的任务全部完成时TaskQueue自动stop()。
+ *      用法：RemoteWorker worker = new RemoteWorker(transport, "host1-worker1", taskQueue);
+ *           worker.start();
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class RemoteWorker {
+
+    ////////////////////////////////////////////////////////////////
+    // 执行中的租约
+    ////////////////////////////////////////////////////////////////
+    private static final class Claim {
+        private final RemoteTransport.Lease mLease;
+        // 执行任务的线程，未开始或已结束为null（在this上同步）
+        private Thread mRunner;
+        // 是否因失去租约中断过执行线程（在this上同步），离开时清除中断标志
+        private boolean mInterrupted = false;
+        // 租约已失去
+        private volatile boolean mLost = false;
+
+        private Claim(RemoteTransport.Lease lease) {
+            mLease = lease;
+        }
+
+        /**
+         * 执行线程开始执行任务
+         * @return false=租约已失去，不执行
+         */
+        private synchronized boolean enter() {
+            if (mLost) return false;
+            mRunner = Thread.currentThread();
+            return true;
+        }
+
+        /**
+         * 执行线程离开任务：之后不会再因本租约被中断；只清除本租约发出的中断，不影响TaskQueue的cancel(true)等其他中断
+         */
+        private void leave() {
+            boolean interrupted;
+            synchronized (this) {
+                mRunner = null;
+                interrupted = mInterrupted;
+                mInterrupted = false;
+            }
+            if (interrupted) Thread.interrupted();
+        }
+
+        /**
+         * 租约已失去：中断仍在执行的线程。与leave()互斥，线程离开后执行的其他任务不会收到中断
+         */
+        private synchronized void lose() {
+            mLost = true;
+            if (mRunner == null) return;
+            mInterrupted = true;
+            mRunner.interrupt();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    private final RemoteTransport mTransport;
+    private final String mWorkerId;
+    private final TaskQueue mQueue;
+    // 任务id -> 执行中的租约
+    private final ConcurrentHashMap<String, Claim> mClaims = new ConcurrentHashMap<>();
+    // 没有待认领的任务时再次检查的间隔（毫秒）
+    private volatile long mPollIntervalMillis = 100;
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+    // 最近一次出错：传输出错时退避后重试，其他错误时停止认领
+    private volatile Exception mLastError = null;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param transport 传输层
+     * @param workerId 工作进程id，在所有工作进程中唯一，如"主机名-进程号"
+     * @param queue 执行任务的队列，并发数等在这之前设置好
+     */
+    public RemoteWorker(RemoteTransport transport, String workerId, TaskQueue queue) {
+        if (transport == null || workerId == null || queue == null) {
+            throw new IllegalArgumentException("transport, workerId and queue can't be null");
+        }
+        mTransport = transport;
+        mWorkerId = workerId;
+        mQueue = queue;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 设置没有待认领的任务时再次检查的间隔
+     * @param millis 毫秒，默认100
+     */
+    public void setPollInterval(long millis) {
+        if (millis < 1) throw new IllegalArgumentException("millis must be >= 1");
+        mPollIntervalMillis = millis;
+    }
+
+    public String getWorkerId() {
+        return mWorkerId;
+    }
+
+    /**
+     * 得到执行中的任务数
+     * @return 任务数
+     */
+    public int getActiveCount() {
+        return mClaims.size();
+    }
+
+    /**
+     * 得到最近一次出错的异常：IOException为传输出错（已退避重试），其他异常为停止认领的原因
+     * @return 没有出错时为null
+     */
+    public Exception getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * 是否仍在认领新任务
+     * @return false=未开始、已stop()或因错误停止认领
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 开始认领并执行任务
+     */
+    public synchronized void start() {
+        if (mThread != null) return;
+        mRunning = true;
+        mQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                // 执行完成或被取消，腾出名额
+                mClaims.remove(taskName);
+            }
+        });
+        mQueue.retainStream();
+        mQueue.start();
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "RemoteWorker-" + mWorkerId);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * 停止认领新任务。执行中的任务继续执行、续约并交回结果，全部完成后TaskQueue自动stop()
+     */
+    public synchronized void stop() {
+        mRunning = false;
+    }
+
+    /**
+     * 后台线程：认领任务、续约、收回过期租约，停止后等执行中的任务全部完成再退出
+     */
+    private void loop() {
+        try {
+            loopUntilDrained();
+        } finally {
+            mQueue.releaseStream();
+        }
+    }
+
+    /**
+     * 认领、续约的主循环，传输出错时退避，其他错误时停止认领
+     */
+    private void loopUntilDrained() {
+        long heartbeatMillis = Math.max(1, mTransport.getLeaseMillis() / 3);
+        long idleMillis = Math.min(mPollIntervalMillis, heartbeatMillis);
+        long nextHeartbeat = 0;
+        // 传输连续出错时的退避间隔，0表示上个周期没有出错
+        long backoffMillis = 0;
+        while (mRunning || !mClaims.isEmpty()) {
+            boolean claimed = false;
+            try {
+                long now = System.currentTimeMillis();
+                if (now >= nextHeartbeat) {
+                    heartbeat();
+                    mTransport.reclaimExpired();
+                    nextHeartbeat = now + heartbeatMillis;
+                }
+                while (mRunning && mClaims.size() < mQueue.getCurrentConcurrencyLimit()) {
+                    RemoteTransport.Lease lease = mTransport.claim(mWorkerId);
+                    if (lease == null) break;
+                    execute(lease);
+                    claimed = true;
+                }
+                backoffMillis = 0;
+            } catch (IOException e) {
+                // 传输暂时不可用：退避后重试，未完成的续约下个周期重做；退避不超过续约间隔，恢复后租约不会因此过期
+                mLastError = e;
+                backoffMillis = backoffMillis == 0 ? idleMillis : Math.min(backoffMillis * 2, heartbeatMillis);
+            } catch (Exception e) {
+                // 无法恢复的错误（如TaskQueue已停止、无法再添加任务，传输层内部错误），不再认领；执行中的任务仍续约到完成
+                mLastError = e;
+                mRunning = false;
+            }
+            if (claimed) continue;
+            try {
+                Thread.sleep(backoffMillis > 0 ? backoffMillis : idleMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 为执行中的任务续约，失去租约的任务中断执行
+     */
+    private void heartbeat() throws IOException {
+        for (Claim claim : mClaims.values()) {
+            if (claim.mLost || mTransport.renew(claim.mLease)) continue;
+            claim.lose();
+        }
+    }
+
+    /**
+     * 在TaskQueue上执行认领的任务，完成后交回结果
+     */
+    private void execute(final RemoteTransport.Lease lease) throws Exception {
+        final RemoteTransport.Descriptor descriptor = lease.getDescriptor();
+        final Claim claim = new Claim(lease);
+        mClaims.put(descriptor.getId(), claim);
+        try {
+            mQueue.add(descriptor.getId(), new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if (!claim.enter()) return null;
+                    Object value = null;
+                    Throwable error = null;
+                    try {
+                        value = descriptor.getTask().call();
+                    } catch (Throwable e) {
+                        error = e;
+                    } finally {
+                        claim.leave();
+                    }
+                    if (!claim.mLost) {
+                        try {
+                            mTransport.complete(lease, new RemoteTransport.Result(descriptor.getId(), descriptor.getTaskName(),
+                                    mWorkerId, lease.getAttempt(), value, error));
+                        } catch (IOException e) {
+                            // 租约过期后由其他工作进程重新执行
+                            mLastError = e;
+                        }
+                    }
+                    if (error instanceof Exception) throw (Exception) error;
+                    if (error != null) throw new Exception(error);
+                    return value;
+                }
+            });
+        } catch (Exception e) {
+            mClaims.remove(descriptor.getId());
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.arwer.arlibrary.threads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * @file ResultSpiller.java
+ * @brief 把大的任务结果移出Java堆：存到堆外内存（direct ByteBuffer），或写入临时文件再映射到内存（mmap）。
+ * @details 用法：taskQueue.setResultSpiller(new ResultSpiller(256 * 1024, context.getCacheDir()));
+ *      任务返回byte[]、String、ByteArrayOutputStream或堆上（非只读）的ByteBuffer，且大小不小于阈值时，
+ *      在完成任务的线程上立即转存，结果集合和回调中得到的是SpilledResult句柄，原对象随即可被回收，
+ *      大批量任务时堆的占用和GC停顿不随结果总大小增长。其他类型和小于阈值的结果不变。
+ *
+ *      1、目录为null时存到堆外内存，占用进程的native内存；
+ *      2、指定目录时写入临时文件后映射，由系统按需换页，适合总量超过可用内存的结果；
+ *      3、字符串按UTF-8编码保存，阈值按字符数比较。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class ResultSpiller {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long mThresholdBytes;
+    private final File mDirectory;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param thresholdBytes 转存的最小结果大小（字节）
+     * @param directory 映射文件的目录，为null表示存到堆外内存
+     */
+    public ResultSpiller(long thresholdBytes, File directory) {
+        if (thresholdBytes < 1) throw new IllegalArgumentException("thresholdBytes must be >= 1");
+        mThresholdBytes = thresholdBytes;
+        mDirectory = directory;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    public long getThresholdBytes() {
+        return mThresholdBytes;
+    }
+
+    /**
+     * 得到映射文件的目录
+     * @return 为null表示存到堆外内存
+     */
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 转存结果
+     * @param result 任务的返回值
+     * @return 达到阈值时返回SpilledResult，否则原样返回
+     * @throws IOException 写入临时文件出错
+     */
+    public Object spill(Object result) throws IOException {
+        Object source = result;
+        int size;
+        boolean text = false;
+        if (result instanceof byte[]) {
+            size = ((byte[]) result).length;
+        }
+        else if (result instanceof ByteArrayOutputStream) {
+            size = ((ByteArrayOutputStream) result).size();
+        }
+        else if (result instanceof ByteBuffer && ((ByteBuffer) result).hasArray()) {
+            size = ((ByteBuffer) result).remaining();
+        }
+        else if (result instanceof String && ((String) result).length() >= mThresholdBytes) {
+            source = ((String) result).getBytes(UTF_8);
+            size = ((byte[]) source).length;
+            text = true;
+        }
+        else {
+            return result;
+        }
+        if (size < mThresholdBytes) return result;
+
+        if (mDirectory == null) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            write(source, new BufferOutputStream(buffer));
+            buffer.flip();
+            return new SpilledResult(buffer, text, null);
+        }
+        return map(source, size, text);
+    }
+
+    /**
+     * 写入临时文件并只读映射，映射后删除文件
+     */
+    private SpilledResult map(Object source, int size, boolean text) throws IOException {
+        File file = File.createTempFile("result", ".bin", mDirectory);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                write(source, out);
+            } finally {
+                out.close();
+            }
+            ByteBuffer buffer;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // 关闭文件后映射仍然有效
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                raf.close();
+            }
+            // 删除后映射仍然有效，空间在映射回收时释放；删除失败（如Windows）时由release()删除
+            return new SpilledResult(buffer, text, file.delete() ? null : file);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * 把结果的数据写到输出流，不复制到中间数组
+     */
+    private static void write(Object source, OutputStream out) throws IOException {
+        if (source instanceof byte[]) {
+            out.write((byte[]) source);
+        }
+        else if (source instanceof ByteArrayOutputStream) {
+            ((ByteArrayOutputStream) source).writeTo(out);
+        }
+        else {
+            ByteBuffer buffer = ((ByteBuffer) source).duplicate();
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 写入ByteBuffer的输出流
+    ////////////////////////////////////////////////////////////////
+    private static final class BufferOutputStream extends OutputStream {
+        private final ByteBuffer mBuffer;
+
+        private BufferOutputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            mBuffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mBuffer.put(b, off, len);
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+package com.arwer.arlibrary.threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @file RingBufferExecutor.java
+ * @brief 以MpmcRingBuffer作为任务队列的固定线程数线程池，用于大量微小任务、对排队延迟敏感的场景。
+ * @details 与Executors.newFixedThreadPool相比：
+ *      1、任务交接使用预分配的无锁环形队列，不为每个任务分配链表节点，也不竞争队列锁；
+ *      2、工作线程在队列为空时按WaitStrategy等待：忙等、让出CPU或挂起；
+ *      3、队列满时execute()按同样的等待策略等待空位（对提交方形成背压），而不是无限堆积，不要在持有锁时调用；
+ *      4、任务抛出的异常交给工作线程的UncaughtExceptionHandler，工作线程不退出。
+ *
+ *      忙等/让出CPU会持续占用CPU，只适合任务速率很高、且有空闲核的场景；手机上一般使用PARK。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class RingBufferExecutor extends AbstractExecutorService {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义枚举
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 队列为空（工作线程）或已满（提交方）时的等待策略
+     */
+    public enum WaitStrategy {
+        /** 一直自旋，延迟最低，持续占满一个核 */
+        BUSY_SPIN,
+        /** 自旋一段时间后Thread.yield()，延迟低，CPU占用较高 */
+        YIELD,
+        /** 自旋、让出CPU后挂起线程，有新任务时唤醒，空闲时不占CPU */
+        PARK
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 工作线程
+    ////////////////////////////////////////////////////////////////
+    private final class Worker implements Runnable {
+        private final Thread mThread;
+        // 是否已挂起等待唤醒
+        private volatile boolean mParked = false;
+
+        private Worker(int index) {
+            mThread = new Thread(this, "RingBufferExecutor-" + index);
+            mThread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                int idleCount = 0;
+                while (true) {
+                    // 清除上一个任务被取消时留下的中断标志，与ThreadPoolExecutor一致
+                    if (!mShutdown) Thread.interrupted();
+                    Runnable task = mBuffer.poll();
+                    if (task != null) {
+                        idleCount = 0;
+                        try {
+                            task.run();
+                        } catch (Throwable e) {
+                            // 与ThreadPoolExecutor一样交给线程的未捕获异常处理器，工作线程继续执行后面的任务
+                            Thread thread = Thread.currentThread();
+                            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                        }
+                        continue;
+                    }
+                    if (mShutdown) break;
+                    idleCount = idle(idleCount, this);
+                }
+            } finally {
+                mTerminated.countDown();
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 自旋多少次后开始让出CPU
+    private static final int SPIN_TRIES = 100;
+    // 让出CPU多少次后开始挂起（仅PARK）
+    private static final int YIELD_TRIES = 100;
+    // 挂起的最长时间，防止错过唤醒时永久挂起
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final MpmcRingBuffer<Runnable> mBuffer;
+    private final WaitStrategy mWaitStrategy;
+    private final Worker[] mWorkers;
+    // 挂起中的工作线程数，提交方据此判断是否需要唤醒
+    private final AtomicInteger mParkedCount = new AtomicInteger();
+    private final CountDownLatch mTerminated;
+    private volatile boolean mShutdown = false;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param threadCount 工作线程数
+     * @param capacity 环形队列容量（向上取整到2的幂）
+     * @param waitStrategy 等待策略，为null时使用PARK
+     */
+    public RingBufferExecutor(int threadCount, int capacity, WaitStrategy waitStrategy) {
+        if (threadCount < 1) throw new IllegalArgumentException("threadCount must be > 0");
+
+        mBuffer = new MpmcRingBuffer<>(capacity);
+        mWaitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.PARK;
+        mTerminated = new CountDownLatch(threadCount);
+        mWorkers = new Worker[threadCount];
+        for (int i=0; i<threadCount; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        for (Worker worker : mWorkers) {
+            worker.mThread.start();
+        }
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    public WaitStrategy getWaitStrategy() {
+        return mWaitStrategy;
+    }
+
+    public int getThreadCount() {
+        return mWorkers.length;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) throw new NullPointerException();
+
+        int idleCount = 0;
+        while (true) {
+            if (mShutdown) throw new RejectedExecutionException("RingBufferExecutor has been shut down");
+            if (mBuffer.offer(command)) break;
+            idleCount = idle(idleCount, null);
+        }
+
+        // 有挂起的工作线程时唤醒一个
+        if (mParkedCount.get() > 0) {
+            for (Worker worker : mWorkers) {
+                if (worker.mParked) {
+                    LockSupport.unpark(worker.mThread);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+        for (Worker worker : mWorkers) {
+            LockSupport.unpark(worker.mThread);
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        mShutdown = true;
+        List<Runnable> remaining = new ArrayList<>();
+        Runnable task;
+        while ((task = mBuffer.poll()) != null) {
+            remaining.add(task);
+        }
+        for (Worker worker : mWorkers) {
+            worker.mThread.interrupt();
+        }
+        return remaining;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return mTerminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mTerminated.await(timeout, unit);
+    }
+
+    /**
+     * 按等待策略等待一次
+     * @param idleCount 已连续等待的次数
+     * @param worker 等待的工作线程；提交方等待空位时为null，不挂起只做限时休眠
+     * @return 新的连续等待次数
+     */
+    private int idle(int idleCount, Worker worker) {
+        switch (mWaitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                if (idleCount >= SPIN_TRIES) Thread.yield();
+                break;
+            default:
+                if (idleCount >= SPIN_TRIES + YIELD_TRIES) {
+                    if (worker == null) {
+                        LockSupport.parkNanos(PARK_NANOS);
+                    }
+                    else {
+                        worker.mParked = true;
+                        mParkedCount.incrementAndGet();
+                        // 先声明挂起再检查队列，避免提交方在两者之间入队而错过唤醒
+                        if (mBuffer.isEmpty() && !mShutdown) {
+                            LockSupport.parkNanos(this, PARK_NANOS);
+                        }
+                        mParkedCount.decrementAndGet();
+                        worker.mParked = false;
+                    }
+                }
+                else if (idleCount >= SPIN_TRIES) {
+                    Thread.yield();
+                }
+                break;
+        }
+        return idleCount + 1;
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.arwer.arlibrary.threads;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * @file SpilledResult.java
+ * @brief 溢出到堆外的任务结果的句柄（见ResultSpiller），结果集合中只保存这个轻量的对象。
+ * @details 1、getByteBuffer()返回只读视图，直接读取堆外内存或映射文件，不复制数据；
+ *      2、getString()解码为字符串，会在堆上复制一份，只在需要时调用；
+ *      3、用完后调用release()。Java 7不能主动解除映射或释放堆外内存，release()后它们在GC时回收；
+ *         映射文件在映射后立即删除（Linux/Android上映射仍然有效），未release()也不会遗留临时文件。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public final class SpilledResult {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private volatile ByteBuffer mBuffer;
+    private final int mSize;
+    // 原始结果是否为字符串（以UTF-8保存）
+    private final boolean mText;
+    // 映射的临时文件，映射后已删除则为null
+    private File mFile;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    SpilledResult(ByteBuffer buffer, boolean text, File file) {
+        mBuffer = buffer;
+        mSize = buffer.remaining();
+        mText = text;
+        mFile = file;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到字节数
+     * @return 字节数
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * 原始结果是否为字符串
+     * @return true=字符串（以UTF-8保存，用getString()还原）；false=字节数据
+     */
+    public boolean isText() {
+        return mText;
+    }
+
+    /**
+     * 是否已释放
+     * @return true=已释放
+     */
+    public boolean isReleased() {
+        return mBuffer == null;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到数据的只读视图，不复制数据。每次调用返回独立的position/limit
+     * @return 只读的ByteBuffer
+     */
+    public ByteBuffer getByteBuffer() {
+        ByteBuffer buffer = mBuffer;
+        if (buffer == null) throw new IllegalStateException("result has been released");
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * 把数据解码为字符串（UTF-8），会在堆上复制一份
+     * @return 字符串
+     */
+    public String getString() {
+        return UTF_8.decode(getByteBuffer()).toString();
+    }
+
+    /**
+     * 释放：之后不能再读取，堆外内存/映射在GC时回收，未删除的临时文件立即删除
+     */
+    public void release() {
+        File file;
+        synchronized (this) {
+            mBuffer = null;
+            file = mFile;
+            mFile = null;
+        }
+        if (file != null) file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return "SpilledResult{size=" + mSize + (mText ? ", text" : "") + (isReleased() ? ", released" : "") + "}";
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.arwer.arlibrary.threads;
+
+/**
+ * @file TaskEvent.java
+ * @brief 任务的生命周期事件，由TaskFlightRecorder记录，或通过TaskQueue的事件监听器实时回调。
+ * @details 一个任务的事件依次为：ENQUEUED -> STARTED -> (HEDGED) -> FINISHED / FAILED / CANCELLED；
+ *      未开始执行就被取消的任务没有STARTED；熔断中直接失败的任务没有STARTED，FAILED的error为CircuitBreaker.OpenException。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public final class TaskEvent {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义枚举
+    ////////////////////////////////////////////////////////////////
+
+    public enum Type {
+        /** 已添加到队列 */
+        ENQUEUED,
+        /** 开始执行 */
+        STARTED,
+        /** 发起对冲，即再执行一次（见HedgePolicy） */
+        HEDGED,
+        /** 正常完成 */
+        FINISHED,
+        /** 执行出错 */
+        FAILED,
+        /** 被取消（包括溢出策略移除的任务） */
+        CANCELLED
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 定义变量
+    ////////////////////////////////////////////////////////////////
+
+    private final long mSequence;
+    private final Type mType;
+    private final String mTaskName;
+    private final long mTimeNanos;
+    private final long mDurationNanos;
+    private final long mThreadId;
+    private final Throwable mError;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    public TaskEvent(long sequence, Type type, String taskName, long timeNanos, long durationNanos, long threadId, Throwable error) {
+        mSequence = sequence;
+        mType = type;
+        mTaskName = taskName;
+        mTimeNanos = timeNanos;
+        mDurationNanos = durationNanos;
+        mThreadId = threadId;
+        mError = error;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 事件序号，同一个记录器内递增；监听器收到的事件为-1
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public String getTaskName() {
+        return mTaskName;
+    }
+
+    /**
+     * 事件发生的时间（System.nanoTime）
+     */
+    public long getTimeNanos() {
+        return mTimeNanos;
+    }
+
+    /**
+     * FINISHED/FAILED/CANCELLED：从开始执行到结束的耗时（纳秒），未开始执行为0；其他事件为0
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    /**
+     * 产生事件的线程id
+     */
+    public long getThreadId() {
+        return mThreadId;
+    }
+
+    /**
+     * FAILED的异常，其他事件为null
+     */
+    public Throwable getError() {
+        return mError;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('#').append(mSequence)
+                .append(' ').append(mType)
+                .append(" task=").append(mTaskName)
+                .append(" thread=").append(mThreadId);
+        if (mDurationNanos > 0) sb.append(" duration=").append(mDurationNanos / 1000).append("us");
+        if (mError != null) sb.append(" error=").append(mError);
+        return sb.toString();
+    }
+
+}
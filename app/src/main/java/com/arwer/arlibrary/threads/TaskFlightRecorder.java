@@ -0,0 +1,168 @@
+package com.arwer.arlibrary.threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @file TaskFlightRecorder.java
+ * @brief 常开的任务事件“黑匣子”：固定大小、无锁的环形缓冲，保留最近N个任务事件，需要时dump()出来排查慢批次、失败任务。
+ * @details 1、所有存储在构造时一次分配，记录事件不分配内存、不加锁：领取序号（一次原子自增）后写入对应槽位；
+ *      2、写满后覆盖最早的事件；
+ *      3、每个槽位带序号，dump()时丢弃正在被写入或已被覆盖的槽位，读写可以同时进行；
+ *      4、序号相差容量整数倍的两个写入方落在同一槽位时，先以CAS独占槽位再写入：较新的事件等较早的写完后覆盖它，
+ *         较早的事件发现槽位已被较新的占用时直接丢弃，不会把两个事件的字段混在一起。
+ *
+ *      用法：TaskQueue默认开启（见TaskQueue.getFlightRecorder()），批次变慢或出错时：
+ *           for (TaskEvent event : taskQueue.getFlightRecorder().dump()) Log.d(TAG, event.toString());
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class TaskFlightRecorder {
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    private static final TaskEvent.Type[] TYPES = TaskEvent.Type.values();
+
+    private final int mMask;
+    // 下一个事件的序号
+    private final AtomicLong mNext = new AtomicLong();
+    // 每个槽位的状态：序号+1表示已写完该序号的事件；负数表示正在写入（-(序号+1)）或正在清空；0表示从未写入
+    private final AtomicLongArray mSlots;
+    private final AtomicLongArray mTimes;
+    private final AtomicLongArray mDurations;
+    private final AtomicLongArray mThreadIds;
+    private final AtomicLongArray mTypes;
+    private final AtomicReferenceArray<String> mNames;
+    private final AtomicReferenceArray<Throwable> mErrors;
+    // clear()清空槽位时的标记
+    private static final long CLEARING = Long.MIN_VALUE;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param capacity 保留的事件数，向上取整到2的幂
+     */
+    public TaskFlightRecorder(int capacity) {
+        if (capacity < 1 || capacity > (1 << 24)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) size <<= 1;
+
+        mMask = size - 1;
+        mSlots = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+        mDurations = new AtomicLongArray(size);
+        mThreadIds = new AtomicLongArray(size);
+        mTypes = new AtomicLongArray(size);
+        mNames = new AtomicReferenceArray<>(size);
+        mErrors = new AtomicReferenceArray<>(size);
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 定义属性
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 得到容量
+     * @return 保留的事件数（2的幂）
+     */
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * 得到累计记录的事件数（包括已被覆盖的）
+     * @return 事件数
+     */
+    public long getRecordedCount() {
+        return mNext.get();
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 记录一个事件，不分配内存、不加锁（只在与较早的写入方落在同一槽位时等它写完）
+     * @param type 事件类型
+     * @param taskName 任务名
+     * @param timeNanos 事件时间（System.nanoTime）
+     * @param durationNanos 执行耗时（纳秒），没有则为0
+     * @param error 异常，没有则为null
+     */
+    public void record(TaskEvent.Type type, String taskName, long timeNanos, long durationNanos, Throwable error) {
+        long sequence = mNext.getAndIncrement();
+        int index = (int) sequence & mMask;
+        // 独占槽位并标记为正在写入，读取方看到标记或序号变化时丢弃该槽位
+        while (true) {
+            long state = mSlots.get(index);
+            if (state >= 0) {
+                // 槽位中已是更新的事件，本事件已被覆盖
+                if (state > sequence + 1) return;
+                if (mSlots.compareAndSet(index, state, -(sequence + 1))) break;
+            }
+            else if (state != CLEARING && -state > sequence + 1) {
+                // 更新的事件正在写入
+                return;
+            }
+            else {
+                // 较早的事件正在写入（或正在清空），等它写完
+                Thread.yield();
+            }
+        }
+        mTimes.lazySet(index, timeNanos);
+        mDurations.lazySet(index, durationNanos);
+        mThreadIds.lazySet(index, Thread.currentThread().getId());
+        mTypes.lazySet(index, type.ordinal());
+        mNames.lazySet(index, taskName);
+        mErrors.lazySet(index, error);
+        mSlots.lazySet(index, sequence + 1);
+    }
+
+    /**
+     * 导出最近的事件（按发生顺序）。可以在记录的同时调用，正在写入的事件不包括在内
+     * @return 事件列表
+     */
+    public List<TaskEvent> dump() {
+        long end = mNext.get();
+        long start = Math.max(0, end - capacity());
+        List<TaskEvent> events = new ArrayList<>((int) (end - start));
+        for (long sequence=start; sequence<end; sequence++) {
+            int index = (int) sequence & mMask;
+            if (mSlots.get(index) != sequence + 1) continue;
+            TaskEvent event = new TaskEvent(sequence, TYPES[(int) mTypes.get(index)], mNames.get(index),
+                    mTimes.get(index), mDurations.get(index), mThreadIds.get(index), mErrors.get(index));
+            // 读取期间被覆盖
+            if (mSlots.get(index) != sequence + 1) continue;
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * 清空已记录的事件
+     */
+    public void clear() {
+        for (int i=0; i<=mMask; i++) {
+            long state = mSlots.get(i);
+            // 正在写入的槽位留给写入方
+            if (state <= 0 || !mSlots.compareAndSet(i, state, CLEARING)) continue;
+            mNames.set(i, null);
+            mErrors.set(i, null);
+            mSlots.set(i, 0);
+        }
+    }
+
+}
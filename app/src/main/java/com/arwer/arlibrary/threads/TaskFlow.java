@@ -0,0 +1,83 @@
+package com.arwer.arlibrary.threads;
+
+/**
+ * @file TaskFlow.java
+ * @brief 响应式流（Reactive Streams）的接口定义，用于TaskQueueProcessor。
+ * @details 接口和方法签名与java.util.concurrent.Flow（Java 9）及org.reactivestreams完全一致，
+ *      Android低版本没有Flow，这里单独定义；与RxJava、Reactor等库对接时只需一层简单的转发适配。
+ *      调用规则同Reactive Streams规范：
+ *      1、Subscriber的onSubscribe/onNext/onError/onComplete按顺序串行调用，不会并发；
+ *      2、Publisher发出的onNext个数不超过Subscriber通过request(n)请求的总数；
+ *      3、onError/onComplete之后不再有任何信号；request(n)的n必须大于0，否则以onError结束。
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public final class TaskFlow {
+
+    private TaskFlow() {
+    }
+
+    /**
+     * 元素的发布者
+     * @param <T> 发布的元素类型
+     */
+    public interface Publisher<T> {
+        /**
+         * 添加订阅者，发布者随后调用subscriber.onSubscribe()
+         * @param subscriber 订阅者
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * 元素的订阅者
+     * @param <T> 接收的元素类型
+     */
+    public interface Subscriber<T> {
+        /**
+         * 订阅成功，之后通过subscription.request(n)请求元素
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * 收到一个请求的元素
+         */
+        public void onNext(T item);
+
+        /**
+         * 出错结束，之后不再有信号
+         */
+        public void onError(Throwable throwable);
+
+        /**
+         * 正常结束，之后不再有信号
+         */
+        public void onComplete();
+    }
+
+    /**
+     * 发布者和订阅者之间的订阅关系
+     */
+    public interface Subscription {
+        /**
+         * 请求n个元素（累加到未满足的需求上）
+         * @param n 大于0
+         */
+        public void request(long n);
+
+        /**
+         * 取消订阅，之后发布者停止发送元素
+         */
+        public void cancel();
+    }
+
+    /**
+     * 既是订阅者又是发布者的处理节点
+     * @param <T> 接收的元素类型
+     * @param <R> 发布的元素类型
+     */
+    public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+
+}
@@ -1,14 +1,38 @@
 package com.arwer.arlibrary.threads;
 
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @file TaskQueue.java
@@ -17,7 +41,23 @@ import java.util.concurrent.FutureTask;
  *      1、管理并发线程，可以1个线程串行，也可以自定义并发线程数；
  *      2、可以添加任务，执行任意Callable任务，比如网络存取、数据库存取、复杂计算等等；
  *      3、可以对某一任务执行取消、得到状态/执行结果；可以取消未执行的任务；可以手动控制队列开始/停止；
- *      4、队列中所有任务完成后有回调，可以得到每个任务的执行状况以及返回值。
+ *      4、队列中所有任务完成后有回调，可以得到每个任务的执行状况以及返回值；
+ *      5、可以设置自适应并发上限（AdaptiveConcurrencyLimit），根据任务延迟自动调整并发数；
+ *      6、可以设置队列容量和溢出策略（阻塞/丢弃最新/丢弃最早），add/tryAdd对生产者形成背压；
+ *      7、可以使用无锁环形队列（RingBufferExecutor）派发任务，并选择忙等/让出CPU/挂起等待策略；
+ *      8、可以开启任务池（setTaskPoolSize），复用任务对象和结果集合，稳定状态下每个任务不分配内存；
+ *      9、可以有序返回结果（setOrderedResults），任务并发执行，结果按添加顺序逐个回调；
+ *      10、可以按键串行（add(key, taskName, task)），相同键的任务按顺序执行，不同键的任务并发执行；
+ *      11、可以对冲执行（HedgePolicy），慢任务超过延迟后再执行一次，取先完成的结果，降低尾延迟；
+ *      12、可以按分组熔断（CircuitBreaker），上游故障时该组任务直接失败，不再占用线程；
+ *      13、可以接入响应式流（TaskQueueProcessor），按线程空闲和下游request(n)拉取上游元素，端到端背压；
+ *      14、可以批量并行处理集合（map/mapReduce），自动分块，辅助线程与任务共用并发名额，不需要为每个元素命名和添加任务；
+ *      15、可以指定回调执行器（setCallbackExecutor，如HandlerExecutor回到主线程），进度回调自动合并，减少界面刷新；
+ *      16、可以创建子队列（createChild），共用父队列的线程池和并发名额，取消父队列时一并取消子队列；
+ *      17、记录任务的生命周期事件（TaskEvent），常开的黑匣子（TaskFlightRecorder）保留最近的事件，可随时导出排查问题；
+ *      18、可以多进程协作（RemoteDispatcher/RemoteWorker），按租约认领共享队列中的任务，工作进程崩溃后任务自动重新派发；
+ *      19、可以把大的结果转存到堆外内存或映射文件（setResultSpiller），结果集合中只保存句柄，大批量任务时堆占用平稳；
+ *      20、可以使用弹性线程池（ElasticPoolSize），排队过久时扩容、空闲时回收线程，内存紧张时（onTrimMemory/堆占用）立即收缩。
  *
  *      示例可以参考单元测试类：TaskQueueUnitTest 或 TaskQueueAppTest
  * @version v1.0
@@ -43,25 +83,409 @@ public class TaskQueue {
         public void onFinished(Map<String, Object> result);
     }
 
+    public interface ITaskResultCallback {
+        /**
+         * 单个任务完成（含取消）后的回调；有序模式下按任务添加的顺序回调
+         * @param taskName 任务名
+         * @param result 与onFinished中的value一致：正常对象；取消为null；出错为异常对象
+         */
+        public void onResult(String taskName, Object result);
+    }
+
+    public interface IProgressCallback {
+        /**
+         * 任务完成的进度回调。短时间内连续完成的多个任务合并为一次回调（同一时间最多只有一次待执行的回调），
+         * 配合HandlerExecutor可以做到每帧最多更新一次界面
+         * @param finishedCount 队列开始以来已完成（含取消）的任务数
+         * @param results 上次回调以来完成的任务，key为任务名，value与onFinished中的一致；按完成顺序排列
+         */
+        public void onProgress(int finishedCount, Map<String, Object> results);
+    }
+
+    public interface ITaskEventListener {
+        /**
+         * 任务事件的实时回调，在产生事件的线程上同步执行（可能持有队列内部的锁），只能做记录、统计等轻量操作，
+         * 不要阻塞，也不要在其中调用本队列的方法
+         * @param event 事件
+         */
+        void onEvent(TaskEvent event);
+    }
+
+    public interface IMapper<T, R> {
+        /**
+         * 把一个输入元素转换为结果，在线程池的线程上执行（见TaskQueueProcessor、map、mapReduce）
+         * @param item 输入元素
+         * @return 转换结果
+         * @throws Exception 转换出错
+         */
+        public R map(T item) throws Exception;
+    }
+
+    public interface IReducer<R> {
+        /**
+         * 合并两个部分结果（见mapReduce），必须满足结合律：reduce(reduce(a, b), c)与reduce(a, reduce(b, c))相同
+         * @param left 靠前元素的部分结果
+         * @param right 靠后元素的部分结果
+         * @return 合并后的结果
+         * @throws Exception 合并出错
+         */
+        public R reduce(R left, R right) throws Exception;
+    }
+
 
     ////////////////////////////////////////////////////////////////
-    // 自定义FutureTask的子类
+    // 自定义可复用的任务（实现RunnableFuture，语义与FutureTask一致）
     ////////////////////////////////////////////////////////////////
-    private final class Task<V> extends FutureTask<V> {
+    private final class Task<V> implements RunnableFuture<V> {
+
+        // 任务状态
+        private static final int NEW = 0;
+        private static final int RUNNING = 1;
+        private static final int COMPLETING = 2;
+        private static final int NORMAL = 3;
+        private static final int EXCEPTIONAL = 4;
+        private static final int CANCELLED = 5;
 
         private String mTaskName;
+        private Callable<V> mCallable;
+        // 串行键，相同键的任务按添加顺序串行执行；null表示不受限制
+        private String mKey;
+        // 是否在串行键的队列中等待前一个同键任务完成
+        private boolean mHeld = false;
+        // 熔断分组，null表示不分组
+        private String mGroup;
+        // 执行时获得许可的熔断器及许可，完成后向其报告结果
+        private CircuitBreaker mBreaker;
+        private long mBreakerPermit;
+        // 对冲策略，null表示不对冲
+        private HedgePolicy mHedge;
+        // 对冲执行（第二次执行）的线程
+        private volatile Thread mHedgeRunner;
+        private final AtomicInteger mState = new AtomicInteger(NEW);
+        // 执行结果：正常返回值，或执行中抛出的异常
+        private Object mOutcome;
+        // 执行任务的线程，任务执行结束后置为null
+        private volatile Thread mRunner;
+        // 是否中断过执行线程/对冲执行线程（在this上同步），离开执行时清除中断标志，不留给线程池的下一个任务
+        private boolean mRunnerInterrupted = false;
+        private boolean mHedgeInterrupted = false;
+        // 正在执行本任务的线程数（第一次执行和对冲执行，在this上同步）
+        private int mRunners = 0;
+        // 完成（如执行中被取消）时还有线程在执行，由最后离开的线程释放并发名额、放行同键任务（在this上同步）
+        private boolean mReleaseOnLeave = false;
+        // 引用计数：任务列表、等待派发队列、线程池（每次执行）、重排缓冲、串行键队列、对冲定时、结果集合等各持有一个引用，
+        // 全部释放后才回到任务池，保证复用时没有线程还在访问它
+        private final AtomicInteger mRefs = new AtomicInteger(1);
+        // 是否已派发到线程池（占用一个并发名额）
+        private boolean mDispatched = false;
+        // 开始执行的时间（纳秒），0表示未开始执行
+        private volatile long mStartNanos = 0;
+        // 进入等待派发队列的时间（纳秒）
+        private long mQueuedNanos = 0;
+        // 环形队列派发时，等待在锁外交给线程池的下一个任务
+        private Task<?> mNextHandoff;
+        // 结果集合中的条目，随任务一起复用
+        private final TaskResult mResult = new TaskResult(this);
 
-        private Task(Callable<V> callable) {
-            super(callable);
-        }
         public Task(String taskName, Callable<V> callable) {
-            super(callable);
+            reset(taskName, callable);
+        }
+
+        /**
+         * 重置为新任务，用于从任务池复用
+         */
+        private void reset(String taskName, Callable<V> callable) {
             mTaskName = taskName;
+            mCallable = callable;
+            mKey = null;
+            mHeld = false;
+            mGroup = null;
+            mBreaker = null;
+            mHedge = null;
+            mHedgeRunner = null;
+            mOutcome = null;
+            mRunner = null;
+            mRunnerInterrupted = false;
+            mHedgeInterrupted = false;
+            mRunners = 0;
+            mReleaseOnLeave = false;
+            mDispatched = false;
+            mStartNanos = 0;
+            mQueuedNanos = 0;
+            mNextHandoff = null;
+            mRefs.set(1);
+            mState.set(NEW);
+        }
+
+        private void retain() {
+            mRefs.incrementAndGet();
+        }
+
+        /**
+         * 释放一个引用，最后一个引用释放时回到任务池。释放后不能再访问本任务
+         */
+        private void release() {
+            if (mRefs.decrementAndGet() == 0) recycleTask(this);
+        }
+
+        /**
+         * 由线程池执行，持有派发时取得的引用，结束时释放
+         */
+        @Override
+        public void run() {
+            try {
+                runTask();
+            } finally {
+                release();
+            }
+        }
+
+        private void runTask() {
+            if (mState.get() != NEW) return;
+            // 先公开执行线程再开始执行，cancel(true)看到RUNNING时一定能看到执行线程
+            synchronized (this) {
+                mRunner = Thread.currentThread();
+                ++mRunners;
+            }
+            if (!mState.compareAndSet(NEW, RUNNING)) {
+                leaveRunner();
+                return;
+            }
+
+            Object outcome;
+            int state;
+            CircuitBreaker breaker = mGroup != null ? getCircuitBreaker(mGroup) : null;
+            long permit = breaker != null ? breaker.acquirePermission() : 0;
+            if (permit < 0) {
+                // 熔断中：不执行，直接失败，立即释放线程
+                outcome = new CircuitBreaker.OpenException(mGroup);
+                state = EXCEPTIONAL;
+            }
+            else {
+                mBreaker = breaker;
+                mBreakerPermit = permit;
+                mStartNanos = System.nanoTime();
+                recordEvent(TaskEvent.Type.STARTED, this, 0, null);
+                if (mHedge != null) scheduleHedge(this);
+                try {
+                    outcome = spillResult(mCallable.call());
+                    state = NORMAL;
+                } catch (Throwable e) {
+                    outcome = e;
+                    state = EXCEPTIONAL;
+                }
+            }
+            leaveRunner();
+            if (mState.compareAndSet(RUNNING, COMPLETING)) {
+                mOutcome = outcome;
+                mState.set(state);
+                // 对冲执行输了，中断它
+                interruptHedgeRunner();
+                finishCompletion();
+            }
+            // 否则执行中已被取消，或对冲执行先完成
+        }
+
+        /**
+         * 对冲执行：在另一个线程上再执行一次任务，先成功完成的结果生效。
+         * 对冲执行失败（抛出异常）时不生效，以第一次执行的结果为准。
+         * 持有发起对冲时取得的引用和并发名额，结束时释放
+         */
+        private void runHedge() {
+            boolean started = false;
+            try {
+                if (mState.get() != RUNNING) return;
+                synchronized (this) {
+                    mHedgeRunner = Thread.currentThread();
+                    ++mRunners;
+                }
+                // 公开线程后再检查一次，之后的取消一定能中断本线程
+                if (mState.get() != RUNNING) {
+                    leaveHedgeRunner();
+                    return;
+                }
+                started = true;
+                recordEvent(TaskEvent.Type.HEDGED, this, 0, null);
+
+                Object outcome;
+                try {
+                    outcome = spillResult(mCallable.call());
+                } catch (Throwable e) {
+                    leaveHedgeRunner();
+                    return;
+                }
+                leaveHedgeRunner();
+                if (mState.compareAndSet(RUNNING, COMPLETING)) {
+                    mOutcome = outcome;
+                    mState.set(NORMAL);
+                    // 第一次执行输了，中断它
+                    interruptRunner();
+                    synchronized (mDispatchLock) {
+                        ++mHedgeWinCount;
+                    }
+                    finishCompletion();
+                }
+            } finally {
+                hedgeDone(started);
+                release();
+            }
+        }
+
+        /**
+         * 执行线程离开任务：之后不会再被本任务中断；清除本任务发出、线程还没处理的中断。
+         * 任务已经完成而这是最后离开的线程时，释放完成时推迟的并发名额和串行键
+         */
+        private void leaveRunner() {
+            boolean interrupted;
+            boolean release;
+            synchronized (this) {
+                mRunner = null;
+                interrupted = mRunnerInterrupted;
+                mRunnerInterrupted = false;
+                release = runnerLeft();
+            }
+            if (interrupted) Thread.interrupted();
+            if (release) releaseRun(this);
+        }
+
+        private void leaveHedgeRunner() {
+            boolean interrupted;
+            boolean release;
+            synchronized (this) {
+                mHedgeRunner = null;
+                interrupted = mHedgeInterrupted;
+                mHedgeInterrupted = false;
+                release = runnerLeft();
+            }
+            if (interrupted) Thread.interrupted();
+            if (release) releaseRun(this);
+        }
+
+        /**
+         * 一个执行线程离开，调用方需在this上同步
+         * @return true=最后离开且完成时推迟了释放，由调用方释放
+         */
+        private boolean runnerLeft() {
+            if (--mRunners > 0 || !mReleaseOnLeave) return false;
+            mReleaseOnLeave = false;
+            return true;
+        }
+
+        /**
+         * 任务完成时调用：还有线程在执行（执行中被取消、对冲执行的另一方还没结束）时推迟释放
+         * @return true=已推迟，由最后离开的执行线程释放；false=由调用方立即释放
+         */
+        private synchronized boolean deferRelease() {
+            if (mRunners == 0) return false;
+            mReleaseOnLeave = true;
+            return true;
+        }
+
+        /**
+         * 中断仍在执行本任务的线程。与leaveRunner()互斥，线程离开本任务后不会再收到中断
+         */
+        private void interruptRunner() {
+            synchronized (this) {
+                Thread runner = mRunner;
+                if (runner == null) return;
+                mRunnerInterrupted = true;
+                runner.interrupt();
+            }
+        }
+
+        private void interruptHedgeRunner() {
+            synchronized (this) {
+                Thread hedgeRunner = mHedgeRunner;
+                if (hedgeRunner == null) return;
+                mHedgeInterrupted = true;
+                hedgeRunner.interrupt();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            while (true) {
+                int state = mState.get();
+                if (state != NEW && state != RUNNING) return false;
+                if (mState.compareAndSet(state, CANCELLED)) {
+                    if (state == RUNNING && mayInterruptIfRunning) {
+                        interruptRunner();
+                        interruptHedgeRunner();
+                    }
+                    finishCompletion();
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mState.get() == CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mState.get() >= NORMAL;
         }
 
         @Override
-        protected void done() {
-            super.done();
+        public V get() throws InterruptedException, ExecutionException {
+            if (!isDone()) {
+                synchronized (this) {
+                    while (!isDone()) {
+                        wait();
+                    }
+                }
+            }
+            return report();
+        }
+
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!isDone()) {
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                synchronized (this) {
+                    while (!isDone()) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) throw new TimeoutException();
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            }
+            return report();
+        }
+
+        @SuppressWarnings("unchecked")
+        private V report() throws ExecutionException {
+            int state = mState.get();
+            if (state == NORMAL) return (V) mOutcome;
+            if (state == CANCELLED) throw new CancellationException();
+            throw new ExecutionException((Throwable) mOutcome);
+        }
+
+        /**
+         * 进入完成状态后唤醒等待结果的线程，并调用done()
+         */
+        private void finishCompletion() {
+            synchronized (this) {
+                notifyAll();
+            }
+            // 回调期间持有引用
+            retain();
+            try {
+                done();
+            } finally {
+                release();
+            }
+        }
+
+        private void done() {
+            // 释放并发名额，派发等待中的任务
+            taskDone(this);
+            // 回调单个任务的结果
+            emitResults(this);
+            // 回调（合并后的）进度
+            reportProgress(this);
             // 调用队列完成函数
             queueFinished();
         }
@@ -74,10 +498,223 @@ public class TaskQueue {
 //        }
     }
 
+    ////////////////////////////////////////////////////////////////
+    // 结果集合的条目及不分配内存的结果集合视图（任务池模式使用）
+    ////////////////////////////////////////////////////////////////
+    private static final class TaskResult implements Map.Entry<String, Object> {
+
+        private final Task<?> mTask;
+
+        private TaskResult(Task<?> task) {
+            mTask = task;
+        }
+
+        @Override
+        public String getKey() {
+            return mTask.getName();
+        }
+
+        /**
+         * 与stop()的结果一致：取消为null；正常为返回值；出错为ExecutionException
+         */
+        @Override
+        public Object getValue() {
+            if (mTask.isCancelled()) return null;
+            try {
+                return mTask.get();
+            } catch (InterruptedException e) {
+                return e;
+            } catch (ExecutionException e) {
+                return e;
+            }
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object value = getValue();
+            return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private static final class TaskResultMap extends AbstractMap<String, Object> {
+
+        // 已完成的任务，在onFinished回调期间有效
+        private final ArrayList<Task<?>> mTasks = new ArrayList<>();
+
+        private final AbstractSet<Entry<String, Object>> mEntrySet = new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int mIndex = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mIndex < mTasks.size();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (mIndex >= mTasks.size()) throw new NoSuchElementException();
+                        return mTasks.get(mIndex++).mResult;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mTasks.size();
+            }
+        };
+
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            return mEntrySet;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 批量map/reduce：多个线程从同一个游标领取分块执行
+    ////////////////////////////////////////////////////////////////
+    private static final class BulkJob<T, R> implements Runnable {
+
+        // 每个线程平均领取的分块数，越大负载越均衡，领取的次数也越多
+        private static final int CHUNKS_PER_THREAD = 4;
+
+        private final List<? extends T> mItems;
+        private final IMapper<? super T, ? extends R> mMapper;
+        // 为null时是map，结果按下标写入mResults；否则每个分块归约为一个部分结果
+        private final IReducer<R> mReducer;
+        private final Object[] mResults;
+        // 分块起始下标 -> 分块的部分结果
+        private final TreeMap<Integer, R> mPartials;
+        private final int mParallelism;
+        // 下一个未领取元素的下标
+        private final AtomicInteger mCursor = new AtomicInteger();
+        // 正在领取或执行分块的线程数
+        private final AtomicInteger mInProgress = new AtomicInteger();
+        // 第一个错误，出错后不再领取分块
+        private volatile Throwable mError = null;
+
+        private BulkJob(List<? extends T> items, IMapper<? super T, ? extends R> mapper, IReducer<R> reducer, int parallelism) {
+            mItems = items;
+            mMapper = mapper;
+            mReducer = reducer;
+            mResults = reducer == null ? new Object[items.size()] : null;
+            mPartials = reducer != null ? new TreeMap<Integer, R>() : null;
+            mParallelism = parallelism;
+        }
+
+        @Override
+        public void run() {
+            int size = mItems.size();
+            while (mError == null) {
+                // 先登记再领取，等待方看到mInProgress为0时所有已领取的分块都已完成
+                mInProgress.incrementAndGet();
+                try {
+                    int start = mCursor.get();
+                    if (start >= size) return;
+                    // 自适应分块（guided）：剩余越多分块越大，临近结束时分块变小，让先空闲的线程分担最后的工作
+                    int chunk = Math.max(1, (size - start) / (mParallelism * CHUNKS_PER_THREAD));
+                    int end = Math.min(size, start + chunk);
+                    if (!mCursor.compareAndSet(start, end)) continue;
+                    runChunk(start, end);
+                } catch (Throwable e) {
+                    if (mError == null) mError = e;
+                } finally {
+                    if (mInProgress.decrementAndGet() == 0) {
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+
+        private void runChunk(int start, int end) throws Exception {
+            if (mReducer == null) {
+                for (int i=start; i<end; i++) {
+                    mResults[i] = mMapper.map(mItems.get(i));
+                }
+                return;
+            }
+            R partial = mMapper.map(mItems.get(start));
+            for (int i=start+1; i<end; i++) {
+                partial = mReducer.reduce(partial, mMapper.map(mItems.get(i)));
+            }
+            synchronized (mPartials) {
+                mPartials.put(start, partial);
+            }
+        }
+
+        /**
+         * 等待所有已领取的分块完成
+         */
+        private void await() throws InterruptedException {
+            synchronized (this) {
+                while (mInProgress.get() > 0) {
+                    wait();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<R> results() {
+            return Collections.unmodifiableList(Arrays.asList((R[]) mResults));
+        }
+
+        /**
+         * 按元素顺序合并各分块的部分结果
+         */
+        private R reduce() throws Exception {
+            R result = null;
+            boolean first = true;
+            for (R partial : mPartials.values()) {
+                result = first ? partial : mReducer.reduce(result, partial);
+                first = false;
+            }
+            return result;
+        }
+    }
+
     ////////////////////////////////////////////////////////////////
     // 定义常量、变量、枚举
     ////////////////////////////////////////////////////////////////
 
+    /**
+     * 有界队列满时的溢出策略
+     */
+    public enum OverflowPolicy {
+        /** 阻塞生产者，直到有任务完成腾出空间（tryAdd则立即/超时返回false） */
+        BLOCK,
+        /** 丢弃新添加的任务 */
+        DROP_NEWEST,
+        /** 取消并移除最早添加、尚未派发执行的任务，再添加新任务 */
+        DROP_OLDEST
+    }
+
     // 最大并发线程数
     private int maxConcurrentRequestCount = 4; //默认4个线程
     // 定义线程池对象
@@ -91,317 +728,1976 @@ public class TaskQueue {
 
     private int mAddingTaskCount = 0;
 
+    // 等待派发的任务（受并发上限控制）
+    private ArrayDeque<Task> mPendingTasks = null;
+    // DROP_OLDEST在锁内标记为取消、等待在锁外完成（回调）的任务
+    private ArrayDeque<Task> mEvictedTasks = null;
+    // 已派发、未完成的任务数（包括所有子队列的任务）
+    private int mRunningCount = 0;
+    // 环形队列派发时，在锁内占用名额、等待在锁外交给线程池的任务（以mNextHandoff串成的栈，只用根队列的）
+    private final AtomicReference<Task<?>> mHandoff = new AtomicReference<>();
+    // 派发相关状态的锁，子队列与根队列共用同一个锁
+    private final Object mDispatchLock;
+    // 自适应并发上限，为null时使用固定的最大并发线程数
+    private AdaptiveConcurrencyLimit mAdaptiveLimit = null;
+    // 弹性线程池大小，为null时不启用
+    private ElasticPoolSize mElasticPool = null;
+    // 已设置到线程池的空闲线程存活时间（纳秒）
+    private long mPoolKeepAliveNanos = 0;
+    // 弹性线程池的定时器：有任务等待名额时检查排队时间，开启堆检查时定时检查堆占用
+    private ScheduledExecutorService mElasticTimer = null;
+    // 是否已安排排队时间检查、堆占用检查
+    private boolean mElasticCheckScheduled = false;
+    private boolean mHeapCheckScheduled = false;
+
+    // 队列容量（已添加未完成的任务数上限），小于1表示不限制
+    private int mCapacity = 0;
+    // 队列满时的溢出策略
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+
+    // 环形队列派发的容量，小于1表示不使用环形队列
+    private int mRingBufferCapacity = 0;
+    // 环形队列派发时工作线程的等待策略
+    private RingBufferExecutor.WaitStrategy mWaitStrategy = RingBufferExecutor.WaitStrategy.PARK;
+
+    // 任务池大小，小于1表示不复用任务对象
+    private int mTaskPoolSize = 0;
+    // 空闲的可复用任务
+    private volatile ArrayDeque<Task> mTaskPool = null;
+    // 任务池模式下复用的结果集合（回调期间被占用的不在其中）
+    private ArrayDeque<TaskResultMap> mResultMapPool = null;
+
+    // 单个任务完成的回调
+    private ITaskResultCallback mTaskResultCallback = null;
+    // 是否按任务添加的顺序回调结果
+    private boolean mOrderedResults = false;
+    // 重排缓冲：按添加顺序排列、尚未回调结果的任务
+    private ArrayDeque<Task> mReorderBuffer = null;
+    // 保证有序回调串行进行的锁
+    private final Object mEmitLock = new Object();
+
+    // 串行键 -> 等待前一个同键任务完成的任务；键上没有未完成的任务时移除
+    private HashMap<String, ArrayDeque<Task>> mKeyLanes = null;
+
+    // 熔断分组 -> 熔断器
+    private HashMap<String, CircuitBreaker> mCircuitBreakers = null;
+
+    // 回调执行器，为null时在完成任务的线程上回调
+    private Executor mCallbackExecutor = null;
+    // 进度回调
+    private IProgressCallback mProgressCallback = null;
+    // 队列开始以来已完成的任务数
+    private int mProgressFinishedCount = 0;
+    // 上次进度回调以来完成的任务
+    private LinkedHashMap<String, Object> mProgressResults = new LinkedHashMap<>();
+    // 是否已有待执行的进度回调
+    private boolean mProgressScheduled = false;
+    // 队列已停止：不再记录进度，剩余的进度在onFinished之前回调，直到再次start()
+    private boolean mProgressClosed = false;
+    // 执行进度回调（复用同一个对象，合并期间不重复投递）
+    private final Runnable mProgressDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatchProgress();
+        }
+    };
+
+    // 流式保持计数：大于0时任务全部完成也不自动stop()，且完成的任务回调结果后即从任务列表移除
+    private int mStreamHolds = 0;
+    // 已触发自动stop()，start()前不再重复触发
+    private boolean mFinishing = false;
+
+    // 父队列，为null表示根队列（拥有线程池）
+    private final TaskQueue mParent;
+    // 子队列
+    private ArrayList<TaskQueue> mChildren = null;
+    // 下次派发时首先考虑的子队列下标，轮流派发避免后面的子队列饿死
+    private int mNextChild = 0;
+    // 已开始、未完成的子队列数；父队列在自己的任务和这些子队列都完成后才自动stop()
+    private int mActiveChildren = 0;
+    // 子队列是否已开始、未完成（计入父队列的mActiveChildren）
+    private boolean mActive = false;
+
+    // 批量map/reduce的辅助线程池（只在根队列创建）。辅助线程与任务共用并发名额（计入mRunningCount），cancelAll()时关闭
+    private ExecutorService mBulkPool = null;
+
+    // 大结果的转存，为null表示不转存
+    private volatile ResultSpiller mResultSpiller = null;
+
+    // 黑匣子默认保留的事件数
+    private static final int DEFAULT_FLIGHT_RECORDER_SIZE = 256;
+    // 任务事件的黑匣子，子队列默认与父队列共用；为null表示不记录
+    private volatile TaskFlightRecorder mFlightRecorder;
+    // 任务事件的实时监听器
+    private volatile ITaskEventListener mTaskEventListener = null;
+
+    // 对冲执行的定时器
+    private ScheduledExecutorService mHedgeTimer = null;
+    // 对冲预算：对冲次数不超过开始执行的可对冲任务数的比例
+    private double mHedgeBudget = 0.1;
+    // 开始执行的可对冲任务数
+    private long mHedgeableCount = 0;
+    // 发起的对冲次数
+    private long mHedgeCount = 0;
+    // 对冲执行先完成（胜出）的次数
+    private long mHedgeWinCount = 0;
+
 
     ////////////////////////////////////////////////////////////////
     // 定义属性
     ////////////////////////////////////////////////////////////////
 
     /**
-     * 得到最大并发线程数
-     * @return
+     * 得到最大并发线程数
+     * @return
+     */
+    public int getMaxConcurrentThreadCount() {
+        return maxConcurrentRequestCount;
+    }
+
+    /**
+     * 设置最大并发线程数
+     * @param maxConcurrentRequestCount
+     */
+    public void setMaxConcurrentThreadCount(int maxConcurrentRequestCount) {
+        this.maxConcurrentRequestCount = maxConcurrentRequestCount;
+    }
+
+    /**
+     * 设置自适应并发上限。设置后根据任务延迟在[minLimit, maxLimit]之间自动调整有效并发数，
+     * 固定的最大并发线程数将不再生效；设置为null则恢复使用固定的最大并发线程数。
+     * 需在start()前设置。
+     * @param limit 自适应并发上限对象
+     */
+    public void setAdaptiveConcurrencyLimit(AdaptiveConcurrencyLimit limit) {
+        synchronized (mDispatchLock) {
+            mAdaptiveLimit = limit;
+        }
+    }
+
+    /**
+     * 得到自适应并发上限对象
+     * @return 未设置时返回null
+     */
+    public AdaptiveConcurrencyLimit getAdaptiveConcurrencyLimit() {
+        return mAdaptiveLimit;
+    }
+
+    /**
+     * 设置弹性线程池：任务排队过久时扩容，空闲线程超过keepAlive后回收，内存紧张时立即收缩到最小值。
+     * 设置后固定的最大并发线程数不再生效，与自适应并发上限同时设置时取两者的较小值。
+     * 需在start()前在根队列上设置，子队列共用根队列的线程池；与环形队列派发同时使用时只控制并发上限（环形队列的线程数固定）
+     * @param poolSize 弹性大小策略，为null表示不启用
+     */
+    public void setElasticPoolSize(ElasticPoolSize poolSize) {
+        synchronized (mDispatchLock) {
+            mElasticPool = poolSize;
+        }
+    }
+
+    public ElasticPoolSize getElasticPoolSize() {
+        return mElasticPool;
+    }
+
+    /**
+     * 得到线程池中当前的线程数（包括空闲的线程）
+     * @return 线程数，线程池未创建时为0
+     */
+    public int getPoolSize() {
+        ExecutorService pool = mPool;
+        if (pool instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) pool).getPoolSize();
+        if (pool instanceof RingBufferExecutor) return ((RingBufferExecutor) pool).getThreadCount();
+        return pool != null && !pool.isShutdown() ? 1 : 0;
+    }
+
+    /**
+     * 转发Android的内存警告，在Application或Activity的onTrimMemory(level)中调用。
+     * 启用弹性线程池时按level收缩并发上限，RUNNING_LOW及以上时立即回收空闲线程
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     */
+    public void onTrimMemory(int level) {
+        synchronized (mDispatchLock) {
+            if (mElasticPool == null) return;
+            mElasticPool.onTrimMemory(level);
+            applyPoolKeepAlive(System.nanoTime());
+        }
+    }
+
+    /**
+     * 得到当前有效的并发上限
+     * @return 弹性线程池或自适应模式下为当前自动调整的值，否则为最大并发线程数（小于1表示不限制）
+     */
+    public int getCurrentConcurrencyLimit() {
+        synchronized (mDispatchLock) {
+            if (mElasticPool != null) {
+                int size = mElasticPool.getSize();
+                return mAdaptiveLimit != null ? Math.min(size, mAdaptiveLimit.getLimit()) : size;
+            }
+            if (mAdaptiveLimit != null) return mAdaptiveLimit.getLimit();
+            return maxConcurrentRequestCount < 1 ? Integer.MAX_VALUE : maxConcurrentRequestCount;
+        }
+    }
+
+    /**
+     * 设置队列容量和溢出策略。队列中已添加、未完成的任务数达到容量后，add/tryAdd按溢出策略处理，
+     * 使生产者的速度与任务执行的速度相匹配，避免无限堆积任务导致内存溢出。
+     * @param capacity 队列容量，小于1表示不限制（默认）
+     * @param policy 溢出策略，为null时使用BLOCK
+     */
+    public void setCapacity(int capacity, OverflowPolicy policy) {
+        synchronized (mDispatchLock) {
+            mCapacity = capacity;
+            mOverflowPolicy = policy != null ? policy : OverflowPolicy.BLOCK;
+            mDispatchLock.notifyAll();
+        }
+    }
+
+    /**
+     * 得到队列容量
+     * @return 小于1表示不限制
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * 得到队列满时的溢出策略
+     * @return 溢出策略
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * 设置使用无锁环形队列（RingBufferExecutor）派发任务，替代线程池自带的链表阻塞队列。
+     * 适合大量微小任务、对排队延迟敏感的场景；工作线程数为最大并发线程数（自适应模式下为其上限）。
+     * 需在start()前设置。
+     * @param capacity 环形队列容量，小于1表示不使用（默认）
+     * @param waitStrategy 工作线程的等待策略，为null时使用PARK
+     */
+    public void setRingBufferDispatch(int capacity, RingBufferExecutor.WaitStrategy waitStrategy) {
+        synchronized (mDispatchLock) {
+            mRingBufferCapacity = capacity;
+            mWaitStrategy = waitStrategy != null ? waitStrategy : RingBufferExecutor.WaitStrategy.PARK;
+        }
+    }
+
+    /**
+     * 设置任务池大小，开启任务对象复用模式。开启后add()从任务池取出预分配的任务对象，
+     * 队列完成、回调onFinished之后任务对象回到任务池；结果集合也是复用的视图，不再为每个任务分配HashMap节点。
+     * 配合setRingBufferDispatch()使用时，稳定状态下添加、执行、完成任务都不分配内存。
+     *
+     * 注意：任务池模式下onFinished的result只在回调期间有效，回调返回后内容会被复用，需要保留的结果请自行复制。
+     * @param size 任务池大小（预分配并最多保留的任务对象数），小于1表示关闭（默认）
+     */
+    public void setTaskPoolSize(int size) {
+        synchronized (mDispatchLock) {
+            mTaskPoolSize = size;
+            if (size < 1) {
+                mTaskPool = null;
+                mResultMapPool = null;
+                return;
+            }
+            if (mTaskPool == null) mTaskPool = new ArrayDeque<>(size);
+            if (mResultMapPool == null) mResultMapPool = new ArrayDeque<>();
+            while (mTaskPool.size() < size) {
+                mTaskPool.add(new Task<Object>(null, null));
+            }
+            while (mTaskPool.size() > size) {
+                mTaskPool.poll();
+            }
+        }
+    }
+
+    /**
+     * 得到任务池大小
+     * @return 小于1表示未开启任务池
+     */
+    public int getTaskPoolSize() {
+        return mTaskPoolSize;
+    }
+
+    /**
+     * 设置是否有序返回结果。开启后任务仍然并发执行，但：
+     * 1、单个任务的结果（ITaskResultCallback）经过重排缓冲，按任务添加的顺序回调；
+     * 2、onFinished的结果集合为按添加顺序排列的LinkedHashMap。
+     * 需在添加任务前设置。
+     * @param ordered true=有序；false=无序（默认）
+     */
+    public void setOrderedResults(boolean ordered) {
+        synchronized (mDispatchLock) {
+            mOrderedResults = ordered;
+        }
+    }
+
+    /**
+     * 是否有序返回结果
+     * @return true=有序
+     */
+    public boolean isOrderedResults() {
+        return mOrderedResults;
+    }
+
+    /**
+     * 设置单个任务完成时的回调，回调在完成任务的线程上执行。
+     * 所有任务的结果都会在onFinished之前回调完毕。需在添加任务前设置。
+     * @param callback 回调函数，为null表示不回调
+     */
+    public void setTaskResultCallback(ITaskResultCallback callback) {
+        synchronized (mDispatchLock) {
+            mTaskResultCallback = callback;
+        }
+    }
+
+    /**
+     * 设置回调执行器：onFinished、单个任务结果、进度的回调都通过它执行，如new HandlerExecutor()回到主线程。
+     * 执行器需按提交顺序串行执行（如Looper线程、单线程池），才能保证有序结果的回调顺序和onFinished在最后。
+     * @param executor 回调执行器，为null表示在完成任务的线程上回调（默认）
+     */
+    public void setCallbackExecutor(Executor executor) {
+        synchronized (mDispatchLock) {
+            mCallbackExecutor = executor;
+        }
+    }
+
+    /**
+     * 得到回调执行器
+     * @return 未设置时返回null
+     */
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * 设置进度回调。任务完成时不是每个都立即回调，而是合并：已有待执行的回调时，新完成的任务并入其中，
+     * 避免大量任务完成时向主线程投递大量消息；回调执行器是HandlerExecutor时按其最小间隔限速。
+     * 所有进度回调都在onFinished之前。需在start()前设置。
+     * @param callback 回调函数，为null表示不回调
+     */
+    public void setProgressCallback(IProgressCallback callback) {
+        synchronized (mDispatchLock) {
+            mProgressCallback = callback;
+        }
+    }
+
+    /**
+     * 为一个分组设置熔断器。该分组（addToGroup添加）的任务执行前先向熔断器申请许可，
+     * 熔断期间直接以CircuitBreaker.OpenException失败，不占用线程，把线程留给其他正常的分组。
+     * @param group 分组名，如上游服务的域名
+     * @param breaker 熔断器，为null表示移除该分组的熔断器
+     */
+    public void setCircuitBreaker(String group, CircuitBreaker breaker) {
+        synchronized (mDispatchLock) {
+            if (breaker == null) mCircuitBreakers.remove(group);
+            else mCircuitBreakers.put(group, breaker);
+        }
+    }
+
+    /**
+     * 得到分组的熔断器
+     * @param group 分组名
+     * @return 未设置时返回null
+     */
+    public CircuitBreaker getCircuitBreaker(String group) {
+        synchronized (mDispatchLock) {
+            return mCircuitBreakers.get(group);
+        }
+    }
+
+    /**
+     * 得到分组熔断器的状态，用于监控
+     * @param group 分组名
+     * @return 未设置熔断器时返回null
+     */
+    public CircuitBreaker.State getCircuitBreakerState(String group) {
+        CircuitBreaker breaker = getCircuitBreaker(group);
+        return breaker != null ? breaker.getState() : null;
+    }
+
+    /**
+     * 设置对冲预算，限制对冲带来的额外负载。对冲次数不超过已开始执行的可对冲任务数乘以该比例（至少允许1次）。
+     * @param ratio 比例，范围[0, 1]，默认0.1；0表示不对冲
+     */
+    public void setHedgeBudget(double ratio) {
+        if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("ratio must be in [0, 1]");
+        synchronized (mDispatchLock) {
+            mHedgeBudget = ratio;
+        }
+    }
+
+    /**
+     * 得到发起的对冲次数（不含没有空闲名额而放弃、或任务已完成而未开始的对冲）
+     * @return 对冲次数
+     */
+    public long getHedgeCount() {
+        synchronized (mDispatchLock) {
+            return mHedgeCount;
+        }
+    }
+
+    /**
+     * 得到对冲执行先完成（胜出）的次数
+     * @return 胜出次数
+     */
+    public long getHedgeWinCount() {
+        synchronized (mDispatchLock) {
+            return mHedgeWinCount;
+        }
+    }
+
+    /**
+     * 设置大结果的转存：达到阈值的结果在任务完成时转存到堆外内存或映射文件，
+     * 结果集合和单个任务的结果回调中得到SpilledResult句柄，用完后调用其release()
+     * @param spiller 转存设置，为null表示不转存（默认）
+     */
+    public void setResultSpiller(ResultSpiller spiller) {
+        mResultSpiller = spiller;
+    }
+
+    public ResultSpiller getResultSpiller() {
+        return mResultSpiller;
+    }
+
+    /**
+     * 设置任务事件的黑匣子。默认开启，保留最近256个事件，子队列默认与父队列共用
+     * @param recorder 黑匣子，为null表示不记录
+     */
+    public void setFlightRecorder(TaskFlightRecorder recorder) {
+        mFlightRecorder = recorder;
+    }
+
+    /**
+     * 得到任务事件的黑匣子，用于导出最近的事件：getFlightRecorder().dump()
+     * @return 黑匣子，未记录时返回null
+     */
+    public TaskFlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    /**
+     * 设置任务事件的实时监听器，如转发到日志或性能监控。未设置时记录事件不分配内存
+     * @param listener 监听器，为null表示移除
+     */
+    public void setTaskEventListener(ITaskEventListener listener) {
+        mTaskEventListener = listener;
+    }
+
+    /**
+     * 得到线程池的执行工具
+     * @return 线程池对象
+     */
+    private ExecutorService getPool() {
+        /*
+        注：线程池类型：
+        1. newSingleThreadExecutor 创建一个单线程的线程池。这个线程池只有一个线程在工作，也就是相当于单线程串行执行所有任务。
+        2. newFixedThreadPool 创建固定大小的线程池。每次提交一个任务就创建一个线程，直到线程达到线程池的最大大小。
+        3. newCachedThreadPool 创建一个可缓存的线程池。如果线程池的大小超过了处理任务所需要的线程，那么就会回收部分空闲（60秒不执行任务）的线程，
+        当任务数增加时，此线程池又可以智能的添加新线程来处理任务。
+        此线程池不会对线程池大小做限制，线程池大小完全依赖于操作系统（或者说JVM）能够创建的最大线程大小。
+        4.newScheduledThreadPool 创建一个大小无限的线程池。此线程池支持定时以及周期性执行任务的需求。
+
+        在JDK帮助文档中，有如此一段话：
+        “强烈建议程序员使用较为方便的Executors工厂方法Executors.newCachedThreadPool()（无界线程池，可以进行自动线程回收）
+
+        本模块考虑实际业务场景可能存在串行或并行等多种情况，所以交由开发者决定
+         */
+        if (mPool == null) {
+            if (mRingBufferCapacity > 0) {
+                int threadCount = mAdaptiveLimit != null ? mAdaptiveLimit.getMaxLimit() : maxConcurrentRequestCount;
+                if (threadCount < 1) threadCount = Runtime.getRuntime().availableProcessors();
+                // 已派发未完成的任务数不超过线程数，容量至少为线程数的2倍，交接时一般不会因队列满而等待；交接在mDispatchLock外进行（见drainHandoff）
+                mPool = new RingBufferExecutor(threadCount, Math.max(mRingBufferCapacity, threadCount * 2), mWaitStrategy);
+            }
+            else if (mElasticPool != null) {
+                // 并发数由mElasticPool在派发时控制，线程池只负责按需创建和回收线程
+                mPoolKeepAliveNanos = mElasticPool.getKeepAliveNanos();
+                mPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, mPoolKeepAliveNanos, TimeUnit.NANOSECONDS,
+                        new SynchronousQueue<Runnable>());
+            }
+            else if (maxConcurrentRequestCount == 1 && mAdaptiveLimit == null) {
+                mPool = Executors.newSingleThreadExecutor();
+            }
+//            else if (maxConcurrentRequestCount > 1 && maxConcurrentRequestCount < 11) {
+//                mPool = Executors.newFixedThreadPool(maxConcurrentRequestCount);
+//                // 一个线程1M，考虑手机内存控制，当大于10个线程，则用newCachedThreadPool
+////                mPool = Executors.newCachedThreadPool();
+//            }
+//            else if (maxConcurrentRequestCount > 10) {
+            else {
+                // 一个线程1M，考虑手机内存控制，当大于10个线程，则用newCachedThreadPool
+                mPool = Executors.newCachedThreadPool();
+            }
+        }
+        return mPool;
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+    public TaskQueue() {
+        this(null);
+    }
+
+    public TaskQueue(IQueueFinishedCallback callback) {
+        this(null, callback);
+    }
+
+    private TaskQueue(TaskQueue parent, IQueueFinishedCallback callback) {
+        mParent = parent;
+        mDispatchLock = parent != null ? parent.mDispatchLock : new Object();
+        mFlightRecorder = parent != null ? parent.mFlightRecorder : new TaskFlightRecorder(DEFAULT_FLIGHT_RECORDER_SIZE);
+        // 缓存callback、初始化定时任务线程池（检查是否全部完成和callback）
+        setQueueFinishedCallback(callback);
+        // 初始化任务列表
+//        mTaskList = new HashMap<String, FutureTask<?>>();
+        mTaskList = new ArrayList<>();
+        mPendingTasks = new ArrayDeque<>();
+        mEvictedTasks = new ArrayDeque<>();
+        mReorderBuffer = new ArrayDeque<>();
+        mKeyLanes = new HashMap<>();
+        mCircuitBreakers = new HashMap<>();
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 添加一个任务，队列已开始时立即派发执行。
+     * 设置了队列容量且队列已满时：BLOCK策略阻塞直到有空间；DROP_NEWEST丢弃本任务；DROP_OLDEST移除最早未执行的任务。
+     * @param taskName 任务名，每个任务的唯一标识符
+     * @param task 要执行的任务（实现Callable的类）
+     * @param <V> 任务执行完返回的类型
+     * @throws Exception 任务名为空；或BLOCK策略下队列已满且队列未开始/已停止（无法等到空间）
+     */
+    public <V> void add(String taskName, Callable<V> task) throws Exception {
+        checkTaskName(taskName);
+
+        // 创建任务
+////        FutureTask<V> futureTask = new FutureTask<V>(task);
+//        Task<V> futureTask = new Task<V>(task);
+//
+//        // 添加任务到列表
+//        Map<String, FutureTask<?>> hashMap = new HashMap<String, FutureTask<?>>();
+//        hashMap.put(taskName, futureTask);
+        Task<V> futureTask = obtainTask(taskName, task);
+        if (!offer(futureTask, -1) && mOverflowPolicy == OverflowPolicy.BLOCK) {
+            throw new Exception("queue is full and not running, taskName=" + taskName);
+        }
+    }
+
+    /**
+     * 添加一个带串行键的任务：相同键的任务按添加顺序逐个执行，不同键的任务之间仍然并发执行。
+     * 例如以账号或文件为键，保证同一账号/文件的操作有序，同时用满线程池。
+     * 队列容量和溢出策略与add(taskName, task)相同。
+     * @param key 串行键，为null时等同于add(taskName, task)
+     * @param taskName 任务名，每个任务的唯一标识符
+     * @param task 要执行的任务（实现Callable的类）
+     * @param <V> 任务执行完返回的类型
+     * @throws Exception 任务名为空；或BLOCK策略下队列已满且队列未开始/已停止（无法等到空间）
+     */
+    public <V> void add(String key, String taskName, Callable<V> task) throws Exception {
+        checkTaskName(taskName);
+
+        Task<V> futureTask = obtainTask(taskName, task);
+        futureTask.mKey = key;
+        if (!offer(futureTask, -1) && mOverflowPolicy == OverflowPolicy.BLOCK) {
+            throw new Exception("queue is full and not running, taskName=" + taskName);
+        }
+    }
+
+    /**
+     * 添加一个属于熔断分组的任务，分组的熔断器由setCircuitBreaker()设置。
+     * 队列容量和溢出策略与add(taskName, task)相同。
+     * @param group 熔断分组名，为null时等同于add(taskName, task)
+     * @param taskName 任务名，每个任务的唯一标识符
+     * @param task 要执行的任务（实现Callable的类）
+     * @param <V> 任务执行完返回的类型
+     * @throws Exception 任务名为空；或BLOCK策略下队列已满且队列未开始/已停止（无法等到空间）
+     */
+    public <V> void addToGroup(String group, String taskName, Callable<V> task) throws Exception {
+        checkTaskName(taskName);
+
+        Task<V> futureTask = obtainTask(taskName, task);
+        futureTask.mGroup = group;
+        if (!offer(futureTask, -1) && mOverflowPolicy == OverflowPolicy.BLOCK) {
+            throw new Exception("queue is full and not running, taskName=" + taskName);
+        }
+    }
+
+    /**
+     * 添加一个可对冲执行的任务：任务开始执行后超过策略给出的延迟仍未完成时，再并发执行一次，取先完成的结果并中断另一次。
+     * 对冲次数受setHedgeBudget()限制，对冲执行占用一个并发名额，名额用满时不对冲。任务可能被执行两次，只能用于幂等的任务。
+     * 队列容量和溢出策略与add(taskName, task)相同。
+     * @param taskName 任务名，每个任务的唯一标识符
+     * @param task 要执行的任务（实现Callable的类）
+     * @param hedge 对冲策略，为null时等同于add(taskName, task)
+     * @param <V> 任务执行完返回的类型
+     * @throws Exception 任务名为空；或BLOCK策略下队列已满且队列未开始/已停止（无法等到空间）
+     */
+    public <V> void add(String taskName, Callable<V> task, HedgePolicy hedge) throws Exception {
+        checkTaskName(taskName);
+
+        Task<V> futureTask = obtainTask(taskName, task);
+        futureTask.mHedge = hedge;
+        if (!offer(futureTask, -1) && mOverflowPolicy == OverflowPolicy.BLOCK) {
+            throw new Exception("queue is full and not running, taskName=" + taskName);
+        }
+    }
+
+    /**
+     * 尝试添加一个任务，队列已满时不阻塞
+     * @param taskName 任务名，每个任务的唯一标识符
+     * @param task 要执行的任务（实现Callable的类）
+     * @param <V> 任务执行完返回的类型
+     * @return true=已添加；false=队列已满，任务未添加
+     * @throws Exception 任务名为空
+     */
+    public <V> boolean tryAdd(String taskName, Callable<V> task) throws Exception {
+        checkTaskName(taskName);
+        return offer(obtainTask(taskName, task), 0);
+    }
+
+    /**
+     * 尝试添加一个任务，队列已满时（BLOCK策略）最多等待指定时间
+     * @param taskName 任务名，每个任务的唯一标识符
+     * @param task 要执行的任务（实现Callable的类）
+     * @param timeout 最长等待时间
+     * @param unit 等待时间的单位
+     * @param <V> 任务执行完返回的类型
+     * @return true=已添加；false=超时仍无空间，任务未添加
+     * @throws Exception 任务名为空；或等待时被中断（InterruptedException）
+     */
+    public <V> boolean tryAdd(String taskName, Callable<V> task, long timeout, TimeUnit unit) throws Exception {
+        checkTaskName(taskName);
+        return offer(obtainTask(taskName, task), Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * 批量并行转换：对每个元素执行mapper，返回与输入顺序一致的结果列表。阻塞直到全部完成。
+     * 输入自动分块：并行线程数为当前有效的并发上限（不限制时为CPU核数），调用线程也参与执行；
+     * 辅助线程与任务共用并发名额，只启动有空闲名额的部分，名额不足时由调用线程执行剩余的分块。
+     * 开始时分块较大以减少领取次数，临近结束时分块变小以均衡负载。
+     * 不需要为每个元素命名、创建任务，结果也不经过Map<String, Object>。
+     * @param items 输入元素
+     * @param mapper 转换函数，会被多个线程并发调用
+     * @param <T> 输入元素的类型
+     * @param <R> 结果的类型
+     * @return 结果列表（不可修改），第i个结果对应第i个输入元素
+     * @throws Exception 参数为空；mapper出错（ExecutionException，cause为mapper抛出的异常）；等待时被中断（InterruptedException）
+     */
+    public <T, R> List<R> map(Collection<? extends T> items, IMapper<? super T, ? extends R> mapper) throws Exception {
+        if (items == null || mapper == null) throw new Exception("param \"items\" and \"mapper\" can't be null.");
+        BulkJob<T, R> job = runBulk(items, mapper, null);
+        return job.results();
+    }
+
+    /**
+     * 批量并行转换并归约：对每个元素执行mapper，再用reducer把结果两两合并为一个结果。阻塞直到全部完成。
+     * 每个分块在执行它的线程上先归约为部分结果（并行），最后按元素顺序合并各分块的部分结果，
+     * 所以reducer只需满足结合律，不要求满足交换律。分块方式同map()。
+     * @param items 输入元素
+     * @param mapper 转换函数，会被多个线程并发调用
+     * @param reducer 合并函数，会被多个线程并发调用
+     * @param <T> 输入元素的类型
+     * @param <R> 结果的类型
+     * @return 归约结果；输入为空时返回null
+     * @throws Exception 参数为空；mapper或reducer出错（ExecutionException）；等待时被中断（InterruptedException）
+     */
+    public <T, R> R mapReduce(Collection<? extends T> items, IMapper<? super T, ? extends R> mapper, IReducer<R> reducer) throws Exception {
+        if (items == null || mapper == null || reducer == null) {
+            throw new Exception("param \"items\", \"mapper\" and \"reducer\" can't be null.");
+        }
+        BulkJob<T, R> job = runBulk(items, mapper, reducer);
+        try {
+            return job.reduce();
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    /**
+     * 创建子队列。子队列不创建自己的线程池，而是借用根队列的线程池执行任务：
+     * 1、子队列的任务同时受子队列的并发数（配额）和所有上级队列的并发数限制，上级队列的并发数是整棵树共用的名额，
+     *    所以整个应用的线程数由根队列的并发数决定；
+     * 2、子队列有自己的任务、回调和取消操作，start()时会先start()父队列；
+     * 3、父队列在自己的任务和所有已开始的子队列都完成后才回调onFinished；cancelAll()会一并取消所有子队列。
+     * 线程池相关的设置（setRingBufferDispatch等）只对根队列有效。
+     * @param maxConcurrentThreadCount 子队列的并发配额，小于1表示只受上级队列限制
+     * @param callback 子队列完成时的回调
+     * @return 子队列
+     */
+    public TaskQueue createChild(int maxConcurrentThreadCount, IQueueFinishedCallback callback) {
+        TaskQueue child = new TaskQueue(this, callback);
+        child.setMaxConcurrentThreadCount(maxConcurrentThreadCount);
+        synchronized (mDispatchLock) {
+            if (mChildren == null) mChildren = new ArrayList<>();
+            mChildren.add(child);
+        }
+        return child;
+    }
+
+    /**
+     * 取消并移除子队列（如界面销毁时）
+     * @param child createChild()创建的子队列
+     */
+    public void removeChild(TaskQueue child) {
+        if (child == null || child.mParent != this) return;
+        child.cancelAll();
+        synchronized (mDispatchLock) {
+            mChildren.remove(child);
+        }
+    }
+
+    /**
+     * 得到父队列
+     * @return 根队列返回null
+     */
+    public TaskQueue getParent() {
+        return mParent;
+    }
+
+    /**
+     * 任务队列开始执行
+     */
+    public void start() {
+        if (mParent != null) {
+            startChild();
+            return;
+        }
+        // 如果线程池对象不为空，表示已经运行队列了，则退出
+        if (mPool != null) return;
+
+//        // 定时检查队列完成状态的任务
+//        if (mScheduledPool != null) {
+//            mScheduledPool.shutdownNow();
+//            mScheduledPool = null;
+//        }
+//        mScheduledPool = new ScheduledThreadPoolExecutor(1);
+//        mScheduledPool.scheduleAtFixedRate(new Runnable() {
+//            @Override
+//            public void run() {
+//                if (mTaskList == null || mTaskList.size() < 1) {
+//                    return;
+//                }
+//
+//                // 统计队列里完成的数量和结果值
+//                int count = 0;
+//                Map<String, Object> result = new HashMap<String, Object>(); //结果集合
+//                for (Map.Entry entry : mTaskList.entrySet()) {
+//                    FutureTask<Object> futureTask = (FutureTask<Object>)entry.getValue();
+//                    System.out.println(">>> 遍历任务检查状态，taskName=" + entry.getKey() + ", isDone=" + futureTask.isDone());
+//                    if ( futureTask.isDone() ) {
+//                        ++count;
+//                        try {
+//                            if (futureTask.isCancelled())
+//                                result.put(entry.getKey().toString(), null);
+//                            else
+//                                result.put(entry.getKey().toString(), futureTask.get());
+//                        } catch (InterruptedException e) { //中断异常
+//                            e.printStackTrace();
+//                            result.put(entry.getKey().toString(), e);
+//                        } catch (ExecutionException e) { //执行中抛出的异常
+//                            e.printStackTrace();
+//                            result.put(entry.getKey().toString(), e);
+//                        }
+//                    }
+//                }
+//
+//                // 如果队列里任务都完成，则执行完成回调
+//                if (count == mTaskList.size()) {
+//                    if (mQueueFinishedCallback != null) {
+//                        mQueueFinishedCallback.onFinished(result);
+//                    }
+//                    mTaskList.clear();
+//                }
+//            }
+//        }, 1, 1, TimeUnit.SECONDS);
+
+
+        synchronized (mDispatchLock) {
+            getPool();
+            startTasks();
+        }
+        drainHandoff();
+    }
+
+    /**
+     * 子队列开始执行：先开始父队列，再借用根队列的线程池
+     */
+    private void startChild() {
+        mParent.start();
+        synchronized (mDispatchLock) {
+            if (isRunning() || !mParent.isRunning()) return;
+            mPool = mParent.mPool;
+            if (!mActive) {
+                mActive = true;
+                ++mParent.mActiveChildren;
+            }
+            startTasks();
+        }
+        drainHandoff();
+    }
+
+    /**
+     * 把已添加的任务放入等待派发的队列并派发，调用方需持有mDispatchLock
+     */
+    private void startTasks() {
+        mFinishing = false;
+        mProgressFinishedCount = 0;
+        mProgressClosed = false;
+        for (int i=0; i<mTaskList.size(); i++) {
+            Task task = mTaskList.get(i);
+            // 等待同键前序任务的任务由前序任务完成时派发
+            if (!task.mHeld) enqueuePending(task);
+        }
+        dispatchPending();
+    }
+
+    /**
+     * 任务队列停止、清理和触发队列完成的回调
+     */
+    public void stop() {
+
+        // 获得队列里任务的完成结果
+        Map<String, Object> result = null; //结果集合
+        TaskResultMap resultMap = null;
+        synchronized (mDispatchLock) {
+            // 下面取消任务时计数归零不再触发stop()，只回调一次onFinished
+            mFinishing = true;
+            if (mResultMapPool != null) {
+                // 任务池模式：结果集合是已完成任务的视图，不分配内存
+                resultMap = mResultMapPool.poll();
+                if (resultMap == null) resultMap = new TaskResultMap();
+                for (int i=0; i<mTaskList.size(); i++) {
+                    Task<?> task = mTaskList.get(i);
+                    if (task.isDone()) {
+                        // 结果集合持有引用，onFinished回调结束后释放
+                        task.retain();
+                        resultMap.mTasks.add(task);
+                    }
+                }
+                result = resultMap;
+            }
+            else {
+                result = mOrderedResults ? new LinkedHashMap<String, Object>() : new HashMap<String, Object>();
+                for (int i=0; i<mTaskList.size(); i++) {
+                    Task<Object> futureTask = (Task<Object>)mTaskList.get(i);
+//                    System.out.println(">>> 遍历任务检查状态，taskName=" + entry.getKey() + ", isDone=" + futureTask.isDone());
+                    if (futureTask.isDone()) {
+                        try {
+                            if (futureTask.isCancelled())
+                                result.put(futureTask.getName(), null);
+                            else
+                                result.put(futureTask.getName(), futureTask.get());
+                        } catch (InterruptedException e) { //中断异常
+                            result.put(futureTask.getName(), e);
+                        } catch (ExecutionException e) { //执行中抛出的异常（已记录为FAILED事件）
+                            result.put(futureTask.getName(), e);
+                        }
+                    }
+                }
+            }
+        }
+
+//        // 停止定时检查队列完成状态的任务
+//        if (mScheduledPool != null) {
+//            mScheduledPool.shutdownNow();
+//            mScheduledPool = null;
+//        }
+
+        // 取消队列中所有的任务，包括执行中和未执行的; 清理缓存对象
+        cancelAll();
+
+        // 之后完成的任务（如被中断的任务晚到的完成）不再记录进度，保证onFinished之后没有进度回调
+        synchronized (mDispatchLock) {
+            mProgressClosed = true;
+        }
+
+        // 触发队列完成的回调
+        if (mCallbackExecutor == null) {
+            finishQueue(result, resultMap);
+        }
+        else {
+            final Map<String, Object> finalResult = result;
+            final TaskResultMap finalResultMap = resultMap;
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    finishQueue(finalResult, finalResultMap);
+                }
+            });
+        }
+
+        // 子队列完成后，父队列可能也完成了
+        if (mParent != null) {
+            mParent.childFinished();
+        }
+    }
+
+    /**
+     * 回调onFinished；任务池模式下回调结束后释放结果集合对任务的引用
+     */
+    private void finishQueue(Map<String, Object> result, TaskResultMap resultMap) {
+        // 先回调尚未回调的进度（如限速推迟的进度回调），之后执行的进度回调已无内容
+        dispatchProgress();
+        if (mQueueFinishedCallback != null) mQueueFinishedCallback.onFinished(result);
+
+        if (resultMap != null) {
+            synchronized (mDispatchLock) {
+                for (int i=0; i<resultMap.mTasks.size(); i++) {
+                    resultMap.mTasks.get(i).release();
+                }
+                resultMap.mTasks.clear();
+                if (mResultMapPool != null) mResultMapPool.add(resultMap);
+            }
+        }
+    }
+
+    /**
+     * 指定任务是否执行完成
+     * @param taskName 任务名称
+     * @return true=完成; false=未完成
+     */
+    public boolean isDone(String taskName) {
+        synchronized (mDispatchLock) {
+            for (int i=0; i<mTaskList.size(); i++) {
+                Task<?> task = mTaskList.get(i);
+                if (task != null && task.getName().equals(taskName)) {
+                    return task.isDone();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 指定任务是否已经取消了
+     * @param taskName 任务名称
+     * @return true=已经取消；false=未取消
+     */
+    public boolean isCancelled(String taskName) {
+        synchronized (mDispatchLock) {
+            for (int i=0; i<mTaskList.size(); i++) {
+                Task<?> task = mTaskList.get(i);
+                if (task != null && task.getName().equals(taskName)) {
+                    return task.isCancelled();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取消一个任务的执行
+     * @param taskName 任务名称
+     */
+    public void cancel(String taskName) {
+        // 在锁内移出任务，锁外取消（取消会触发任务完成的回调）
+        Task<?> found = null;
+        synchronized (mDispatchLock) {
+            for (int i=0; i<mTaskList.size(); i++) {
+                Task<?> task = mTaskList.get(i);
+                if (task != null && task.getName().equals(taskName)) {
+                    found = task;
+                    mTaskList.remove(i);
+                    break;
+                }
+            }
+        }
+        if (found == null) return;
+        found.cancel(true);
+        // 释放任务列表的引用
+        found.release();
+    }
+
+    /**
+     * 取消队列中所有的任务，包括执行中和未执行的; 清理缓存对象
+     */
+    public void cancelAll() {
+        List<Task<?>> unfinished = new ArrayList<>();
+        List<Runnable> abandoned = null;
+        List<TaskQueue> children = null;
+        synchronized (mDispatchLock) {
+            // 未开始的队列取消任务时不触发onFinished
+            if (!isRunning()) mFinishing = true;
+            // 未完成的任务都要取消，归还并发名额和未完成计数，之后可以再次start()
+            for (int i=0; i<mTaskList.size(); i++) {
+                Task<?> task = mTaskList.get(i);
+                if (!task.isDone()) {
+                    task.retain();
+                    unfinished.add(task);
+                }
+            }
+            releaseAll(mPendingTasks);
+            releaseAll(mReorderBuffer);
+            for (ArrayDeque<Task> lane : mKeyLanes.values()) {
+                releaseAll(lane);
+            }
+            mKeyLanes.clear();
+            // 停止对冲定时器
+            if (mHedgeTimer != null) {
+                mHedgeTimer.shutdownNow();
+                mHedgeTimer = null;
+            }
+            if (mElasticTimer != null) {
+                mElasticTimer.shutdownNow();
+                mElasticTimer = null;
+                mElasticCheckScheduled = false;
+                mHeapCheckScheduled = false;
+            }
+            // 中断进行中的批量操作的辅助线程，它们结束时归还名额
+            if (mBulkPool != null) {
+                mBulkPool.shutdownNow();
+                mBulkPool = null;
+            }
+            // 停止线程池
+            if (mPool != null) {
+                // 子队列借用的线程池不能关闭，只取消自己的任务
+                if (mParent == null) {
+                    // 线程池队列中还没执行的任务和对冲执行，取消任务后在锁外执行，释放引用和名额
+                    abandoned = mPool.shutdownNow();
+                }
+                // 置空后可以再次start()，继续执行之后添加的任务
+                mPool = null;
+            }
+            if (mActive) {
+                mActive = false;
+                --mParent.mActiveChildren;
+            }
+            // 清除缓存的任务列表
+            for (int i=0; i<mTaskList.size(); i++) {
+                mTaskList.get(i).release();
+            }
+            mTaskList.clear();
+            if (mChildren != null && !mChildren.isEmpty()) {
+                children = new ArrayList<>(mChildren);
+            }
+            // 唤醒等待队列空间的生产者，队列已停止，不再等待
+            mDispatchLock.notifyAll();
+        }
+        // 在锁外取消（取消会触发任务完成的回调）
+        for (int i=0; i<unfinished.size(); i++) {
+            unfinished.get(i).cancel(true);
+            unfinished.get(i).release();
+        }
+        // 任务都已取消，执行时直接返回
+        if (abandoned != null) {
+            for (int i=0; i<abandoned.size(); i++) {
+                abandoned.get(i).run();
+            }
+        }
+        // 一并取消子队列
+        if (children != null) {
+            for (int i=0; i<children.size(); i++) {
+                children.get(i).cancelAll();
+            }
+        }
+    }
+
+    /**
+     * 取消队列中所有未执行的任务
+     */
+    public void cancelAllUnexecuted() {
+//        Iterator<Map.Entry<String, FutureTask<?>>> it = mTaskList.entrySet().iterator();
+//        while(it.hasNext()){
+//            Map.Entry<String, FutureTask<?>> entry = it.next();
+//            FutureTask<?> futureTask = (FutureTask<?>)entry.getValue();
+//            if ( !futureTask.isDone() ) {
+//                futureTask.cancel(false);
+//                //map.put(key, "奇数");   //ConcurrentModificationException
+//                //map.remove(key);      //ConcurrentModificationException
+//                it.remove();        //OK
+//            }
+//        }
+
+        // 在锁内取出未执行的任务，锁外取消（取消会触发任务完成的回调）
+        List<Task<?>> unexecuted = new ArrayList<>();
+        synchronized (mDispatchLock) {
+            for (int i=mTaskList.size()-1; i>=0; i--) {
+                Task<?> task = mTaskList.get(i);
+                if (task != null && !task.isDone()) {
+                    unexecuted.add(task);
+                    mTaskList.remove(i);
+                }
+            }
+        }
+        for (int i=0; i<unexecuted.size(); i++) {
+            unexecuted.get(i).cancel(false);
+            // 释放任务列表的引用
+            unexecuted.get(i).release();
+        }
+
+    }
+
+    /**
+     * 设置队列完成时的回调
+     * @param callback 回调函数
+     */
+    public void setQueueFinishedCallback(IQueueFinishedCallback callback) {
+        if (callback == null) return;
+
+        mQueueFinishedCallback = callback;
+
+
+    }
+
+    /**
+     * 保持队列运行（流式添加任务，见TaskQueueProcessor）：保持期间任务全部完成也不自动stop()，
+     * 开始后陆续添加的任务不会因为队列暂时空闲而停止派发；
+     * 已完成的任务在回调结果后即从任务列表移除，内存不随添加的任务总数增长，onFinished的结果集合也不再包含它们。
+     * 需与releaseStream()成对调用
+     */
+    public void retainStream() {
+        synchronized (mDispatchLock) {
+            ++mStreamHolds;
+        }
+    }
+
+    /**
+     * 结束保持，此时任务已全部完成则stop()
+     */
+    public void releaseStream() {
+        boolean isFinished;
+        synchronized (mDispatchLock) {
+            if (mStreamHolds < 1) return;
+            --mStreamHolds;
+            isFinished = checkFinished();
+        }
+        if (isFinished) {
+            stop();
+        }
+    }
+
+    /**
+     * 已开始的子队列完成后调用，此时自己的任务也都已完成则stop()
+     */
+    private void childFinished() {
+        boolean isFinished;
+        synchronized (mDispatchLock) {
+            isFinished = isRunning() && checkFinished();
+        }
+        if (isFinished) {
+            stop();
+        }
+    }
+
+    private void queueFinished() {
+        boolean isFinished;
+        synchronized (mDispatchLock) {
+            --mAddingTaskCount;
+            isFinished = checkFinished();
+            // 唤醒等待队列空间的生产者
+            mDispatchLock.notifyAll();
+        }
+        if (isFinished) {
+            stop();
+        }
+    }
+
+    /**
+     * 任务、流式保持、子队列是否都已完成；是则标记为正在结束（只触发一次stop()），调用方需持有mDispatchLock
+     */
+    private boolean checkFinished() {
+        if (mAddingTaskCount >= 1 || mStreamHolds > 0 || mActiveChildren > 0 || mFinishing) return false;
+        mFinishing = true;
+        return true;
+    }
+
+    /**
+     * 创建任务，开启任务池时优先复用空闲的任务对象
+     */
+    @SuppressWarnings("unchecked")
+    private <V> Task<V> obtainTask(String taskName, Callable<V> callable) {
+        synchronized (mDispatchLock) {
+            if (mTaskPool != null) {
+                Task<V> task = mTaskPool.poll();
+                if (task != null) {
+                    task.reset(taskName, callable);
+                    return task;
+                }
+            }
+        }
+        return new Task<V>(taskName, callable);
+    }
+
+    /**
+     * 任务的引用全部释放后，任务池模式下放回任务池
+     */
+    private void recycleTask(Task<?> task) {
+        if (mTaskPool == null) return;
+        synchronized (mDispatchLock) {
+            if (mTaskPool != null && mTaskPool.size() < mTaskPoolSize) {
+                task.reset(null, null);
+                mTaskPool.add(task);
+            }
+        }
+    }
+
+    /**
+     * 清空容器并释放其中任务的引用，调用方需持有mDispatchLock
+     */
+    private void releaseAll(ArrayDeque<Task> tasks) {
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            task.release();
+        }
+    }
+
+    private void checkTaskName(String taskName) throws Exception {
+        if (taskName == null || taskName.length() < 1) {
+            throw new Exception("param \"taskName\" can't be empty.");
+        }
+    }
+
+    /**
+     * 队列是否已开始且未停止，调用方需持有mDispatchLock
+     */
+    private boolean isRunning() {
+        return mPool != null && !mPool.isShutdown();
+    }
+
+    /**
+     * 按容量和溢出策略把任务加入队列，队列已开始时立即派发
+     * @param task 任务
+     * @param timeoutNanos BLOCK策略下的最长等待时间（纳秒），小于0表示一直等待，0表示不等待
+     * @return true=已添加；false=未添加
+     * @throws InterruptedException 等待时被中断
+     */
+    private boolean offer(Task<?> task, long timeoutNanos) throws InterruptedException {
+        boolean added = false;
+        try {
+            added = offerTask(task, timeoutNanos);
+        } finally {
+            // 未添加的任务没有其他引用，直接回到任务池
+            if (!added) task.release();
+            if (mOverflowPolicy == OverflowPolicy.DROP_OLDEST) finishEvicted();
+        }
+        drainHandoff();
+        return added;
+    }
+
+    /**
+     * 完成被DROP_OLDEST移除的任务：在锁外执行完成的回调（取消会触发任务完成的回调），并释放任务列表的引用
+     */
+    private void finishEvicted() {
+        while (true) {
+            Task<?> task;
+            synchronized (mDispatchLock) {
+                task = mEvictedTasks.poll();
+            }
+            if (task == null) return;
+            task.finishCompletion();
+            task.release();
+        }
+    }
+
+    /**
+     * 见offer()，环形队列派发时选出的任务留给调用方在锁外交给线程池
+     */
+    private boolean offerTask(Task<?> task, long timeoutNanos) throws InterruptedException {
+        synchronized (mDispatchLock) {
+            if (mCapacity > 0 && mAddingTaskCount >= mCapacity) {
+                if (mOverflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    return false;
+                }
+                else if (mOverflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                    if (!evictOldest()) return false;
+                }
+                else {
+                    long deadline = System.nanoTime() + timeoutNanos;
+                    while (mCapacity > 0 && mAddingTaskCount >= mCapacity) {
+                        // 未开始或已停止的队列不会再腾出空间
+                        if (!isRunning() || timeoutNanos == 0) return false;
+                        if (timeoutNanos < 0) {
+                            mDispatchLock.wait();
+                        }
+                        else {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) return false;
+                            TimeUnit.NANOSECONDS.timedWait(mDispatchLock, remaining);
+                        }
+                    }
+                }
+            }
+
+            mTaskList.add(task);
+            ++mAddingTaskCount;
+            recordEvent(TaskEvent.Type.ENQUEUED, task, 0, null);
+            if (mOrderedResults && mTaskResultCallback != null) {
+                task.retain();
+                mReorderBuffer.add(task);
+            }
+            if (task.mKey != null) {
+                ArrayDeque<Task> lane = mKeyLanes.get(task.mKey);
+                if (lane != null) {
+                    // 同键已有未完成的任务，排在其后等待
+                    task.mHeld = true;
+                    task.retain();
+                    lane.add(task);
+                    return true;
+                }
+                mKeyLanes.put(task.mKey, new ArrayDeque<Task>(2));
+            }
+            if (isRunning()) {
+                enqueuePending(task);
+                dispatchPending();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 移除最早添加、尚未派发执行的任务，调用方需持有mDispatchLock。
+     * 锁内只把任务标记为取消（之后不会再被派发），完成的回调由offer()在锁外执行，见finishEvicted()
+     * @return true=已移除一个任务；false=没有可移除的任务
+     */
+    private boolean evictOldest() {
+        for (int i=0; i<mTaskList.size(); i++) {
+            Task<?> task = mTaskList.get(i);
+            if (!task.mDispatched && task.mState.compareAndSet(Task.NEW, Task.CANCELLED)) {
+                mTaskList.remove(i);
+                // 任务列表的引用转给mEvictedTasks，完成后释放
+                mEvictedTasks.add(task);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 回调单个任务的结果。有序模式下从重排缓冲的队头开始，回调所有已完成的连续任务
+     * @param task 刚完成的任务
+     */
+    private void emitResults(Task<?> task) {
+        ITaskResultCallback callback = mTaskResultCallback;
+        if (callback == null) return;
+
+        if (!mOrderedResults) {
+            deliverResult(callback, task);
+            return;
+        }
+        // 持有mDispatchLock时不回调，避免与下面的加锁顺序相反；之后完成的任务会接着回调
+        if (Thread.holdsLock(mDispatchLock)) return;
+        // 串行回调，保证顺序；后完成的线程会等前面的回调结束再继续，所有结果都在onFinished之前回调完
+        synchronized (mEmitLock) {
+            while (true) {
+                Task<?> head;
+                synchronized (mDispatchLock) {
+                    head = mReorderBuffer.peek();
+                    if (head == null || !head.isDone()) return;
+                    mReorderBuffer.poll();
+                }
+                deliverResult(callback, head);
+                // 释放重排缓冲的引用
+                head.release();
+            }
+        }
+    }
+
+    /**
+     * 回调单个任务的结果，设置了回调执行器时投递到执行器
+     */
+    private void deliverResult(final ITaskResultCallback callback, Task<?> task) {
+        // 先取出结果，任务之后可能被回收复用
+        final String taskName = task.getName();
+        final Object result = task.mResult.getValue();
+        if (mCallbackExecutor == null) {
+            callback.onResult(taskName, result);
+            return;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(taskName, result);
+            }
+        });
+    }
+
+    /**
+     * 在回调执行器上执行；未设置或执行器已关闭时在当前线程执行
+     */
+    private void deliver(Runnable runnable) {
+        Executor executor = mCallbackExecutor;
+        if (executor != null) {
+            try {
+                executor.execute(runnable);
+                return;
+            } catch (RejectedExecutionException e) {
+                // 执行器已关闭（如Looper已退出），在当前线程回调
+            }
+        }
+        runnable.run();
+    }
+
+    /**
+     * 记录一个完成的任务，没有待执行的进度回调时投递一次
+     * @param task 完成的任务
+     */
+    private void reportProgress(Task<?> task) {
+        if (mProgressCallback == null) return;
+        synchronized (mDispatchLock) {
+            if (mProgressClosed) return;
+            ++mProgressFinishedCount;
+            mProgressResults.put(task.getName(), task.mResult.getValue());
+            // 已有待执行的回调，合并到其中
+            if (mProgressScheduled) return;
+            mProgressScheduled = true;
+        }
+        deliverProgress();
+    }
+
+    /**
+     * 投递进度回调；回调执行器是HandlerExecutor时限速投递，每个最小间隔最多回调一次
+     */
+    private void deliverProgress() {
+        Executor executor = mCallbackExecutor;
+        if (executor instanceof HandlerExecutor) {
+            try {
+                ((HandlerExecutor) executor).executePaced(mProgressDispatch);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Looper已退出，在当前线程回调
+            }
+        }
+        deliver(mProgressDispatch);
+    }
+
+    /**
+     * 执行进度回调，一次取走所有已记录的任务
      */
-    public int getMaxConcurrentThreadCount() {
-        return maxConcurrentRequestCount;
+    private void dispatchProgress() {
+        while (true) {
+            IProgressCallback callback;
+            Map<String, Object> results;
+            int finishedCount;
+            synchronized (mDispatchLock) {
+                callback = mProgressCallback;
+                if (callback == null || mProgressResults.isEmpty()) {
+                    mProgressResults.clear();
+                    mProgressScheduled = false;
+                    return;
+                }
+                results = mProgressResults;
+                mProgressResults = new LinkedHashMap<>();
+                finishedCount = mProgressFinishedCount;
+            }
+            callback.onProgress(finishedCount, results);
+
+            // 回调期间又有任务完成：有执行器时重新投递（HandlerExecutor的最小间隔使其落到下一帧），否则直接继续
+            if (mCallbackExecutor != null) {
+                synchronized (mDispatchLock) {
+                    if (mProgressResults.isEmpty()) {
+                        mProgressScheduled = false;
+                        return;
+                    }
+                }
+                deliverProgress();
+                return;
+            }
+        }
     }
 
     /**
-     * 设置最大并发线程数
-     * @param maxConcurrentRequestCount
+     * 把任务放入等待派发的队列，调用方需持有mDispatchLock
      */
-    public void setMaxConcurrentThreadCount(int maxConcurrentRequestCount) {
-        this.maxConcurrentRequestCount = maxConcurrentRequestCount;
+    private void enqueuePending(Task task) {
+        task.mQueuedNanos = System.nanoTime();
+        task.retain();
+        mPendingTasks.add(task);
     }
 
     /**
-     * 得到线程池的执行工具
-     * @return 线程池对象
+     * 在并发上限内把等待中的任务派发到线程池，调用方需持有mDispatchLock
      */
-    private ExecutorService getPool() {
-        /*
-        注：线程池类型：
-        1. newSingleThreadExecutor 创建一个单线程的线程池。这个线程池只有一个线程在工作，也就是相当于单线程串行执行所有任务。
-        2. newFixedThreadPool 创建固定大小的线程池。每次提交一个任务就创建一个线程，直到线程达到线程池的最大大小。
-        3. newCachedThreadPool 创建一个可缓存的线程池。如果线程池的大小超过了处理任务所需要的线程，那么就会回收部分空闲（60秒不执行任务）的线程，
-        当任务数增加时，此线程池又可以智能的添加新线程来处理任务。
-        此线程池不会对线程池大小做限制，线程池大小完全依赖于操作系统（或者说JVM）能够创建的最大线程大小。
-        4.newScheduledThreadPool 创建一个大小无限的线程池。此线程池支持定时以及周期性执行任务的需求。
-
-        在JDK帮助文档中，有如此一段话：
-        “强烈建议程序员使用较为方便的Executors工厂方法Executors.newCachedThreadPool()（无界线程池，可以进行自动线程回收）
-
-        本模块考虑实际业务场景可能存在串行或并行等多种情况，所以交由开发者决定
-         */
-        if (mPool == null) {
-            if (maxConcurrentRequestCount == 1) {
-                mPool = Executors.newSingleThreadExecutor();
+    private void dispatchPending() {
+        TaskQueue root = this;
+        while (root.mParent != null) root = root.mParent;
+        ElasticPoolSize elastic = root.mElasticPool;
+        while (true) {
+            while (!mPendingTasks.isEmpty() && hasConcurrencyBudget()) {
+                Task task = mPendingTasks.poll();
+                // 派发前已被取消的任务不占用并发名额
+                if (task.isDone()) {
+                    task.release();
+                    continue;
+                }
+                // 等待派发队列的引用转给线程池，执行结束时释放
+                task.mDispatched = true;
+                // 同时占用所有上级队列的名额
+                for (TaskQueue queue = this; queue != null; queue = queue.mParent) {
+                    ++queue.mRunningCount;
+                }
+                if (mPool instanceof RingBufferExecutor) {
+                    // 环形队列满时execute()会等待，不能在锁内调用；名额已占用，交给线程池放到锁外
+                    Task<?> top;
+                    do {
+                        top = root.mHandoff.get();
+                        task.mNextHandoff = top;
+                    } while (!root.mHandoff.compareAndSet(top, task));
+                }
+                else {
+                    mPool.execute(task);
+                }
             }
-//            else if (maxConcurrentRequestCount > 1 && maxConcurrentRequestCount < 11) {
-//                mPool = Executors.newFixedThreadPool(maxConcurrentRequestCount);
-//                // 一个线程1M，考虑手机内存控制，当大于10个线程，则用newCachedThreadPool
-////                mPool = Executors.newCachedThreadPool();
-//            }
-//            else if (maxConcurrentRequestCount > 10) {
-            else {
-                // 一个线程1M，考虑手机内存控制，当大于10个线程，则用newCachedThreadPool
-                mPool = Executors.newCachedThreadPool();
+            if (elastic == null) return;
+            long now = System.nanoTime();
+            elastic.onActivity(root.mRunningCount, now);
+            Task head = mPendingTasks.peek();
+            // 仍有任务在等待名额，排队过久时扩容后继续派发
+            if (head == null || !elastic.onQueueWait(now - head.mQueuedNanos, now)) {
+                root.applyPoolKeepAlive(now);
+                root.scheduleHeapCheck();
+                // 执行中的任务可能长时间不结束，定时再检查排队时间
+                if (head != null) root.scheduleElasticCheck();
+                return;
             }
         }
-        return mPool;
     }
 
-    ////////////////////////////////////////////////////////////////
-    // 类生命周期函数
-    ////////////////////////////////////////////////////////////////
-    public TaskQueue() {
-        this(null);
+    /**
+     * 安排一次排队时间检查：growWait后在整棵树中重新派发，排队过久时扩容。调用方需持有mDispatchLock
+     */
+    private void scheduleElasticCheck() {
+        if (mElasticCheckScheduled || !isRunning()) return;
+        try {
+            getElasticTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mDispatchLock) {
+                        mElasticCheckScheduled = false;
+                        dispatchTree();
+                    }
+                    drainHandoff();
+                }
+            }, Math.max(mElasticPool.getGrowWaitNanos(), TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+            mElasticCheckScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // 队列已停止
+        }
     }
 
-    public TaskQueue(IQueueFinishedCallback callback) {
-        // 缓存callback、初始化定时任务线程池（检查是否全部完成和callback）
-        setQueueFinishedCallback(callback);
-        // 初始化任务列表
-//        mTaskList = new HashMap<String, FutureTask<?>>();
-        mTaskList = new ArrayList<>();
+    /**
+     * 开启了堆检查时安排定时检查堆占用，不在派发路径上检查；队列停止时随定时器一起停止。调用方需持有mDispatchLock
+     */
+    private void scheduleHeapCheck() {
+        if (mHeapCheckScheduled || mElasticPool.getHeapThreshold() <= 0 || !isRunning()) return;
+        try {
+            getElasticTimer().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mDispatchLock) {
+                        long now = System.nanoTime();
+                        if (mElasticPool != null && mElasticPool.checkHeap(now)) applyPoolKeepAlive(now);
+                    }
+                }
+            }, ElasticPoolSize.HEAP_CHECK_INTERVAL_MILLIS, ElasticPoolSize.HEAP_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            mHeapCheckScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // 队列已停止
+        }
     }
 
-
-    ////////////////////////////////////////////////////////////////
-    // 方法定义
-    ////////////////////////////////////////////////////////////////
-
     /**
-     * 添加一个任务，立即执行
-     * @param taskName 任务名，每个任务的唯一标识符
-     * @param task 要执行的任务（实现Callable的类）
-     * @param <V> 任务执行完返回的类型
-     * @throws Exception
+     * 得到弹性线程池的定时器，没有时创建。调用方需持有mDispatchLock
      */
-    public <V> void add(String taskName, Callable<V> task) throws Exception {
-        if (taskName == null || taskName.length() < 1) {
-            throw new Exception("param \"taskName\" can't be empty.");
+    private ScheduledExecutorService getElasticTimer() {
+        if (mElasticTimer == null) {
+            mElasticTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TaskQueue-elastic");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
-
-        // 创建任务
-////        FutureTask<V> futureTask = new FutureTask<V>(task);
-//        Task<V> futureTask = new Task<V>(task);
-//
-//        // 添加任务到列表
-//        Map<String, FutureTask<?>> hashMap = new HashMap<String, FutureTask<?>>();
-//        hashMap.put(taskName, futureTask);
-        Task<V> futureTask = new Task<V>(taskName, task);
-        mTaskList.add(futureTask);
-        //
-        ++mAddingTaskCount;
-//        if (mPool != null) {
-//            // 执行任务
-//            getPool().execute(futureTask);
-//        }
+        return mElasticTimer;
     }
 
     /**
-     * 任务队列开始执行
+     * 把锁内选出的任务交给环形队列线程池，在释放mDispatchLock后调用。
+     * 完成任务、添加任务的多个线程可以同时交接（环形队列支持多生产者），不在全局锁内排队
      */
-    public void start() {
-        // 如果线程池对象不为空，表示已经运行队列了，则退出
-        if (mPool != null) return;
-
-//        // 定时检查队列完成状态的任务
-//        if (mScheduledPool != null) {
-//            mScheduledPool.shutdownNow();
-//            mScheduledPool = null;
-//        }
-//        mScheduledPool = new ScheduledThreadPoolExecutor(1);
-//        mScheduledPool.scheduleAtFixedRate(new Runnable() {
-//            @Override
-//            public void run() {
-//                if (mTaskList == null || mTaskList.size() < 1) {
-//                    return;
-//                }
-//
-//                // 统计队列里完成的数量和结果值
-//                int count = 0;
-//                Map<String, Object> result = new HashMap<String, Object>(); //结果集合
-//                for (Map.Entry entry : mTaskList.entrySet()) {
-//                    FutureTask<Object> futureTask = (FutureTask<Object>)entry.getValue();
-//                    System.out.println(">>> 遍历任务检查状态，taskName=" + entry.getKey() + ", isDone=" + futureTask.isDone());
-//                    if ( futureTask.isDone() ) {
-//                        ++count;
-//                        try {
-//                            if (futureTask.isCancelled())
-//                                result.put(entry.getKey().toString(), null);
-//                            else
-//                                result.put(entry.getKey().toString(), futureTask.get());
-//                        } catch (InterruptedException e) { //中断异常
-//                            e.printStackTrace();
-//                            result.put(entry.getKey().toString(), e);
-//                        } catch (ExecutionException e) { //执行中抛出的异常
-//                            e.printStackTrace();
-//                            result.put(entry.getKey().toString(), e);
-//                        }
-//                    }
-//                }
-//
-//                // 如果队列里任务都完成，则执行完成回调
-//                if (count == mTaskList.size()) {
-//                    if (mQueueFinishedCallback != null) {
-//                        mQueueFinishedCallback.onFinished(result);
-//                    }
-//                    mTaskList.clear();
-//                }
-//            }
-//        }, 1, 1, TimeUnit.SECONDS);
-
+    private void drainHandoff() {
+        TaskQueue root = this;
+        while (root.mParent != null) root = root.mParent;
+        Task<?> task = root.mHandoff.getAndSet(null);
+        if (task == null) return;
 
-        for (int i=0; i<mTaskList.size(); i++) {
-            Task futureTask = mTaskList.get(i);
-            getPool().execute(futureTask);
+        // 栈顶是最后选出的任务，反转为派发的顺序
+        Task<?> ordered = null;
+        while (task != null) {
+            Task<?> next = task.mNextHandoff;
+            task.mNextHandoff = ordered;
+            ordered = task;
+            task = next;
+        }
+        ExecutorService pool = root.mPool;
+        while (ordered != null) {
+            Task<?> next = ordered.mNextHandoff;
+            ordered.mNextHandoff = null;
+            try {
+                if (pool == null) throw new RejectedExecutionException();
+                pool.execute(ordered);
+            } catch (RejectedExecutionException e) {
+                // 队列已停止，取消后归还名额，释放线程池的引用
+                ordered.cancel(false);
+                ordered.release();
+            }
+            ordered = next;
         }
     }
 
     /**
-     * 任务队列停止、清理和触发队列完成的回调
+     * 内存紧张时把空闲线程的存活时间设为最短，使空闲线程立即回收，恢复后还原。调用方需持有mDispatchLock
      */
-    public void stop() {
+    private void applyPoolKeepAlive(long nowNanos) {
+        if (mElasticPool == null || !(mPool instanceof ThreadPoolExecutor)) return;
+        long keepAlive = mElasticPool.isLowMemory(nowNanos) ? 1 : mElasticPool.getKeepAliveNanos();
+        if (keepAlive == mPoolKeepAliveNanos) return;
+        mPoolKeepAliveNanos = keepAlive;
+        ((ThreadPoolExecutor) mPool).setKeepAliveTime(keepAlive, TimeUnit.NANOSECONDS);
+    }
 
-        // 获得队列里任务的完成结果
-        Map<String, Object> result = new HashMap<String, Object>(); //结果集合
-        for (int i=0; i<mTaskList.size(); i++) {
-            Task<Object> futureTask = (Task<Object>)mTaskList.get(i);
-//            System.out.println(">>> 遍历任务检查状态，taskName=" + entry.getKey() + ", isDone=" + futureTask.isDone());
-            if (futureTask.isDone()) {
-                try {
-                    if (futureTask.isCancelled())
-                        result.put(futureTask.getName(), null);
-                    else
-                        result.put(futureTask.getName(), futureTask.get());
-                } catch (InterruptedException e) { //中断异常
-                    e.printStackTrace();
-                    result.put(futureTask.getName(), e);
-                } catch (ExecutionException e) { //执行中抛出的异常
-                    e.printStackTrace();
-                    result.put(futureTask.getName(), e);
-                }
-            }
+    /**
+     * 本队列和所有上级队列是否都还有并发名额，调用方需持有mDispatchLock
+     */
+    private boolean hasConcurrencyBudget() {
+        for (TaskQueue queue = this; queue != null; queue = queue.mParent) {
+            if (queue.mRunningCount >= queue.getCurrentConcurrencyLimit()) return false;
         }
+        return true;
+    }
 
-//        // 停止定时检查队列完成状态的任务
-//        if (mScheduledPool != null) {
-//            mScheduledPool.shutdownNow();
-//            mScheduledPool = null;
-//        }
+    /**
+     * 有并发名额释放后，从根队列开始派发整棵树中等待的任务，子队列轮流派发。调用方需持有mDispatchLock
+     */
+    private void dispatchTree() {
+        if (isRunning()) dispatchPending();
+        if (mChildren == null || mChildren.isEmpty()) return;
 
-        // 取消队列中所有的任务，包括执行中和未执行的; 清理缓存对象
-        cancelAll();
+        int count = mChildren.size();
+        int first = mNextChild % count;
+        mNextChild = first + 1;
+        for (int i=0; i<count; i++) {
+            if (!hasConcurrencyBudget()) return;
+            mChildren.get((first + i) % count).dispatchTree();
+        }
+    }
 
-            // 触发队列完成的回调
-        if (mQueueFinishedCallback != null) mQueueFinishedCallback.onFinished(result);
+    /**
+     * 任务完成（含取消）后释放并发名额、记录自适应样本，并派发后续任务
+     * @param task 完成的任务
+     */
+    private void taskDone(Task<?> task) {
+        int state = task.mState.get();
+        long durationNanos = task.mStartNanos != 0 ? System.nanoTime() - task.mStartNanos : 0;
+        if (state == Task.CANCELLED) recordEvent(TaskEvent.Type.CANCELLED, task, durationNanos, null);
+        else if (state == Task.EXCEPTIONAL) recordEvent(TaskEvent.Type.FAILED, task, durationNanos, (Throwable) task.mOutcome);
+        else recordEvent(TaskEvent.Type.FINISHED, task, durationNanos, null);
 
+        synchronized (mDispatchLock) {
+            // 流式模式下完成的任务移出任务列表，释放其引用（done()期间还持有引用，之后才可能回到任务池）
+            if (mStreamHolds > 0 && mTaskList.remove(task)) {
+                task.release();
+            }
+            if (task.mBreaker != null) {
+                if (task.isCancelled()) task.mBreaker.onIgnored(task.mBreakerPermit);
+                else task.mBreaker.onResult(task.mBreakerPermit, System.nanoTime() - task.mStartNanos,
+                        task.mState.get() != Task.NORMAL);
+                task.mBreaker = null;
+            }
+            if (task.mHedge != null && task.mStartNanos != 0 && task.mState.get() == Task.NORMAL) {
+                task.mHedge.recordLatency(System.nanoTime() - task.mStartNanos);
+            }
+            // 取消（cancelAll、对冲执行的另一方等）不反映上游的处理能力，不作为样本，否则会误减并发上限
+            if (task.mDispatched && mAdaptiveLimit != null && task.mStartNanos != 0 && !task.isCancelled()) {
+                mAdaptiveLimit.onSample(System.nanoTime() - task.mStartNanos, mRunningCount,
+                        task.mState.get() == Task.EXCEPTIONAL);
+            }
+            // 执行线程还没离开（如不响应中断的任务被取消）时，名额和串行键由它离开时释放，避免同键任务并发、超出并发上限
+            if (!task.deferRelease()) releaseRunLocked(task);
 
+            // 释放的名额可能属于上级队列，由根队列在整棵树中派发
+            TaskQueue root = this;
+            while (root.mParent != null) root = root.mParent;
+            root.dispatchTree();
+        }
+        drainHandoff();
     }
 
     /**
-     * 指定任务是否执行完成
-     * @param taskName 任务名称
-     * @return true=完成; false=未完成
+     * 完成的任务的最后一个执行线程离开后，释放推迟的并发名额和串行键，并派发后续任务
+     * @param task 完成的任务
      */
-    public boolean isDone(String taskName) {
+    private void releaseRun(Task<?> task) {
+        synchronized (mDispatchLock) {
+            releaseRunLocked(task);
+            TaskQueue root = this;
+            while (root.mParent != null) root = root.mParent;
+            root.dispatchTree();
+        }
+        drainHandoff();
+    }
 
-        for (int i=0; i<mTaskList.size(); i++) {
-            Task<?> task = mTaskList.get(i);
-            if (task != null && task.getName().equals(taskName)) {
-                return task.isDone();
+    /**
+     * 放行同键的下一个任务，归还任务占用的并发名额。调用方需持有mDispatchLock
+     * @param task 完成的任务
+     */
+    private void releaseRunLocked(Task<?> task) {
+        if (task.mKey != null) {
+            advanceKeyLane(task);
+        }
+        if (task.mDispatched) {
+            task.mDispatched = false;
+            for (TaskQueue queue = this; queue != null; queue = queue.mParent) {
+                --queue.mRunningCount;
             }
         }
-        return false;
     }
 
     /**
-     * 指定任务是否已经取消了
-     * @param taskName 任务名称
-     * @return true=已经取消；false=未取消
+     * 按转存设置把大的结果移出Java堆，在完成任务的线程上执行。转存出错时保留原结果
+     * @param result 任务的返回值
+     * @return SpilledResult句柄或原结果
      */
-    public boolean isCancelled(String taskName) {
+    private Object spillResult(Object result) {
+        ResultSpiller spiller = mResultSpiller;
+        if (spiller == null || result == null) return result;
+        try {
+            return spiller.spill(result);
+        } catch (IOException e) {
+            // 如磁盘已满，结果仍在堆上，不影响任务本身
+            return result;
+        }
+    }
 
-        for (int i=0; i<mTaskList.size(); i++) {
-            Task<?> task = mTaskList.get(i);
-            if (task != null && task.getName().equals(taskName)) {
-                return task.isCancelled();
-            }
+    /**
+     * 记录任务事件：写入黑匣子，设置了监听器时实时回调
+     * @param type 事件类型
+     * @param task 任务
+     * @param durationNanos 执行耗时（纳秒），没有则为0
+     * @param error 异常，没有则为null
+     */
+    private void recordEvent(TaskEvent.Type type, Task<?> task, long durationNanos, Throwable error) {
+        TaskFlightRecorder recorder = mFlightRecorder;
+        ITaskEventListener listener = mTaskEventListener;
+        if (recorder == null && listener == null) return;
+        long now = System.nanoTime();
+        if (recorder != null) {
+            recorder.record(type, task.mTaskName, now, durationNanos, error);
+        }
+        if (listener != null) {
+            listener.onEvent(new TaskEvent(-1, type, task.mTaskName, now, durationNanos, Thread.currentThread().getId(), error));
         }
-        return false;
     }
 
     /**
-     * 取消一个任务的执行
-     * @param taskName 任务名称
+     * 在调用线程和辅助线程上并行执行批量任务，等待全部完成
      */
-    public void cancel(String taskName) {
+    @SuppressWarnings("unchecked")
+    private <T, R> BulkJob<T, R> runBulk(Collection<? extends T> items, IMapper<? super T, ? extends R> mapper,
+                                         IReducer<R> reducer) throws Exception {
+        // 分块按下标领取，需要随机访问
+        List<? extends T> list = items instanceof List && items instanceof RandomAccess
+                ? (List<? extends T>) items : new ArrayList<T>(items);
+        int parallelism = getCurrentConcurrencyLimit();
+        if (parallelism == Integer.MAX_VALUE) parallelism = Runtime.getRuntime().availableProcessors();
+        parallelism = Math.max(1, Math.min(parallelism, list.size()));
 
-        for (int i=0; i<mTaskList.size(); i++) {
-            Task<?> task = mTaskList.get(i);
-            if (task != null && task.getName().equals(taskName)) {
-                task.cancel(true);
-                mTaskList.remove(task);
-                return;
+        final BulkJob<T, R> job = new BulkJob<>(list, mapper, reducer, parallelism);
+        int helpers = 0;
+        ExecutorService pool = null;
+        if (parallelism > 1) {
+            synchronized (mDispatchLock) {
+                // 与任务一样经过并发名额检查，名额在bulkHelperDone()中归还
+                while (helpers < parallelism - 1 && hasConcurrencyBudget()) {
+                    for (TaskQueue queue = this; queue != null; queue = queue.mParent) {
+                        ++queue.mRunningCount;
+                    }
+                    ++helpers;
+                }
+                if (helpers > 0) {
+                    TaskQueue root = this;
+                    while (root.mParent != null) root = root.mParent;
+                    if (root.mBulkPool == null) {
+                        root.mBulkPool = Executors.newCachedThreadPool(new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread = new Thread(r, "TaskQueue-bulk");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                    }
+                    pool = root.mBulkPool;
+                }
             }
         }
+        for (int i=0; i<helpers; i++) {
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            job.run();
+                        } finally {
+                            bulkHelperDone();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 队列已停止，归还名额，由调用线程执行
+                bulkHelperDone();
+            }
+        }
+        // 调用线程也领取分块，辅助线程来不及启动时也能完成全部工作
+        job.run();
+        try {
+            job.await();
+        } catch (InterruptedException e) {
+            // 让辅助线程不再领取新的分块
+            job.mError = e;
+            throw e;
+        }
+        if (job.mError != null) {
+            throw new ExecutionException(job.mError);
+        }
+        return job;
     }
 
     /**
-     * 取消队列中所有的任务，包括执行中和未执行的; 清理缓存对象
+     * 批量操作的辅助线程结束（或未能启动）：归还并发名额，派发等待中的任务
      */
-    public void cancelAll() {
-        // 停止线程池
-        if (mPool != null) {
-            mPool.shutdownNow();
+    private void bulkHelperDone() {
+        synchronized (mDispatchLock) {
+            for (TaskQueue queue = this; queue != null; queue = queue.mParent) {
+                --queue.mRunningCount;
+            }
+            TaskQueue root = this;
+            while (root.mParent != null) root = root.mParent;
+            root.dispatchTree();
         }
-        // 清除缓存的任务列表
-        mTaskList.clear();
+        drainHandoff();
     }
 
     /**
-     * 取消队列中所有未执行的任务
+     * 可对冲的任务开始执行时，按策略的延迟安排对冲定时
+     * @param task 开始执行的任务
      */
-    public void cancelAllUnexecuted() {
-//        Iterator<Map.Entry<String, FutureTask<?>>> it = mTaskList.entrySet().iterator();
-//        while(it.hasNext()){
-//            Map.Entry<String, FutureTask<?>> entry = it.next();
-//            FutureTask<?> futureTask = (FutureTask<?>)entry.getValue();
-//            if ( !futureTask.isDone() ) {
-//                futureTask.cancel(false);
-//                //map.put(key, "奇数");   //ConcurrentModificationException
-//                //map.remove(key);      //ConcurrentModificationException
-//                it.remove();        //OK
-//            }
-//        }
-
-        for (int i=mTaskList.size()-1; i>=0; i--) {
-            Task<?> task = mTaskList.get(i);
-            if (task != null && !task.isDone()) {
-                task.cancel(false);
-                mTaskList.remove(i);
+    private void scheduleHedge(final Task<?> task) {
+        ScheduledExecutorService timer;
+        synchronized (mDispatchLock) {
+            ++mHedgeableCount;
+            if (!isRunning() || mHedgeBudget <= 0) return;
+            if (mHedgeTimer == null) {
+                mHedgeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "TaskQueue-hedge");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
             }
+            timer = mHedgeTimer;
+        }
+        // 对冲定时持有引用，到期时释放；定时器被关闭时不释放，任务不再回到任务池
+        task.retain();
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        launchHedge(task);
+                    } finally {
+                        task.release();
+                    }
+                }
+            }, task.mHedge.getDelayNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // 队列已停止
+            task.release();
         }
-
     }
 
     /**
-     * 设置队列完成时的回调
-     * @param callback 回调函数
+     * 对冲定时到达：任务仍在执行、预算允许且有空闲的并发名额时，在线程池上发起对冲执行。
+     * 对冲执行和普通任务一样占用本队列及所有上级队列的并发名额，名额用满时不对冲：
+     * 此时对冲只能排在慢任务后面（单线程、环形队列线程池），不能并行竞速，反而增加负载
+     * @param task 可对冲的任务
      */
-    public void setQueueFinishedCallback(IQueueFinishedCallback callback) {
-        if (callback == null) return;
-
-        mQueueFinishedCallback = callback;
-
+    private void launchHedge(final Task<?> task) {
+        ExecutorService pool;
+        synchronized (mDispatchLock) {
+            if (task.mState.get() != Task.RUNNING || !isRunning()) return;
+            if (mHedgeCount >= Math.max(1, mHedgeBudget * mHedgeableCount)) return;
+            if (!hasConcurrencyBudget()) return;
+            // 先计入对冲次数，对冲执行未真正开始时在hedgeDone()中退回
+            ++mHedgeCount;
+            for (TaskQueue queue = this; queue != null; queue = queue.mParent) {
+                ++queue.mRunningCount;
+            }
+            pool = mPool;
+            // 对冲执行持有引用，runHedge()结束时释放
+            task.retain();
+        }
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    task.runHedge();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 队列已停止
+            hedgeDone(false);
+            task.release();
+        }
+    }
 
+    /**
+     * 对冲执行结束：归还并发名额并派发等待中的任务
+     * @param started 对冲执行是否真正开始执行了任务，未开始时退回对冲次数
+     */
+    private void hedgeDone(boolean started) {
+        synchronized (mDispatchLock) {
+            if (!started) --mHedgeCount;
+            for (TaskQueue queue = this; queue != null; queue = queue.mParent) {
+                --queue.mRunningCount;
+            }
+            TaskQueue root = this;
+            while (root.mParent != null) root = root.mParent;
+            root.dispatchTree();
+        }
+        drainHandoff();
     }
 
-    private void queueFinished() {
-        --mAddingTaskCount;
-        if (mAddingTaskCount < 1) {
-            stop();
+    /**
+     * 带串行键的任务完成（含取消）后，放行同键的下一个任务；键上没有任务时回收该键的队列。
+     * 调用方需持有mDispatchLock
+     * @param task 完成的任务
+     */
+    private void advanceKeyLane(Task<?> task) {
+        ArrayDeque<Task> lane = mKeyLanes.get(task.mKey);
+        if (lane == null) return;
+
+        if (task.mHeld) {
+            // 还在等待中就被取消的任务，直接移出
+            task.mHeld = false;
+            if (lane.remove(task)) task.release();
+            return;
+        }
+        Task next = lane.poll();
+        if (next == null) {
+            mKeyLanes.remove(task.mKey);
+            return;
         }
+        next.mHeld = false;
+        if (isRunning()) enqueuePending(next);
+        next.release();
     }
 
 
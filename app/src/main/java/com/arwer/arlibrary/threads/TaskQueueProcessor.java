@@ -0,0 +1,340 @@
+package com.arwer.arlibrary.threads;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * @file TaskQueueProcessor.java
+ * @brief 把TaskQueue接入响应式流：从上游拉取元素，在TaskQueue的线程池上转换，再按下游的需求发布结果。
+ * @details 与add()全部任务再start()的推模式不同，这里是按需拉取，从上游到下游端到端背压：
+ *      1、只在下游有未满足的需求（request(n)）时才向上游请求元素；
+ *      2、已请求未发布的元素数不超过TaskQueue当前的并发上限（自适应模式下随之变化），即按线程空闲拉取；
+ *      3、每个结果都对应下游的一个需求，不需要缓冲，内存占用与并发数成正比，与流的总长度无关；
+ *      4、TaskQueue设置了setOrderedResults(true)时按上游的顺序发布结果，否则按完成的顺序发布。
+ *
+ *      转换出错（或返回null）时取消上游和未执行的任务，下游以onError结束。
+ *      TaskQueue由本类独占：会设置它的单个任务结果回调，流结束后TaskQueue自动stop()。只支持一个下游订阅者。
+ *      用法：TaskQueueProcessor<String, Bitmap> processor = new TaskQueueProcessor<>(taskQueue, decoder);
+ *           urlPublisher.subscribe(processor);
+ *           processor.subscribe(imageSubscriber);
+ * @version v1.0
+ * @author 创建人：LongJun
+ * @copyright Copyright (c) 2016 ArwerSoftware All rights reserved.
+ */
+public class TaskQueueProcessor<T, R> implements TaskFlow.Processor<T, R> {
+
+    ////////////////////////////////////////////////////////////////
+    // 下游的订阅关系
+    ////////////////////////////////////////////////////////////////
+    private final class DownstreamSubscription implements TaskFlow.Subscription {
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("request(n) requires n > 0, n=" + n));
+                return;
+            }
+            synchronized (mLock) {
+                if (mTerminated) return;
+                mDemand = mDemand + n < 0 ? Long.MAX_VALUE : mDemand + n;
+            }
+            drain();
+            requestUpstream();
+        }
+
+        @Override
+        public void cancel() {
+            TaskFlow.Subscription upstream;
+            synchronized (mLock) {
+                if (mTerminated) return;
+                mTerminated = true;
+                mResults.clear();
+                upstream = mUpstream;
+            }
+            if (upstream != null) upstream.cancel();
+            finish();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////
+    // 定义常量、变量
+    ////////////////////////////////////////////////////////////////
+
+    // 并发上限不限制时，已请求未发布的元素数上限
+    private static final int MAX_IN_FLIGHT = 256;
+
+    private final TaskQueue mQueue;
+    private final TaskQueue.IMapper<? super T, ? extends R> mMapper;
+
+    private final Object mLock = new Object();
+    private TaskFlow.Subscription mUpstream = null;
+    private TaskFlow.Subscriber<? super R> mDownstream = null;
+    // 下游请求、尚未发布的元素数
+    private long mDemand = 0;
+    // 已向上游请求、尚未发布的元素数（包括还未到达的、执行中的、等待发布的）
+    private long mOutstanding = 0;
+    // 已添加到TaskQueue、尚未完成的任务数
+    private int mInQueue = 0;
+    // 上游元素的序号，用作任务名
+    private long mNextIndex = 0;
+    // 已完成、等待发布的结果
+    private final ArrayDeque<R> mResults = new ArrayDeque<>();
+    // 上游已结束
+    private boolean mUpstreamDone = false;
+    // 待发布的错误
+    private Throwable mError = null;
+    // 已向下游发出onError/onComplete，或下游已取消
+    private boolean mTerminated = false;
+    // 是否有线程正在向下游发布
+    private boolean mEmitting = false;
+    // 是否已释放TaskQueue
+    private boolean mFinished = false;
+
+
+    ////////////////////////////////////////////////////////////////
+    // 类生命周期函数
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * @param queue 执行转换的任务队列，并发数、自适应并发上限、有序结果等在这之前设置好
+     * @param mapper 在线程池上执行的转换函数
+     */
+    public TaskQueueProcessor(TaskQueue queue, TaskQueue.IMapper<? super T, ? extends R> mapper) {
+        if (queue == null || mapper == null) throw new IllegalArgumentException("queue and mapper can't be null");
+        mQueue = queue;
+        mMapper = mapper;
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义：下游（Publisher）
+    ////////////////////////////////////////////////////////////////
+
+    @Override
+    public void subscribe(TaskFlow.Subscriber<? super R> subscriber) {
+        if (subscriber == null) throw new NullPointerException();
+        boolean accepted;
+        synchronized (mLock) {
+            accepted = mDownstream == null;
+            if (accepted) mDownstream = subscriber;
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(new TaskFlow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("TaskQueueProcessor supports only one subscriber"));
+            return;
+        }
+
+        mQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                onTaskResult(result);
+            }
+        });
+        mQueue.retainStream();
+        mQueue.start();
+
+        subscriber.onSubscribe(new DownstreamSubscription());
+        // 上游可能在下游订阅前就已经结束
+        drain();
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 方法定义：上游（Subscriber）
+    ////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onSubscribe(TaskFlow.Subscription subscription) {
+        if (subscription == null) throw new NullPointerException();
+        synchronized (mLock) {
+            if (mUpstream == null && !mTerminated) {
+                mUpstream = subscription;
+                subscription = null;
+            }
+        }
+        if (subscription != null) {
+            // 只接受一个上游，或已结束
+            subscription.cancel();
+            return;
+        }
+        requestUpstream();
+    }
+
+    @Override
+    public void onNext(final T item) {
+        if (item == null) throw new NullPointerException();
+        long index;
+        synchronized (mLock) {
+            if (mTerminated || mError != null) return;
+            index = mNextIndex++;
+            ++mInQueue;
+        }
+        try {
+            mQueue.add(String.valueOf(index), new Callable<R>() {
+                @Override
+                public R call() throws Exception {
+                    R result = mMapper.map(item);
+                    if (result == null) throw new NullPointerException("mapper returned null");
+                    return result;
+                }
+            });
+        } catch (Exception e) {
+            synchronized (mLock) {
+                --mInQueue;
+            }
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (throwable == null) throw new NullPointerException();
+        synchronized (mLock) {
+            mUpstreamDone = true;
+        }
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (mLock) {
+            mUpstreamDone = true;
+        }
+        drain();
+    }
+
+
+    ////////////////////////////////////////////////////////////////
+    // 私有方法
+    ////////////////////////////////////////////////////////////////
+
+    /**
+     * 单个任务完成的回调：正常结果进入待发布队列；出错则整个流出错；取消（流已结束时）忽略
+     */
+    @SuppressWarnings("unchecked")
+    private void onTaskResult(Object result) {
+        synchronized (mLock) {
+            --mInQueue;
+            if (result != null && !(result instanceof Exception) && !mTerminated) {
+                mResults.add((R) result);
+            }
+        }
+        if (result instanceof ExecutionException) {
+            fail(((ExecutionException) result).getCause());
+        }
+        else if (result instanceof Exception) {
+            fail((Exception) result);
+        }
+        else {
+            drain();
+        }
+    }
+
+    /**
+     * 流出错：丢弃未发布的结果，取消上游和未执行的任务，向下游发布错误
+     */
+    private void fail(Throwable throwable) {
+        TaskFlow.Subscription upstream;
+        synchronized (mLock) {
+            if (mTerminated || mError != null) return;
+            mError = throwable;
+            mResults.clear();
+            upstream = mUpstreamDone ? null : mUpstream;
+        }
+        if (upstream != null) upstream.cancel();
+        mQueue.cancelAllUnexecuted();
+        drain();
+    }
+
+    /**
+     * 在下游需求和并发上限内向上游请求元素
+     */
+    private void requestUpstream() {
+        long n;
+        TaskFlow.Subscription upstream;
+        synchronized (mLock) {
+            if (mUpstream == null || mDownstream == null || mUpstreamDone || mTerminated || mError != null) return;
+            long capacity = Math.min(mQueue.getCurrentConcurrencyLimit(), MAX_IN_FLIGHT);
+            n = Math.min(mDemand, capacity) - mOutstanding;
+            if (n <= 0) return;
+            mOutstanding += n;
+            upstream = mUpstream;
+        }
+        upstream.request(n);
+    }
+
+    /**
+     * 串行地向下游发布结果和结束信号。同时只有一个线程在发布，其他线程的结果由它接着发布
+     */
+    private void drain() {
+        synchronized (mLock) {
+            if (mDownstream == null) return;
+            // 其他线程正在发布，它在退出前会在锁内再检查一遍，能看到本线程的结果
+            if (mEmitting) return;
+            mEmitting = true;
+        }
+        TaskFlow.Subscriber<? super R> downstream = mDownstream;
+        while (true) {
+            R item = null;
+            Throwable error = null;
+            boolean complete = false;
+            synchronized (mLock) {
+                if (mTerminated) {
+                    mEmitting = false;
+                    return;
+                }
+                if (mError != null) {
+                    error = mError;
+                    mTerminated = true;
+                }
+                else if (mDemand > 0 && (item = mResults.poll()) != null) {
+                    --mDemand;
+                    --mOutstanding;
+                }
+                else if (mUpstreamDone && mInQueue == 0 && mResults.isEmpty()) {
+                    complete = true;
+                    mTerminated = true;
+                }
+                else {
+                    mEmitting = false;
+                    return;
+                }
+            }
+
+            if (item != null) {
+                downstream.onNext(item);
+                requestUpstream();
+                continue;
+            }
+            // onError/onComplete之后不再发布，mEmitting保持为true
+            try {
+                if (error != null) downstream.onError(error);
+                else if (complete) downstream.onComplete();
+            } finally {
+                finish();
+            }
+            return;
+        }
+    }
+
+    /**
+     * 流结束：释放TaskQueue，任务全部完成后TaskQueue自动stop()
+     */
+    private void finish() {
+        synchronized (mLock) {
+            if (mFinished || mDownstream == null) return;
+            mFinished = true;
+        }
+        mQueue.cancelAllUnexecuted();
+        mQueue.releaseStream();
+    }
+
+}
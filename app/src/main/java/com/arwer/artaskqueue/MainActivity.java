@@ -2,7 +2,9 @@ package com.arwer.artaskqueue;
 
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.widget.TextView;
 
+import com.arwer.arlibrary.threads.HandlerExecutor;
 import com.arwer.arlibrary.threads.TaskQueue;
 
 import java.io.ByteArrayOutputStream;
@@ -35,6 +37,8 @@ public class MainActivity extends AppCompatActivity {
             final TaskQueue taskQueue = new TaskQueue();
             // 设置并发线程数量
             taskQueue.setMaxConcurrentThreadCount(1);
+            // 回调在主线程执行，可以直接更新界面
+            taskQueue.setCallbackExecutor(new HandlerExecutor());
             // 添加第1个任务
             taskQueue.add("task1", new Callable<String>() {
                 String resultStr = null;
@@ -80,6 +84,7 @@ public class MainActivity extends AppCompatActivity {
                 @Override
                 public void onFinished(Map<String, Object> result) {
                     System.out.println(">>> All task finished, total=" + result.size());
+                    ((TextView) findViewById(R.id.tv_result)).setText("All task finished, total=" + result.size());
                     for (Map.Entry entry : result.entrySet()) {
 //                        System.out.println(">>> TaskQueue finished, taskName=" + entry.getKey() + ", value=" + (entry.getValue()==null ? "null" : entry.getValue().toString()) );
                         System.out.println(">>> taskName=" + entry.getKey() + ", value=" + entry.getValue());
@@ -0,0 +1,81 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.AdaptiveConcurrencyLimit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * AdaptiveConcurrencyLimit的单元测试
+ */
+public class AdaptiveConcurrencyLimitUnitTest {
+
+    /**
+     * 延迟稳定且上限被用满时，并发上限增长到maxLimit为止
+     */
+    @Test
+    public void testIncreaseToMaxLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10);
+        for (int i=0; i<1000; i++) {
+            limit.onSample(1000000, limit.getLimit(), false);
+        }
+        assertEquals(10, limit.getLimit());
+    }
+
+    /**
+     * 延迟明显升高或任务失败时，并发上限减小到minLimit为止
+     */
+    @Test
+    public void testDecreaseToMinLimit() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10);
+        limit.setProbeInterval(10000);
+        for (int i=0; i<1000; i++) {
+            limit.onSample(1000000, limit.getLimit(), false);
+        }
+        for (int i=0; i<100; i++) {
+            limit.onSample(10000000, limit.getLimit(), false);
+        }
+        assertEquals(2, limit.getLimit());
+
+        AdaptiveConcurrencyLimit failing = new AdaptiveConcurrencyLimit(1, 10);
+        for (int i=0; i<1000; i++) {
+            failing.onSample(1000000, failing.getLimit(), i % 2 == 0);
+        }
+        assertTrue(failing.getLimit() < 10);
+    }
+
+    /**
+     * 重置最小延迟后，以新的延迟水平为基准重新增长（跟踪上游速度的漂移）
+     */
+    @Test
+    public void testProbeIntervalTracksDrift() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 10);
+        limit.setProbeInterval(100);
+        for (int i=0; i<100; i++) {
+            limit.onSample(1000000, limit.getLimit(), false);
+        }
+        // 上游整体变慢，之后延迟稳定在新的水平
+        for (int i=0; i<1000; i++) {
+            limit.onSample(5000000, limit.getLimit(), false);
+        }
+        assertEquals(10, limit.getLimit());
+    }
+
+    /**
+     * 在途任务远少于上限时（上限未被用到），并发上限不增长
+     */
+    @Test
+    public void testNoIncreaseWhenUnderutilized() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 16);
+        for (int i=0; i<1000; i++) {
+            limit.onSample(1000000, 1, false);
+        }
+        assertEquals(8, limit.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        new AdaptiveConcurrencyLimit(5, 4);
+    }
+}
@@ -0,0 +1,163 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.CircuitBreaker;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * CircuitBreaker的单元测试
+ */
+public class CircuitBreakerUnitTest {
+
+    /**
+     * 调用次数达到minimumCalls且失败率超过阈值时断开，断开后拒绝调用
+     */
+    @Test
+    public void testOpensOnFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setWindow(10, 4);
+
+        for (int i=0; i<3; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+            breaker.onResult(0, true);
+        }
+        // 未达到最少调用次数，不断开
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onResult(0, false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    /**
+     * 失败率低于阈值时保持闭合，滑动窗口移出旧结果
+     */
+    @Test
+    public void testSlidingWindow() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setWindow(4, 4);
+
+        breaker.onResult(0, true);
+        for (int i=0; i<3; i++) {
+            breaker.onResult(0, false);
+        }
+        assertEquals(0.25, breaker.getFailureRate(), 0.0001);
+        breaker.onResult(0, false);
+        assertEquals(0.0, breaker.getFailureRate(), 0.0001);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * 慢调用率超过阈值时断开
+     */
+    @Test
+    public void testOpensOnSlowCallRate() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setWindow(4, 4);
+        breaker.setSlowCall(100, TimeUnit.MILLISECONDS, 0.75);
+
+        breaker.onResult(TimeUnit.MILLISECONDS.toNanos(10), false);
+        for (int i=0; i<3; i++) {
+            breaker.onResult(TimeUnit.MILLISECONDS.toNanos(200), false);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    /**
+     * 断开时间过后进入半开，只放行halfOpenCalls个试探调用，试探成功则闭合
+     */
+    @Test
+    public void testHalfOpenCloses() throws Exception {
+        CircuitBreaker breaker = openBreaker();
+        Thread.sleep(60);
+
+        assertTrue(breaker.tryAcquirePermission());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+        assertFalse(breaker.tryAcquirePermission());
+
+        breaker.onResult(0, false);
+        breaker.onResult(0, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+    }
+
+    /**
+     * 半开状态的试探调用失败则重新断开；被取消的试探调用归还名额
+     */
+    @Test
+    public void testHalfOpenReopens() throws Exception {
+        CircuitBreaker breaker = openBreaker();
+        Thread.sleep(60);
+
+        assertTrue(breaker.tryAcquirePermission());
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onIgnored();
+        assertTrue(breaker.tryAcquirePermission());
+
+        breaker.onResult(0, true);
+        breaker.onResult(0, true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    /**
+     * 闭合时放行、半开后才完成的调用不算试探调用，也不归还试探名额
+     */
+    @Test
+    public void testStalePermitIgnoredInHalfOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setWindow(2, 2);
+        breaker.setOpenDuration(50, TimeUnit.MILLISECONDS);
+        breaker.setHalfOpenCalls(2);
+        long stale = breaker.acquirePermission();
+        long staleIgnored = breaker.acquirePermission();
+        assertTrue(stale >= 0 && staleIgnored >= 0);
+        breaker.onResult(breaker.acquirePermission(), 0, true);
+        breaker.onResult(breaker.acquirePermission(), 0, true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(60);
+
+        long probe1 = breaker.acquirePermission();
+        long probe2 = breaker.acquirePermission();
+        assertTrue(probe1 >= 0 && probe2 >= 0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // 闭合时的许可：结果不计入试探，取消也不归还名额
+        breaker.onResult(stale, 0, true);
+        breaker.onResult(stale, 0, false);
+        breaker.onIgnored(staleIgnored);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(-1, breaker.acquirePermission());
+
+        breaker.onResult(probe1, 0, false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(probe2, 0, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindow() {
+        new CircuitBreaker().setWindow(4, 5);
+    }
+
+    /**
+     * 创建一个已断开、断开时间50毫秒、半开放行2个试探调用的熔断器
+     */
+    private CircuitBreaker openBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setWindow(2, 2);
+        breaker.setOpenDuration(50, TimeUnit.MILLISECONDS);
+        breaker.setHalfOpenCalls(2);
+        breaker.onResult(0, true);
+        breaker.onResult(0, true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+}
@@ -0,0 +1,193 @@
+package com.arwer.artaskqueue;
+
+import android.content.ComponentCallbacks2;
+
+import com.arwer.arlibrary.threads.ElasticPoolSize;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * ElasticPoolSize的单元测试，时间由参数给出，不依赖真实的等待
+ */
+public class ElasticPoolSizeUnitTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 堆占用由测试指定的ElasticPoolSize
+     */
+    private static class TestPoolSize extends ElasticPoolSize {
+        private double mHeapUsage = 0.1;
+
+        TestPoolSize(int minSize, int maxSize) {
+            super(minSize, maxSize);
+        }
+
+        @Override
+        protected double getHeapUsage() {
+            return mHeapUsage;
+        }
+    }
+
+    /**
+     * 排队超过growWait时每个growWait扩容一次，到maxSize为止；排队时间短时不扩容
+     */
+    @Test
+    public void testGrowOnQueueWait() {
+        TestPoolSize poolSize = new TestPoolSize(2, 4);
+        long now = System.nanoTime();
+        assertFalse(poolSize.onQueueWait(10 * MS, now));
+        assertEquals(2, poolSize.getSize());
+
+        assertTrue(poolSize.onQueueWait(60 * MS, now));
+        // 同一个growWait内不再扩容
+        assertFalse(poolSize.onQueueWait(60 * MS, now + 10 * MS));
+        assertTrue(poolSize.onQueueWait(60 * MS, now + 50 * MS));
+        assertFalse(poolSize.onQueueWait(60 * MS, now + 100 * MS));
+        assertEquals(4, poolSize.getSize());
+    }
+
+    /**
+     * 一个keepAlive周期内同时执行的任务数少于当前大小时，周期结束时缩到实际用到的大小
+     */
+    @Test
+    public void testShrinkWhenIdle() {
+        TestPoolSize poolSize = new TestPoolSize(1, 8);
+        poolSize.setKeepAlive(1, TimeUnit.SECONDS);
+        poolSize.setGrowWait(0, TimeUnit.MILLISECONDS);
+        long now = System.nanoTime();
+        for (int i=1; i<8; i++) {
+            assertTrue(poolSize.onQueueWait(MS, now + i));
+        }
+        assertEquals(8, poolSize.getSize());
+
+        // 刚扩容的周期内不缩
+        poolSize.onActivity(3, now + 1100 * MS);
+        assertEquals(8, poolSize.getSize());
+        // 下一个周期最多同时执行3个任务
+        poolSize.onActivity(2, now + 1500 * MS);
+        poolSize.onActivity(0, now + 2200 * MS);
+        assertEquals(3, poolSize.getSize());
+        // 完全空闲的周期缩到最小值
+        poolSize.onActivity(0, now + 3300 * MS);
+        assertEquals(1, poolSize.getSize());
+    }
+
+    /**
+     * onTrimMemory：RUNNING_MODERATE减半，RUNNING_LOW及以上缩到最小值并暂停扩容，UI_HIDDEN忽略
+     */
+    @Test
+    public void testTrimMemory() {
+        TestPoolSize poolSize = new TestPoolSize(2, 16);
+        poolSize.setGrowWait(0, TimeUnit.MILLISECONDS);
+        long now = System.nanoTime();
+        for (int i=0; i<14; i++) {
+            poolSize.onQueueWait(MS, now + i);
+        }
+        assertEquals(16, poolSize.getSize());
+
+        poolSize.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(16, poolSize.getSize());
+        poolSize.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(8, poolSize.getSize());
+        assertFalse(poolSize.isLowMemory(System.nanoTime()));
+
+        poolSize.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(2, poolSize.getSize());
+        long trimmed = System.nanoTime();
+        assertTrue(poolSize.isLowMemory(trimmed));
+        assertFalse(poolSize.onQueueWait(MS, trimmed));
+
+        // 一个keepAlive周期后恢复扩容
+        long later = trimmed + poolSize.getKeepAliveNanos();
+        assertFalse(poolSize.isLowMemory(later));
+        assertTrue(poolSize.onQueueWait(MS, later));
+        assertEquals(3, poolSize.getSize());
+    }
+
+    /**
+     * 开启堆检查后，堆占用连续HEAP_CHECK_SAMPLES次超过阈值才缩到最小值，中间降下来则重新计数；
+     * 检查间隔不足时不检查；默认不检查
+     */
+    @Test
+    public void testHeapThreshold() {
+        long interval = TimeUnit.MILLISECONDS.toNanos(ElasticPoolSize.HEAP_CHECK_INTERVAL_MILLIS);
+        TestPoolSize poolSize = new TestPoolSize(1, 4);
+        poolSize.setGrowWait(0, TimeUnit.MILLISECONDS);
+        poolSize.setHeapThreshold(0.85);
+        long now = System.nanoTime();
+        for (int i=0; i<3; i++) {
+            poolSize.onQueueWait(MS, now + i * 20 * MS);
+        }
+        assertEquals(4, poolSize.getSize());
+
+        // 一次超过阈值（如垃圾还未回收）不收缩
+        poolSize.mHeapUsage = 0.9;
+        long t = now + interval;
+        assertFalse(poolSize.checkHeap(t));
+        poolSize.mHeapUsage = 0.5;
+        assertFalse(poolSize.checkHeap(t += interval));
+        poolSize.mHeapUsage = 0.9;
+        for (int i=1; i<ElasticPoolSize.HEAP_CHECK_SAMPLES; i++) {
+            assertFalse(poolSize.checkHeap(t += interval));
+            // 间隔不足，不算一次检查
+            assertFalse(poolSize.checkHeap(t + MS));
+        }
+        assertEquals(4, poolSize.getSize());
+        assertTrue(poolSize.checkHeap(t += interval));
+        assertEquals(1, poolSize.getSize());
+        assertTrue(poolSize.isLowMemory(t));
+        assertFalse(poolSize.onQueueWait(MS, t + 100 * MS));
+
+        // 默认不检查，派发路径（onActivity/onQueueWait）也不检查
+        TestPoolSize unchecked = new TestPoolSize(1, 4);
+        assertEquals(0, unchecked.getHeapThreshold(), 0);
+        unchecked.mHeapUsage = 1;
+        for (int i=1; i<=ElasticPoolSize.HEAP_CHECK_SAMPLES; i++) {
+            assertFalse(unchecked.checkHeap(now + i * interval));
+        }
+        unchecked.setHeapThreshold(0.85);
+        long later = System.nanoTime();
+        unchecked.onActivity(1, later);
+        assertTrue(unchecked.onQueueWait(100 * MS, later));
+        assertEquals(2, unchecked.getSize());
+    }
+
+    /**
+     * 大小变化时回调监听器
+     */
+    @Test
+    public void testResizeListener() {
+        final List<String> events = new ArrayList<>();
+        TestPoolSize poolSize = new TestPoolSize(1, 4);
+        poolSize.setResizeListener(new ElasticPoolSize.IResizeListener() {
+            @Override
+            public void onResize(int oldSize, int newSize, ElasticPoolSize.Reason reason) {
+                events.add(oldSize + "->" + newSize + " " + reason);
+            }
+        });
+        poolSize.onQueueWait(100 * MS, System.nanoTime());
+        poolSize.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        // 已是最小值，不再回调
+        poolSize.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertEquals(2, events.size());
+        assertEquals("1->2 GROW", events.get(0));
+        assertEquals("2->1 TRIM_MEMORY", events.get(1));
+    }
+
+    /**
+     * 非法参数
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new ElasticPoolSize(4, 2);
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.FileRemoteTransport;
+import com.arwer.arlibrary.threads.RemoteTransport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * FileRemoteTransport的单元测试
+ */
+public class FileRemoteTransportUnitTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 按提交顺序认领，一个任务只能被认领一次；完成后结果只返回一次
+     */
+    @Test
+    public void testClaimAndComplete() throws Exception {
+        FileRemoteTransport transport = new FileRemoteTransport(mFolder.getRoot(), 10000, 3);
+        transport.submit(new RemoteTransport.Descriptor("0002", "second", new Square(2)));
+        transport.submit(new RemoteTransport.Descriptor("0001", "first", new Square(1)));
+
+        RemoteTransport.Lease lease1 = transport.claim("worker-a");
+        RemoteTransport.Lease lease2 = transport.claim("worker-b");
+        assertNull(transport.claim("worker-a"));
+        assertEquals("first", lease1.getDescriptor().getTaskName());
+        assertEquals("second", lease2.getDescriptor().getTaskName());
+        assertEquals(1, lease1.getAttempt());
+
+        Object value = lease1.getDescriptor().getTask().call();
+        assertTrue(transport.renew(lease1));
+        assertTrue(transport.complete(lease1, new RemoteTransport.Result("0001", "first", "worker-a", 1, value, null)));
+        // 已完成的租约不能再续约或完成
+        assertFalse(transport.renew(lease1));
+        assertFalse(transport.complete(lease1, new RemoteTransport.Result("0001", "first", "worker-a", 1, value, null)));
+
+        List<RemoteTransport.Result> results = transport.pollResults();
+        assertEquals(1, results.size());
+        assertEquals(1, results.get(0).getValue());
+        assertEquals("worker-a", results.get(0).getWorkerId());
+        assertTrue(transport.pollResults().isEmpty());
+    }
+
+    /**
+     * 租约过期后任务放回待认领，由其他工作进程重新执行，原租约失效
+     */
+    @Test
+    public void testReclaimExpiredLease() throws Exception {
+        FileRemoteTransport transport = new FileRemoteTransport(mFolder.getRoot(), 200, 3);
+        transport.submit(new RemoteTransport.Descriptor("0001", "task", new Square(3)));
+
+        RemoteTransport.Lease dead = transport.claim("dead");
+        assertEquals(0, transport.reclaimExpired());
+        assertNull(transport.claim("alive"));
+
+        Thread.sleep(400);
+        assertEquals(1, transport.reclaimExpired());
+        RemoteTransport.Lease lease = transport.claim("alive");
+        assertNotNull(lease);
+        assertEquals(2, lease.getAttempt());
+        assertFalse(transport.renew(dead));
+        assertFalse(transport.complete(dead, new RemoteTransport.Result("0001", "task", "dead", 1, 9, null)));
+        assertTrue(transport.complete(lease, new RemoteTransport.Result("0001", "task", "alive", 2, 9, null)));
+        assertEquals("alive", transport.pollResults().get(0).getWorkerId());
+    }
+
+    /**
+     * 租约过期次数达到上限后以TimeoutException结果完成，不再派发
+     */
+    @Test
+    public void testMaxAttempts() throws Exception {
+        FileRemoteTransport transport = new FileRemoteTransport(mFolder.getRoot(), 100, 2);
+        transport.submit(new RemoteTransport.Descriptor("0001", "poison", new Square(4)));
+        for (int i=0; i<2; i++) {
+            assertNotNull(transport.claim("worker-" + i));
+            Thread.sleep(250);
+            assertEquals(1, transport.reclaimExpired());
+        }
+        assertNull(transport.claim("worker-x"));
+        List<RemoteTransport.Result> results = transport.pollResults();
+        assertEquals(1, results.size());
+        assertEquals("poison", results.get(0).getTaskName());
+        assertTrue(results.get(0).getError() instanceof TimeoutException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWorkerId() throws Exception {
+        new FileRemoteTransport(mFolder.getRoot(), 1000, 1).claim("host.1");
+    }
+
+    private static class Square implements RemoteTransport.Task<Integer> {
+        private final int mValue;
+
+        private Square(int value) {
+            mValue = value;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            return mValue * mValue;
+        }
+    }
+
+}
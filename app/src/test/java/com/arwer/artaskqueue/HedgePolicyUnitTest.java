@@ -0,0 +1,41 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.HedgePolicy;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * HedgePolicy的单元测试
+ */
+public class HedgePolicyUnitTest {
+
+    @Test
+    public void testFixedDelay() {
+        HedgePolicy policy = HedgePolicy.afterDelay(100, TimeUnit.MILLISECONDS);
+        policy.recordLatency(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), policy.getDelayNanos());
+    }
+
+    /**
+     * 样本不足时使用默认延迟，样本足够后使用百分位数
+     */
+    @Test
+    public void testPercentileDelay() {
+        HedgePolicy policy = HedgePolicy.atPercentile(0.9, 500, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), policy.getDelayNanos());
+
+        for (int i=100; i>=1; i--) {
+            policy.recordLatency(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(90), policy.getDelayNanos());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPercentile() {
+        HedgePolicy.atPercentile(1.5, 100, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,95 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.MpmcRingBuffer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * MpmcRingBuffer的单元测试
+ */
+public class MpmcRingBufferUnitTest {
+
+    /**
+     * 容量取整到2的幂，满时offer返回false，空时poll返回null，先进先出
+     */
+    @Test
+    public void testOfferPollSingleThread() {
+        MpmcRingBuffer<Integer> buffer = new MpmcRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        assertNull(buffer.poll());
+
+        for (int i=0; i<4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+
+        for (int i=0; i<4; i++) {
+            assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+
+        // 绕回数组开头后依然正确
+        for (int round=0; round<10; round++) {
+            assertTrue(buffer.offer(round));
+            assertEquals(Integer.valueOf(round), buffer.poll());
+        }
+    }
+
+    /**
+     * 多生产者多消费者并发读写，每个元素恰好被消费一次
+     */
+    @Test
+    public void testMultiProducerMultiConsumer() throws Exception {
+        final int producerCount = 4;
+        final int consumerCount = 4;
+        final int perProducer = 100000;
+        final MpmcRingBuffer<Long> buffer = new MpmcRingBuffer<>(64);
+        final AtomicLong consumedSum = new AtomicLong();
+        final AtomicLong consumedCount = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producerCount + consumerCount);
+        final long total = (long) producerCount * perProducer;
+
+        for (int p=0; p<producerCount; p++) {
+            final long base = (long) p * perProducer;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i=1; i<=perProducer; i++) {
+                        while (!buffer.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        for (int c=0; c<consumerCount; c++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (consumedCount.get() < total) {
+                        Long value = buffer.poll();
+                        if (value == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        consumedSum.addAndGet(value);
+                        consumedCount.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        assertEquals(total, consumedCount.get());
+        assertEquals(total * (total + 1) / 2, consumedSum.get());
+    }
+}
@@ -0,0 +1,243 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.FileRemoteTransport;
+import com.arwer.arlibrary.threads.RemoteDispatcher;
+import com.arwer.arlibrary.threads.RemoteTransport;
+import com.arwer.arlibrary.threads.RemoteWorker;
+import com.arwer.arlibrary.threads.TaskQueue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * RemoteWorker的单元测试：同一个共享目录上的多个传输层实例模拟多个进程
+ */
+public class RemoteWorkerUnitTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 两个工作进程分担同一个逻辑队列，提交方收到所有结果，出错的任务为ExecutionException
+     */
+    @Test
+    public void testWorkersShareQueue() throws Exception {
+        RemoteDispatcher dispatcher = new RemoteDispatcher(new FileRemoteTransport(mFolder.getRoot(), 5000, 3));
+        for (int i=0; i<20; i++) {
+            dispatcher.submit("task" + i, new SleepTask(i, 10));
+        }
+        dispatcher.submit("bad", new FailingTask());
+
+        RemoteWorker worker1 = startWorker("worker1", 5000, 2);
+        RemoteWorker worker2 = startWorker("worker2", 5000, 2);
+        Map<String, Object> result = dispatcher.awaitAll(10, TimeUnit.SECONDS);
+        worker1.stop();
+        worker2.stop();
+
+        assertEquals(21, result.size());
+        for (int i=0; i<20; i++) {
+            assertEquals(i, result.get("task" + i));
+        }
+        assertTrue(result.get("bad") instanceof ExecutionException);
+        assertTrue(((ExecutionException) result.get("bad")).getCause() instanceof IOException);
+        assertEquals(0, dispatcher.getOutstandingCount());
+    }
+
+    /**
+     * 工作进程认领任务后失去响应（不再续约），租约过期后任务由其他工作进程重新执行；
+     * 续约正常的长任务不会被收回
+     */
+    @Test
+    public void testReassignOnWorkerDeath() throws Exception {
+        RemoteDispatcher dispatcher = new RemoteDispatcher(new FileRemoteTransport(mFolder.getRoot(), 300, 3));
+        dispatcher.submit("orphan", new SleepTask(1, 0));
+        dispatcher.submit("long", new SleepTask(2, 1000));
+
+        // 模拟崩溃的进程：认领后不再续约
+        RemoteTransport.Lease dead = new FileRemoteTransport(mFolder.getRoot(), 300, 3).claim("dead");
+        assertEquals("orphan", dead.getDescriptor().getTaskName());
+
+        RemoteWorker worker = startWorker("alive", 300, 2);
+        Map<String, Object> result = dispatcher.awaitAll(10, TimeUnit.SECONDS);
+        worker.stop();
+
+        assertEquals(1, result.get("orphan"));
+        assertEquals(2, result.get("long"));
+    }
+
+    /**
+     * 停止后不再认领新任务，执行中的任务完成并交回结果后TaskQueue自动stop()
+     */
+    @Test
+    public void testStopDrainsActiveTasks() throws Exception {
+        RemoteDispatcher dispatcher = new RemoteDispatcher(new FileRemoteTransport(mFolder.getRoot(), 5000, 3));
+        dispatcher.submit("running", new SleepTask(1, 300));
+
+        final CountDownLatch queueFinished = new CountDownLatch(1);
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                queueFinished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(1);
+        RemoteWorker worker = new RemoteWorker(new FileRemoteTransport(mFolder.getRoot(), 5000, 3), "worker", taskQueue);
+        worker.setPollInterval(10);
+        worker.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (worker.getActiveCount() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        worker.stop();
+        dispatcher.submit("later", new SleepTask(2, 0));
+
+        assertTrue(queueFinished.await(5, TimeUnit.SECONDS));
+        assertEquals(0, worker.getActiveCount());
+        try {
+            dispatcher.awaitAll(200, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            // "later"没有工作进程执行
+        }
+        assertEquals(1, dispatcher.getOutstandingCount());
+    }
+
+    /**
+     * 传输暂时出错时记录错误并退避重试，不停止工作进程，恢复后继续认领
+     */
+    @Test
+    public void testRetryOnTransportError() throws Exception {
+        RemoteDispatcher dispatcher = new RemoteDispatcher(new FileRemoteTransport(mFolder.getRoot(), 5000, 3));
+        dispatcher.submit("task", new SleepTask(1, 0));
+
+        FlakyTransport transport = new FlakyTransport(new FileRemoteTransport(mFolder.getRoot(), 5000, 3), 3,
+                new IOException("share unavailable"));
+        TaskQueue taskQueue = new TaskQueue();
+        RemoteWorker worker = new RemoteWorker(transport, "flaky", taskQueue);
+        worker.setPollInterval(10);
+        worker.start();
+
+        Map<String, Object> result = dispatcher.awaitAll(10, TimeUnit.SECONDS);
+        assertEquals(1, result.get("task"));
+        assertEquals(0, transport.mFailures.get());
+        assertTrue(worker.getLastError() instanceof IOException);
+        assertTrue(worker.isRunning());
+        worker.stop();
+    }
+
+    /**
+     * 无法恢复的错误（非IOException）时停止认领，原因记录在getLastError()
+     */
+    @Test
+    public void testStopsOnFatalError() throws Exception {
+        IllegalStateException fatal = new IllegalStateException("corrupt share");
+        FlakyTransport transport = new FlakyTransport(new FileRemoteTransport(mFolder.getRoot(), 5000, 3), 1, fatal);
+        RemoteWorker worker = new RemoteWorker(transport, "worker", new TaskQueue());
+        worker.setPollInterval(10);
+        worker.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (worker.isRunning() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertFalse(worker.isRunning());
+        assertSame(fatal, worker.getLastError());
+    }
+
+    private RemoteWorker startWorker(String workerId, long leaseMillis, int threads) throws IOException {
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setMaxConcurrentThreadCount(threads);
+        RemoteWorker worker = new RemoteWorker(new FileRemoteTransport(mFolder.getRoot(), leaseMillis, 3), workerId, taskQueue);
+        worker.setPollInterval(10);
+        worker.start();
+        return worker;
+    }
+
+    /**
+     * 前几次认领抛出指定异常的传输层
+     */
+    private static class FlakyTransport implements RemoteTransport {
+        private final RemoteTransport mTarget;
+        private final AtomicInteger mFailures;
+        // IOException或RuntimeException
+        private final Exception mError;
+
+        private FlakyTransport(RemoteTransport target, int failures, Exception error) {
+            mTarget = target;
+            mFailures = new AtomicInteger(failures);
+            mError = error;
+        }
+
+        @Override
+        public long getLeaseMillis() {
+            return mTarget.getLeaseMillis();
+        }
+
+        @Override
+        public void submit(Descriptor descriptor) throws IOException {
+            mTarget.submit(descriptor);
+        }
+
+        @Override
+        public Lease claim(String workerId) throws IOException {
+            if (mFailures.getAndDecrement() > 0) {
+                if (mError instanceof IOException) throw (IOException) mError;
+                throw (RuntimeException) mError;
+            }
+            mFailures.set(0);
+            return mTarget.claim(workerId);
+        }
+
+        @Override
+        public boolean renew(Lease lease) throws IOException {
+            return mTarget.renew(lease);
+        }
+
+        @Override
+        public boolean complete(Lease lease, Result result) throws IOException {
+            return mTarget.complete(lease, result);
+        }
+
+        @Override
+        public int reclaimExpired() throws IOException {
+            return mTarget.reclaimExpired();
+        }
+
+        @Override
+        public List<Result> pollResults() throws IOException {
+            return mTarget.pollResults();
+        }
+    }
+
+    private static class SleepTask implements RemoteTransport.Task<Integer> {
+        private final int mValue;
+        private final long mSleepMillis;
+
+        private SleepTask(int value, long sleepMillis) {
+            mValue = value;
+            mSleepMillis = sleepMillis;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            Thread.sleep(mSleepMillis);
+            return mValue;
+        }
+    }
+
+    private static class FailingTask implements RemoteTransport.Task<Integer> {
+        @Override
+        public Integer call() throws Exception {
+            throw new IOException("remote failure");
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.ResultSpiller;
+import com.arwer.arlibrary.threads.SpilledResult;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * ResultSpiller的单元测试
+ */
+public class ResultSpillerUnitTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 映射文件：达到阈值的结果转存为句柄，数据一致，临时文件不遗留；小于阈值和其他类型的结果不变
+     */
+    @Test
+    public void testMappedFile() throws Exception {
+        ResultSpiller spiller = new ResultSpiller(1024, mFolder.getRoot());
+        byte[] data = new byte[100000];
+        for (int i=0; i<data.length; i++) data[i] = (byte) i;
+
+        SpilledResult bytes = (SpilledResult) spiller.spill(data);
+        assertEquals(data.length, bytes.size());
+        assertFalse(bytes.isText());
+        ByteBuffer view = bytes.getByteBuffer();
+        assertTrue(view.isReadOnly());
+        byte[] read = new byte[view.remaining()];
+        view.get(read);
+        assertArrayEquals(data, read);
+        // 每次得到的视图相互独立
+        assertEquals(0, bytes.getByteBuffer().position());
+        assertEquals(0, mFolder.getRoot().list().length);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(data, 0, 5000);
+        SpilledResult streamResult = (SpilledResult) spiller.spill(stream);
+        assertEquals(5000, streamResult.size());
+        assertEquals((byte) 4999, streamResult.getByteBuffer().get(4999));
+
+        char[] chars = new char[2000];
+        Arrays.fill(chars, '中');
+        String text = new String(chars);
+        SpilledResult textResult = (SpilledResult) spiller.spill(text);
+        assertTrue(textResult.isText());
+        assertEquals(6000, textResult.size());
+        assertEquals(text, textResult.getString());
+
+        byte[] small = new byte[1023];
+        assertSame(small, spiller.spill(small));
+        assertEquals("short", spiller.spill("short"));
+        Integer number = 123456;
+        assertSame(number, spiller.spill(number));
+
+        bytes.release();
+        assertTrue(bytes.isReleased());
+        try {
+            bytes.getByteBuffer();
+            fail();
+        } catch (IllegalStateException e) {
+            // 已释放
+        }
+    }
+
+    /**
+     * 堆外内存：存到direct ByteBuffer
+     */
+    @Test
+    public void testOffHeap() throws Exception {
+        ResultSpiller spiller = new ResultSpiller(16, null);
+        ByteBuffer heap = ByteBuffer.wrap("0123456789abcdefghij".getBytes("UTF-8"));
+        heap.position(4);
+
+        SpilledResult result = (SpilledResult) spiller.spill(heap);
+        assertEquals(16, result.size());
+        assertTrue(result.getByteBuffer().isDirect());
+        assertEquals("456789abcdefghij", result.getString());
+        // 只读的缓冲区不转存
+        ByteBuffer readOnly = heap.asReadOnlyBuffer();
+        assertSame(readOnly, spiller.spill(readOnly));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreshold() {
+        new ResultSpiller(0, null);
+    }
+
+}
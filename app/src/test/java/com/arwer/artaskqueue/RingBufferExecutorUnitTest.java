@@ -0,0 +1,59 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.RingBufferExecutor;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * RingBufferExecutor的单元测试
+ */
+public class RingBufferExecutorUnitTest {
+
+    /**
+     * 任务抛出的异常交给线程的未捕获异常处理器，工作线程不退出，继续执行后面的任务
+     */
+    @Test
+    public void testExceptionGoesToUncaughtHandler() throws Exception {
+        final AtomicReference<Throwable> caught = new AtomicReference<>();
+        final CountDownLatch handled = new CountDownLatch(1);
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                caught.set(e);
+                handled.countDown();
+            }
+        });
+        RingBufferExecutor executor = new RingBufferExecutor(1, 4, RingBufferExecutor.WaitStrategy.PARK);
+        try {
+            final IllegalStateException error = new IllegalStateException("task failed");
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    throw error;
+                }
+            });
+            assertTrue(handled.await(5, TimeUnit.SECONDS));
+            assertSame(error, caught.get());
+
+            final CountDownLatch next = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    next.countDown();
+                }
+            });
+            assertTrue(next.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            Thread.setDefaultUncaughtExceptionHandler(previous);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.TaskEvent;
+import com.arwer.arlibrary.threads.TaskFlightRecorder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * TaskFlightRecorder的单元测试
+ */
+public class TaskFlightRecorderUnitTest {
+
+    /**
+     * 写满后覆盖最早的事件，dump()按发生顺序返回最近capacity个事件
+     */
+    @Test
+    public void testKeepsLastEvents() throws Exception {
+        TaskFlightRecorder recorder = new TaskFlightRecorder(6);
+        assertEquals(8, recorder.capacity());
+        assertTrue(recorder.dump().isEmpty());
+
+        IOException error = new IOException("timeout");
+        for (int i=0; i<20; i++) {
+            recorder.record(i == 19 ? TaskEvent.Type.FAILED : TaskEvent.Type.FINISHED, "task" + i, i, i * 1000L, i == 19 ? error : null);
+        }
+        assertEquals(20, recorder.getRecordedCount());
+
+        List<TaskEvent> events = recorder.dump();
+        assertEquals(8, events.size());
+        for (int i=0; i<8; i++) {
+            TaskEvent event = events.get(i);
+            assertEquals(12 + i, event.getSequence());
+            assertEquals("task" + (12 + i), event.getTaskName());
+            assertEquals((12 + i) * 1000L, event.getDurationNanos());
+            assertEquals(Thread.currentThread().getId(), event.getThreadId());
+        }
+        assertEquals(TaskEvent.Type.FAILED, events.get(7).getType());
+        assertSame(error, events.get(7).getError());
+        assertNull(events.get(6).getError());
+
+        recorder.clear();
+        assertTrue(recorder.dump().isEmpty());
+    }
+
+    /**
+     * 多个线程同时记录、同时dump()：不丢失计数，导出的事件都是完整的（任务名与耗时一致），序号递增
+     */
+    @Test
+    public void testConcurrentRecordAndDump() throws Exception {
+        final TaskFlightRecorder recorder = new TaskFlightRecorder(64);
+        final int threadCount = 4;
+        final int perThread = 50000;
+        final String[] names = new String[perThread];
+        for (int i=0; i<perThread; i++) names[i] = String.valueOf(i);
+
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t=0; t<threadCount; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i=0; i<perThread; i++) {
+                        recorder.record(TaskEvent.Type.STARTED, names[i], System.nanoTime(), i, null);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        final AtomicBoolean torn = new AtomicBoolean(false);
+        while (done.getCount() > 0) {
+            long last = -1;
+            for (TaskEvent event : recorder.dump()) {
+                if (!String.valueOf(event.getDurationNanos()).equals(event.getTaskName())) torn.set(true);
+                if (event.getSequence() <= last) torn.set(true);
+                last = event.getSequence();
+            }
+        }
+        done.await();
+
+        assertFalse(torn.get());
+        assertEquals(threadCount * perThread, recorder.getRecordedCount());
+        assertEquals(64, recorder.dump().size());
+    }
+
+    /**
+     * 容量为1时所有写入方都落在同一槽位：导出的事件不会混合两个写入方的字段，写完后保留最新的事件
+     */
+    @Test
+    public void testSameSlotWriters() throws Exception {
+        final TaskFlightRecorder recorder = new TaskFlightRecorder(1);
+        final int threadCount = 4;
+        final int perThread = 50000;
+        final String[] names = new String[perThread];
+        for (int i=0; i<perThread; i++) names[i] = String.valueOf(i);
+
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t=0; t<threadCount; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long threadId = Thread.currentThread().getId();
+                    for (int i=0; i<perThread; i++) {
+                        // 耗时编码了写入线程和任务名，字段混合时对不上
+                        recorder.record(TaskEvent.Type.STARTED, names[i], System.nanoTime(), threadId * perThread + i, null);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        boolean torn = false;
+        while (done.getCount() > 0) {
+            for (TaskEvent event : recorder.dump()) {
+                long duration = event.getDurationNanos();
+                if (duration / perThread != event.getThreadId()
+                        || !String.valueOf(duration % perThread).equals(event.getTaskName())) {
+                    torn = true;
+                }
+            }
+        }
+        done.await();
+
+        assertFalse(torn);
+        List<TaskEvent> events = recorder.dump();
+        assertEquals(1, events.size());
+        assertEquals(threadCount * perThread - 1, events.get(0).getSequence());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new TaskFlightRecorder(0);
+    }
+
+}
@@ -0,0 +1,265 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.RingBufferExecutor;
+import com.arwer.arlibrary.threads.TaskQueue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * 任务池模式的单元测试，以及每个任务分配内存字节数的基准测试
+ */
+public class TaskPoolAllocationUnitTest {
+
+    // 预先装箱的返回值，避免任务本身的装箱分配计入统计
+    private static final Integer RESULT = Integer.valueOf(1);
+
+    /**
+     * 任务池模式下多批次复用任务对象，每批的结果都正确
+     */
+    @Test
+    public void testPooledTasksAcrossBatches() throws Exception {
+        final TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setTaskPoolSize(4);
+
+        for (int batch=0; batch<3; batch++) {
+            final CountDownLatch finished = new CountDownLatch(1);
+            final AtomicReference<String> summary = new AtomicReference<>();
+            taskQueue.setQueueFinishedCallback(new TaskQueue.IQueueFinishedCallback() {
+                @Override
+                public void onFinished(Map<String, Object> result) {
+                    // 结果只在回调期间有效，这里转成字符串保留
+                    summary.set(result.size() + ":" + result.get("a") + "," + result.get("b") + ","
+                            + (result.get("c") instanceof Exception));
+                    finished.countDown();
+                }
+            });
+            final int base = batch * 10;
+            taskQueue.add("a", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return base + 1;
+                }
+            });
+            taskQueue.add("b", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return base + 2;
+                }
+            });
+            taskQueue.add("c", new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            taskQueue.start();
+
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            assertEquals("3:" + (base + 1) + "," + (base + 2) + ",true", summary.get());
+        }
+    }
+
+    /**
+     * 任务池 + 环形队列派发时，稳定状态下每个任务分配的内存为0字节。
+     * 用两个不同大小的批次相减，抵消每批固定的开销（线程池、工作线程等），得到每个任务的边际分配量。
+     */
+    @Test
+    public void testZeroAllocationPerTask() throws Exception {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) return;
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        final int smallBatch = 2000;
+        final int largeBatch = 20000;
+        String[] names = new String[largeBatch];
+        for (int i=0; i<largeBatch; i++) {
+            names[i] = "task" + i;
+        }
+
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setMaxConcurrentThreadCount(1);
+        taskQueue.setRingBufferDispatch(1024, RingBufferExecutor.WaitStrategy.YIELD);
+        taskQueue.setTaskPoolSize(largeBatch);
+
+        // 预热：让任务列表等容器增长到位，并让JIT编译热点代码
+        for (int i=0; i<5; i++) {
+            runBatch(threadMXBean, taskQueue, names, largeBatch);
+        }
+
+        long smallBytes = Long.MAX_VALUE;
+        long largeBytes = Long.MAX_VALUE;
+        for (int i=0; i<3; i++) {
+            smallBytes = Math.min(smallBytes, runBatch(threadMXBean, taskQueue, names, smallBatch));
+            largeBytes = Math.min(largeBytes, runBatch(threadMXBean, taskQueue, names, largeBatch));
+        }
+        double bytesPerTask = (double) (largeBytes - smallBytes) / (largeBatch - smallBatch);
+        System.out.println(">>> allocated bytes: batch(" + smallBatch + ")=" + smallBytes + ", batch("
+                + largeBatch + ")=" + largeBytes + ", per task=" + bytesPerTask);
+        assertTrue("bytes per task=" + bytesPerTask, bytesPerTask < 1.0);
+    }
+
+    /**
+     * 流式模式（保持队列运行、逐个回调结果）下任务完成后立即回到任务池，添加的任务数超过任务池大小后仍不分配内存
+     */
+    @Test
+    public void testZeroAllocationPerTaskStreaming() throws Exception {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) return;
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        final int smallBatch = 2000;
+        final int largeBatch = 20000;
+        String[] names = new String[largeBatch];
+        for (int i=0; i<largeBatch; i++) {
+            names[i] = "task" + i;
+        }
+
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setMaxConcurrentThreadCount(1);
+        taskQueue.setRingBufferDispatch(1024, RingBufferExecutor.WaitStrategy.YIELD);
+        // 任务池远小于任务总数，只有完成的任务及时回到任务池才能不分配
+        taskQueue.setTaskPoolSize(256);
+        taskQueue.setCapacity(128, TaskQueue.OverflowPolicy.BLOCK);
+        taskQueue.retainStream();
+        taskQueue.start();
+        try {
+            for (int i=0; i<5; i++) {
+                runStream(threadMXBean, taskQueue, names, largeBatch);
+            }
+            long smallBytes = Long.MAX_VALUE;
+            long largeBytes = Long.MAX_VALUE;
+            for (int i=0; i<3; i++) {
+                smallBytes = Math.min(smallBytes, runStream(threadMXBean, taskQueue, names, smallBatch));
+                largeBytes = Math.min(largeBytes, runStream(threadMXBean, taskQueue, names, largeBatch));
+            }
+            double bytesPerTask = (double) (largeBytes - smallBytes) / (largeBatch - smallBatch);
+            System.out.println(">>> allocated bytes (streaming): per task=" + bytesPerTask);
+            assertTrue("bytes per task=" + bytesPerTask, bytesPerTask < 1.0);
+        } finally {
+            taskQueue.releaseStream();
+        }
+    }
+
+    /**
+     * 队列满、任务未添加（tryAdd返回false）时任务对象回到任务池，不会因背压耗尽任务池
+     */
+    @Test
+    public void testRejectedAddReturnsTaskToPool() throws Exception {
+        final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) return;
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setTaskPoolSize(4);
+        taskQueue.setCapacity(1, TaskQueue.OverflowPolicy.DROP_NEWEST);
+        Callable<Integer> callable = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return RESULT;
+            }
+        };
+        taskQueue.add("first", callable);
+
+        long threadId = Thread.currentThread().getId();
+        for (int i=0; i<1000; i++) {
+            assertFalse(taskQueue.tryAdd("rejected", callable));
+            taskQueue.add("dropped", callable);
+        }
+        long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i=0; i<10000; i++) {
+            taskQueue.tryAdd("rejected", callable);
+            taskQueue.add("dropped", callable);
+        }
+        long bytes = threadMXBean.getThreadAllocatedBytes(threadId) - start;
+        assertTrue("bytes per rejected add=" + (bytes / 20000.0), bytes < 20000);
+        taskQueue.cancelAll();
+    }
+
+    /**
+     * 流式添加一批任务并等待全部回调，返回添加任务的线程和工作线程分配的字节数之和
+     */
+    private long runStream(final com.sun.management.ThreadMXBean threadMXBean, TaskQueue taskQueue,
+                           String[] names, final int count) throws Exception {
+        final long[] workerBytes = new long[] { -1, -1 };
+        final int[] resultCount = new int[1];
+        final CountDownLatch finished = new CountDownLatch(1);
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                // 回调都在唯一的工作线程上执行
+                if (++resultCount[0] == count) {
+                    workerBytes[1] = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    finished.countDown();
+                }
+            }
+        });
+        Callable<Integer> callable = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                if (workerBytes[0] < 0) {
+                    workerBytes[0] = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+                return RESULT;
+            }
+        };
+
+        long producerId = Thread.currentThread().getId();
+        long producerStart = threadMXBean.getThreadAllocatedBytes(producerId);
+        for (int i=0; i<count; i++) {
+            taskQueue.add(names[i], callable);
+        }
+        long producerBytes = threadMXBean.getThreadAllocatedBytes(producerId) - producerStart;
+
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        return producerBytes + (workerBytes[1] - workerBytes[0]);
+    }
+
+    /**
+     * 执行一批任务，返回添加任务的线程和（唯一的）工作线程分配的字节数之和
+     */
+    private long runBatch(final com.sun.management.ThreadMXBean threadMXBean, TaskQueue taskQueue,
+                          String[] names, final int count) throws Exception {
+        final long[] workerBytes = new long[] { -1, -1 };
+        final CountDownLatch finished = new CountDownLatch(1);
+        taskQueue.setQueueFinishedCallback(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                // 最后一个任务完成后在工作线程上回调
+                workerBytes[1] = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                assertEquals(count, result.size());
+                finished.countDown();
+            }
+        });
+        Callable<Integer> callable = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                if (workerBytes[0] < 0) {
+                    workerBytes[0] = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+                return RESULT;
+            }
+        };
+
+        long producerId = Thread.currentThread().getId();
+        long producerStart = threadMXBean.getThreadAllocatedBytes(producerId);
+        for (int i=0; i<count; i++) {
+            taskQueue.add(names[i], callable);
+        }
+        taskQueue.start();
+        long producerBytes = threadMXBean.getThreadAllocatedBytes(producerId) - producerStart;
+
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        // onFinished返回后任务才回到任务池，稍等再开始下一批
+        Thread.sleep(50);
+        return producerBytes + (workerBytes[1] - workerBytes[0]);
+    }
+}
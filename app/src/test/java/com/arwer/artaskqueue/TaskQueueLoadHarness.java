@@ -0,0 +1,436 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.AdaptiveConcurrencyLimit;
+import com.arwer.arlibrary.threads.RingBufferExecutor;
+import com.arwer.arlibrary.threads.TaskQueue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TaskQueue的压测/浸泡测试工具，不依赖网络，可在任意Linux机器上离线运行。
+ * 1、合成任务：CPU计算、sleep、按比例失败、重尾延迟（帕累托分布）；
+ * 2、到达模型：开环（按泊松过程定时添加，与完成速度无关，延迟从计划到达时间算起，不受协同遗漏影响）、
+ *    闭环（每个生产者等上一个任务完成再添加下一个）；
+ * 3、报告吞吐量、p50/p99/p999延迟、线程数峰值、堆占用峰值，可按并发模式对比。
+ * 同样的配置和随机种子产生同样的到达时间和任务耗时序列，可以作为性能回归的门禁
+ * （见TaskQueueLoadUnitTest，吞吐量和延迟的门禁需-Dloadtest.perfGates=true开启，适合在空闲的专用机器上运行）。
+ *
+ * 浸泡测试：java ... com.arwer.artaskqueue.TaskQueueLoadHarness
+ *      -Dloadtest.rounds=100 -Dloadtest.tasks=20000 -Dloadtest.rate=5000 -Dloadtest.producers=4 -Dloadtest.concurrency=16
+ */
+public class TaskQueueLoadHarness {
+
+    /**
+     * 合成任务的类型
+     */
+    public enum Profile {
+        /** 忙于计算，耗时为服务时间 */
+        CPU,
+        /** 睡眠，耗时为服务时间 */
+        SLEEP,
+        /** 睡眠，按失败比例抛出IOException */
+        FAILING,
+        /** 睡眠，耗时服从均值为服务时间的帕累托分布（α=1.5），最长为服务时间的100倍 */
+        HEAVY_TAIL
+    }
+
+    /**
+     * 到达模型
+     */
+    public enum Arrival {
+        OPEN_LOOP,
+        CLOSED_LOOP
+    }
+
+    /**
+     * TaskQueue的并发模式
+     */
+    public enum Mode {
+        /** 固定并发数 */
+        FIXED,
+        /** 自适应并发上限，范围[1, 并发数] */
+        ADAPTIVE,
+        /** 固定并发数，无锁环形队列派发 */
+        RING_BUFFER,
+        /** 固定并发数，复用任务对象 */
+        TASK_POOL
+    }
+
+    /**
+     * 压测配置
+     */
+    public static class Config {
+        private final Profile mProfile;
+        private final Arrival mArrival;
+        private final Mode mMode;
+        private final int mProducers;
+        private final int mTasks;
+        private final int mConcurrency;
+        // 平均服务时间（微秒）
+        private long mServiceMicros = 1000;
+        // 开环模式下所有生产者合计的到达速率（每秒）
+        private double mRatePerSecond = 1000;
+        // FAILING的失败比例
+        private double mFailureRate = 0.1;
+        private long mSeed = 42;
+
+        /**
+         * @param tasks 任务总数，平均分给各生产者
+         */
+        public Config(Profile profile, Arrival arrival, Mode mode, int producers, int tasks, int concurrency) {
+            if (producers < 1 || tasks < producers || concurrency < 1) throw new IllegalArgumentException();
+            mProfile = profile;
+            mArrival = arrival;
+            mMode = mode;
+            mProducers = producers;
+            mTasks = tasks - tasks % producers;
+            mConcurrency = concurrency;
+        }
+
+        public void setServiceMicros(long micros) {
+            mServiceMicros = micros;
+        }
+
+        public void setRatePerSecond(double rate) {
+            mRatePerSecond = rate;
+        }
+
+        public void setFailureRate(double rate) {
+            mFailureRate = rate;
+        }
+
+        public void setSeed(long seed) {
+            mSeed = seed;
+        }
+
+        public int getTasks() {
+            return mTasks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s/%s/%s producers=%d tasks=%d concurrency=%d service=%dus%s",
+                    mProfile, mArrival, mMode, mProducers, mTasks, mConcurrency, mServiceMicros,
+                    mArrival == Arrival.OPEN_LOOP ? String.format(Locale.US, " rate=%.0f/s", mRatePerSecond) : "");
+        }
+    }
+
+    /**
+     * 压测结果
+     */
+    public static class Report {
+        private final Config mConfig;
+        private final int mCompleted;
+        private final int mFailed;
+        private final long mElapsedNanos;
+        // 排好序的延迟（纳秒）
+        private final long[] mLatencies;
+        private final int mPeakThreads;
+        private final long mPeakHeapBytes;
+
+        private Report(Config config, int completed, int failed, long elapsedNanos, long[] latencies, int peakThreads, long peakHeapBytes) {
+            mConfig = config;
+            mCompleted = completed;
+            mFailed = failed;
+            mElapsedNanos = elapsedNanos;
+            mLatencies = latencies;
+            mPeakThreads = peakThreads;
+            mPeakHeapBytes = peakHeapBytes;
+        }
+
+        public int getCompleted() {
+            return mCompleted;
+        }
+
+        public int getFailed() {
+            return mFailed;
+        }
+
+        /**
+         * 吞吐量（每秒完成的任务数）
+         */
+        public double getThroughput() {
+            return mCompleted * 1e9 / Math.max(1, mElapsedNanos);
+        }
+
+        /**
+         * 延迟的百分位
+         * @param percentile 如99.9
+         * @return 延迟（纳秒）
+         */
+        public long getLatencyNanos(double percentile) {
+            if (mLatencies.length == 0) return 0;
+            int index = (int) Math.ceil(percentile / 100 * mLatencies.length) - 1;
+            return mLatencies[Math.max(0, Math.min(mLatencies.length - 1, index))];
+        }
+
+        public int getPeakThreads() {
+            return mPeakThreads;
+        }
+
+        public long getPeakHeapBytes() {
+            return mPeakHeapBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s | %.0f tasks/s p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms failed=%d threads=%d heap=%.1fMB",
+                    mConfig, getThroughput(), getLatencyNanos(50) / 1e6, getLatencyNanos(99) / 1e6, getLatencyNanos(99.9) / 1e6,
+                    getLatencyNanos(100) / 1e6, mFailed, mPeakThreads, mPeakHeapBytes / (1024.0 * 1024.0));
+        }
+    }
+
+    /**
+     * 执行一轮压测
+     * @param config 配置
+     * @return 结果
+     */
+    public static Report run(final Config config) throws Exception {
+        final int perProducer = config.mTasks / config.mProducers;
+        final long[] latencies = new long[config.mTasks];
+        final CountDownLatch completed = new CountDownLatch(config.mTasks);
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch queueFinished = new CountDownLatch(1);
+
+        TaskQueue taskQueue = createQueue(config, new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                queueFinished.countDown();
+            }
+        });
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        HeapSampler heapSampler = new HeapSampler();
+        heapSampler.start();
+
+        taskQueue.retainStream();
+        taskQueue.start();
+        final long startNanos = System.nanoTime();
+        Thread[] producers = new Thread[config.mProducers];
+        final AtomicReference<Throwable> producerError = new AtomicReference<>();
+        for (int p=0; p<config.mProducers; p++) {
+            final int producer = p;
+            final TaskQueue queue = taskQueue;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        produce(config, queue, producer, perProducer, startNanos, latencies, completed, failed);
+                    } catch (Throwable e) {
+                        producerError.set(e);
+                    }
+                }
+            }, "LoadProducer-" + p);
+            producers[p].start();
+        }
+        for (Thread producer : producers) producer.join();
+        if (producerError.get() != null) throw new Exception("producer failed", producerError.get());
+        if (!completed.await(5, TimeUnit.MINUTES)) throw new Exception("tasks unfinished: " + completed.getCount());
+        long elapsedNanos = System.nanoTime() - startNanos;
+        int peakThreads = threads.getPeakThreadCount();
+
+        taskQueue.releaseStream();
+        queueFinished.await(10, TimeUnit.SECONDS);
+        heapSampler.stopSampling();
+
+        Arrays.sort(latencies);
+        return new Report(config, config.mTasks, failed.get(), elapsedNanos, latencies, peakThreads, heapSampler.mPeakBytes.get());
+    }
+
+    private static TaskQueue createQueue(Config config, TaskQueue.IQueueFinishedCallback callback) {
+        TaskQueue taskQueue = new TaskQueue(callback);
+        switch (config.mMode) {
+            case ADAPTIVE:
+                taskQueue.setAdaptiveConcurrencyLimit(new AdaptiveConcurrencyLimit(1, config.mConcurrency));
+                break;
+            case RING_BUFFER:
+                taskQueue.setMaxConcurrentThreadCount(config.mConcurrency);
+                taskQueue.setRingBufferDispatch(1024, RingBufferExecutor.WaitStrategy.PARK);
+                break;
+            case TASK_POOL:
+                taskQueue.setMaxConcurrentThreadCount(config.mConcurrency);
+                taskQueue.setTaskPoolSize(config.mConcurrency * 4);
+                break;
+            default:
+                taskQueue.setMaxConcurrentThreadCount(config.mConcurrency);
+                break;
+        }
+        return taskQueue;
+    }
+
+    /**
+     * 一个生产者：开环按泊松过程的计划时间添加；闭环等上一个任务完成再添加
+     */
+    private static void produce(Config config, TaskQueue queue, int producer, int count, long startNanos,
+                                long[] latencies, CountDownLatch completed, AtomicInteger failed) throws Exception {
+        Random random = new Random(config.mSeed * 31 + producer);
+        Semaphore inFlight = config.mArrival == Arrival.CLOSED_LOOP ? new Semaphore(1) : null;
+        double meanIntervalNanos = 1e9 * config.mProducers / config.mRatePerSecond;
+        long arrivalNanos = startNanos;
+
+        for (int i=0; i<count; i++) {
+            if (inFlight != null) {
+                inFlight.acquire();
+                arrivalNanos = System.nanoTime();
+            }
+            else {
+                arrivalNanos += (long) (-Math.log(1 - random.nextDouble()) * meanIntervalNanos);
+                long wait;
+                while ((wait = arrivalNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            int index = producer * count + i;
+            queue.add("task" + index, new SyntheticTask(config, serviceNanos(config, random), failure(config, random),
+                    index, arrivalNanos, latencies, completed, failed, inFlight));
+        }
+    }
+
+    private static long serviceNanos(Config config, Random random) {
+        long mean = config.mServiceMicros * 1000;
+        if (config.mProfile != Profile.HEAVY_TAIL) return mean;
+        // 帕累托分布：α=1.5时均值为 xm * α / (α - 1) = 3 * xm
+        double xm = mean / 3.0;
+        double value = xm / Math.pow(1 - random.nextDouble(), 1 / 1.5);
+        return (long) Math.min(value, mean * 100.0);
+    }
+
+    private static boolean failure(Config config, Random random) {
+        return config.mProfile == Profile.FAILING && random.nextDouble() < config.mFailureRate;
+    }
+
+    /**
+     * 合成任务：按类型消耗时间，结束时记录从到达到完成的延迟
+     */
+    private static class SyntheticTask implements Callable<Long> {
+        private final Config mConfig;
+        private final long mServiceNanos;
+        private final boolean mFail;
+        private final int mIndex;
+        private final long mArrivalNanos;
+        private final long[] mLatencies;
+        private final CountDownLatch mCompleted;
+        private final AtomicInteger mFailed;
+        private final Semaphore mInFlight;
+
+        private SyntheticTask(Config config, long serviceNanos, boolean fail, int index, long arrivalNanos,
+                              long[] latencies, CountDownLatch completed, AtomicInteger failed, Semaphore inFlight) {
+            mConfig = config;
+            mServiceNanos = serviceNanos;
+            mFail = fail;
+            mIndex = index;
+            mArrivalNanos = arrivalNanos;
+            mLatencies = latencies;
+            mCompleted = completed;
+            mFailed = failed;
+            mInFlight = inFlight;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            try {
+                long value = mConfig.mProfile == Profile.CPU ? spin(mServiceNanos) : sleep(mServiceNanos);
+                if (mFail) {
+                    mFailed.incrementAndGet();
+                    throw new IOException("synthetic failure");
+                }
+                return value;
+            } finally {
+                mLatencies[mIndex] = System.nanoTime() - mArrivalNanos;
+                mCompleted.countDown();
+                if (mInFlight != null) mInFlight.release();
+            }
+        }
+
+        private static long spin(long nanos) {
+            long deadline = System.nanoTime() + nanos;
+            long x = 88172645463325252L;
+            do {
+                for (int i=0; i<64; i++) {
+                    x ^= x << 13;
+                    x ^= x >>> 7;
+                    x ^= x << 17;
+                }
+            } while (System.nanoTime() < deadline);
+            return x;
+        }
+
+        private static long sleep(long nanos) {
+            long deadline = System.nanoTime() + nanos;
+            long wait;
+            while ((wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            return nanos;
+        }
+    }
+
+    /**
+     * 定时采样堆占用，记录峰值
+     */
+    private static class HeapSampler extends Thread {
+        private final AtomicLong mPeakBytes = new AtomicLong();
+        private volatile boolean mStopped = false;
+
+        private HeapSampler() {
+            super("LoadHeapSampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!mStopped) {
+                long used = runtime.totalMemory() - runtime.freeMemory();
+                if (used > mPeakBytes.get()) mPeakBytes.set(used);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+
+        private void stopSampling() throws InterruptedException {
+            mStopped = true;
+            join();
+        }
+    }
+
+    /**
+     * 浸泡测试：按系统属性的配置，对每种任务类型和并发模式反复压测并打印结果
+     */
+    public static void main(String[] args) throws Exception {
+        int rounds = Integer.getInteger("loadtest.rounds", 1);
+        int tasks = Integer.getInteger("loadtest.tasks", 10000);
+        int rate = Integer.getInteger("loadtest.rate", 2000);
+        int producers = Integer.getInteger("loadtest.producers", 4);
+        int concurrency = Integer.getInteger("loadtest.concurrency", 16);
+        for (int round=0; round<rounds; round++) {
+            for (Profile profile : Profile.values()) {
+                for (Mode mode : Mode.values()) {
+                    Config config = new Config(profile, Arrival.OPEN_LOOP, mode, producers, tasks, concurrency);
+                    config.setRatePerSecond(rate);
+                    config.setSeed(round);
+                    System.out.println(run(config));
+                }
+            }
+            for (Mode mode : Mode.values()) {
+                Config config = new Config(Profile.SLEEP, Arrival.CLOSED_LOOP, mode, producers, tasks / 10, concurrency);
+                config.setSeed(round);
+                System.out.println(run(config));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.arwer.artaskqueue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 用TaskQueueLoadHarness做短时间压测。默认只检查与机器负载无关的结果：任务全部完成、失败数、线程数峰值等；
+ * 吞吐量和延迟的门禁依赖机器空闲，在繁忙的CI上会误报，需显式开启：-Dloadtest.perfGates=true，
+ * 阈值留有余量，只拦截明显的退化；可用系统属性收紧：-Dloadtest.maxP99Millis=20
+ */
+public class TaskQueueLoadUnitTest {
+
+    // 是否检查吞吐量和延迟
+    private static final boolean PERF_GATES = Boolean.getBoolean("loadtest.perfGates");
+    // p99延迟上限（毫秒）
+    private static final long MAX_P99_MILLIS = Long.getLong("loadtest.maxP99Millis", 200);
+    // 压测工具自身的辅助线程（堆采样）及余量
+    private static final int HARNESS_THREADS = 4;
+
+    /**
+     * 开环：各并发模式下任务全部完成，延迟不小于服务时间
+     */
+    @Test
+    public void testOpenLoopModes() throws Exception {
+        for (TaskQueueLoadHarness.Mode mode : TaskQueueLoadHarness.Mode.values()) {
+            TaskQueueLoadHarness.Report report = TaskQueueLoadHarness.run(openLoopConfig(mode));
+            System.out.println(report);
+
+            assertEquals(1000, report.getCompleted());
+            assertEquals(0, report.getFailed());
+            assertTrue(report.toString(), report.getLatencyNanos(50) >= 1000000);
+        }
+    }
+
+    /**
+     * 开环的性能门禁（需开启）：各并发模式都跟得上到达速率，尾延迟在上限内
+     */
+    @Test
+    public void testOpenLoopPerformance() throws Exception {
+        assumeTrue(PERF_GATES);
+        for (TaskQueueLoadHarness.Mode mode : TaskQueueLoadHarness.Mode.values()) {
+            TaskQueueLoadHarness.Report report = TaskQueueLoadHarness.run(openLoopConfig(mode));
+            System.out.println(report);
+
+            // 到达速率2000/s，持续约0.5秒
+            assertTrue(report.toString(), report.getThroughput() > 1000);
+            assertTrue(report.toString(), report.getLatencyNanos(99) < MAX_P99_MILLIS * 1000000);
+        }
+    }
+
+    /**
+     * 闭环：任务全部完成
+     */
+    @Test
+    public void testClosedLoop() throws Exception {
+        TaskQueueLoadHarness.Report report = TaskQueueLoadHarness.run(closedLoopConfig());
+        System.out.println(report);
+
+        assertEquals(400, report.getCompleted());
+        assertEquals(0, report.getFailed());
+    }
+
+    /**
+     * 闭环的性能门禁（需开启）：吞吐量约为 生产者数 / 服务时间
+     */
+    @Test
+    public void testClosedLoopPerformance() throws Exception {
+        assumeTrue(PERF_GATES);
+        TaskQueueLoadHarness.Report report = TaskQueueLoadHarness.run(closedLoopConfig());
+        System.out.println(report);
+
+        // 理论上限 4 / 2ms = 2000/s
+        assertTrue(report.toString(), report.getThroughput() < 2100);
+        assertTrue(report.toString(), report.getThroughput() > 500);
+    }
+
+    /**
+     * 失败：失败数由随机种子决定，同样的配置结果相同
+     */
+    @Test
+    public void testFailingProfile() throws Exception {
+        int[] failed = new int[2];
+        for (int i=0; i<2; i++) {
+            TaskQueueLoadHarness.Config config = new TaskQueueLoadHarness.Config(TaskQueueLoadHarness.Profile.FAILING,
+                    TaskQueueLoadHarness.Arrival.OPEN_LOOP, TaskQueueLoadHarness.Mode.FIXED, 2, 500, 8);
+            config.setServiceMicros(200);
+            config.setRatePerSecond(5000);
+            config.setFailureRate(0.2);
+            TaskQueueLoadHarness.Report report = TaskQueueLoadHarness.run(config);
+            assertEquals(500, report.getCompleted());
+            failed[i] = report.getFailed();
+        }
+        assertEquals(failed[0], failed[1]);
+        assertTrue("failed=" + failed[0], failed[0] > 50 && failed[0] < 150);
+    }
+
+    /**
+     * 重尾的性能门禁（需开启）：重尾任务的p999明显高于p50
+     */
+    @Test
+    public void testHeavyTailPerformance() throws Exception {
+        assumeTrue(PERF_GATES);
+        TaskQueueLoadHarness.Config config = new TaskQueueLoadHarness.Config(TaskQueueLoadHarness.Profile.HEAVY_TAIL,
+                TaskQueueLoadHarness.Arrival.OPEN_LOOP, TaskQueueLoadHarness.Mode.FIXED, 2, 1000, 64);
+        config.setServiceMicros(500);
+        config.setRatePerSecond(4000);
+        TaskQueueLoadHarness.Report report = TaskQueueLoadHarness.run(config);
+        System.out.println(report);
+        assertTrue(report.toString(), report.getLatencyNanos(99.9) > 3 * report.getLatencyNanos(50));
+    }
+
+    /**
+     * CPU计算型任务：并发数为CPU核数时任务全部完成；线程数峰值不超过压测前的线程数、生产者线程、
+     * 并发数（任务线程）与压测工具的辅助线程之和，即队列没有额外创建线程
+     */
+    @Test
+    public void testCpuProfile() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        TaskQueueLoadHarness.Config config = new TaskQueueLoadHarness.Config(TaskQueueLoadHarness.Profile.CPU,
+                TaskQueueLoadHarness.Arrival.CLOSED_LOOP, TaskQueueLoadHarness.Mode.FIXED, cores, cores * 50, cores);
+        config.setServiceMicros(500);
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        TaskQueueLoadHarness.Report report = TaskQueueLoadHarness.run(config);
+        System.out.println(report);
+        assertEquals(config.getTasks(), report.getCompleted());
+        assertTrue(report.toString() + " before=" + threadsBefore,
+                report.getPeakThreads() <= threadsBefore + cores + cores + HARNESS_THREADS);
+    }
+
+    /**
+     * 开环配置：每秒到达2000个、服务时间1毫秒的任务
+     */
+    private static TaskQueueLoadHarness.Config openLoopConfig(TaskQueueLoadHarness.Mode mode) {
+        TaskQueueLoadHarness.Config config = new TaskQueueLoadHarness.Config(TaskQueueLoadHarness.Profile.SLEEP,
+                TaskQueueLoadHarness.Arrival.OPEN_LOOP, mode, 4, 1000, 16);
+        config.setServiceMicros(1000);
+        config.setRatePerSecond(2000);
+        return config;
+    }
+
+    /**
+     * 闭环配置：4个生产者，服务时间2毫秒
+     */
+    private static TaskQueueLoadHarness.Config closedLoopConfig() {
+        TaskQueueLoadHarness.Config config = new TaskQueueLoadHarness.Config(TaskQueueLoadHarness.Profile.SLEEP,
+                TaskQueueLoadHarness.Arrival.CLOSED_LOOP, TaskQueueLoadHarness.Mode.FIXED, 4, 400, 8);
+        config.setServiceMicros(2000);
+        return config;
+    }
+
+}
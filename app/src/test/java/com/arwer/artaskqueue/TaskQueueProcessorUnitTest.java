@@ -0,0 +1,236 @@
+package com.arwer.artaskqueue;
+
+import com.arwer.arlibrary.threads.TaskFlow;
+import com.arwer.arlibrary.threads.TaskQueue;
+import com.arwer.arlibrary.threads.TaskQueueProcessor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * TaskQueueProcessor的单元测试
+ */
+public class TaskQueueProcessorUnitTest {
+
+    /**
+     * 按下游需求拉取：只请求了5个结果时上游只发出5个元素；已请求未发布的元素数不超过并发上限；有序模式下按上游顺序发布
+     */
+    @Test
+    public void testDemandDrivenPulling() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch queueFinished = new CountDownLatch(1);
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                queueFinished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(2);
+        taskQueue.setOrderedResults(true);
+        TaskQueueProcessor<Integer, Integer> processor = new TaskQueueProcessor<>(taskQueue, new TaskQueue.IMapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer item) throws Exception {
+                int now = running.incrementAndGet();
+                int max;
+                while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) { }
+                try {
+                    Thread.sleep(item % 3 == 0 ? 15 : 2);
+                    return item * 2;
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        });
+
+        TestSubscriber subscriber = new TestSubscriber(5);
+        RangePublisher publisher = new RangePublisher(50, subscriber);
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+
+        assertTrue(subscriber.awaitCount(5, 5000));
+        Thread.sleep(100);
+        assertEquals(5, subscriber.mItems.size());
+        assertEquals(5, publisher.mEmitted.get());
+
+        subscriber.request(Long.MAX_VALUE);
+        assertTrue(subscriber.mDone.await(5, TimeUnit.SECONDS));
+        assertNull(subscriber.mError.get());
+        assertEquals(50, subscriber.mItems.size());
+        for (int i=0; i<50; i++) {
+            assertEquals(Integer.valueOf(i * 2), subscriber.mItems.get(i));
+        }
+        assertTrue("peak=" + peak.get(), peak.get() <= 2);
+        assertTrue("maxOutstanding=" + publisher.mMaxOutstanding, publisher.mMaxOutstanding <= 2);
+        assertTrue(queueFinished.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 转换出错时取消上游，下游以onError结束
+     */
+    @Test
+    public void testMapperErrorCancelsUpstream() throws Exception {
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setMaxConcurrentThreadCount(1);
+        TaskQueueProcessor<Integer, Integer> processor = new TaskQueueProcessor<>(taskQueue, new TaskQueue.IMapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer item) throws Exception {
+                if (item == 3) throw new IOException("bad item");
+                return item;
+            }
+        });
+
+        TestSubscriber subscriber = new TestSubscriber(Long.MAX_VALUE);
+        RangePublisher publisher = new RangePublisher(1000, subscriber);
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+
+        assertTrue(subscriber.mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(subscriber.mError.get() instanceof IOException);
+        assertEquals(3, subscriber.mItems.size());
+        assertTrue(publisher.mCancelled);
+        assertTrue(publisher.mEmitted.get() < 1000);
+    }
+
+    /**
+     * request(n)的n不大于0时以IllegalArgumentException结束
+     */
+    @Test
+    public void testInvalidRequest() throws Exception {
+        TaskQueueProcessor<Integer, Integer> processor = new TaskQueueProcessor<>(new TaskQueue(), new TaskQueue.IMapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer item) throws Exception {
+                return item;
+            }
+        });
+        TestSubscriber subscriber = new TestSubscriber(0);
+        new RangePublisher(10, subscriber).subscribe(processor);
+        processor.subscribe(subscriber);
+
+        subscriber.request(0);
+        assertTrue(subscriber.mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(subscriber.mError.get() instanceof IllegalArgumentException);
+    }
+
+    /**
+     * 同步发布0..count-1的上游，记录发出的元素数和已请求未被下游收到的最大元素数
+     */
+    private static class RangePublisher implements TaskFlow.Publisher<Integer> {
+        private final int mCount;
+        private final TestSubscriber mDownstream;
+        private final AtomicInteger mEmitted = new AtomicInteger();
+        private long mRequested = 0;
+        private long mMaxOutstanding = 0;
+        private boolean mEmitting = false;
+        private volatile boolean mCancelled = false;
+
+        private RangePublisher(int count, TestSubscriber downstream) {
+            mCount = count;
+            mDownstream = downstream;
+        }
+
+        @Override
+        public void subscribe(final TaskFlow.Subscriber<? super Integer> subscriber) {
+            subscriber.onSubscribe(new TaskFlow.Subscription() {
+                @Override
+                public void request(long n) {
+                    synchronized (RangePublisher.this) {
+                        mRequested += n;
+                        mMaxOutstanding = Math.max(mMaxOutstanding, mRequested - mDownstream.mItems.size());
+                        if (mEmitting) return;
+                        mEmitting = true;
+                    }
+                    while (true) {
+                        int next;
+                        boolean complete = false;
+                        synchronized (RangePublisher.this) {
+                            if (mCancelled || mEmitted.get() >= mRequested || mEmitted.get() >= mCount) {
+                                mEmitting = false;
+                                complete = !mCancelled && mEmitted.get() >= mCount;
+                                if (!complete) return;
+                                mCancelled = true;
+                                next = -1;
+                            }
+                            else {
+                                next = mEmitted.getAndIncrement();
+                            }
+                        }
+                        if (complete) {
+                            subscriber.onComplete();
+                            return;
+                        }
+                        subscriber.onNext(next);
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    mCancelled = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * 记录收到的元素，订阅时请求指定数量
+     */
+    private static class TestSubscriber implements TaskFlow.Subscriber<Integer> {
+        private final long mInitialRequest;
+        private final List<Integer> mItems = Collections.synchronizedList(new ArrayList<Integer>());
+        private final AtomicReference<Throwable> mError = new AtomicReference<>();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile TaskFlow.Subscription mSubscription;
+
+        private TestSubscriber(long initialRequest) {
+            mInitialRequest = initialRequest;
+        }
+
+        private void request(long n) {
+            mSubscription.request(n);
+        }
+
+        private boolean awaitCount(int count, long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (mItems.size() < count) {
+                if (System.currentTimeMillis() > deadline) return false;
+                Thread.sleep(5);
+            }
+            return true;
+        }
+
+        @Override
+        public void onSubscribe(TaskFlow.Subscription subscription) {
+            mSubscription = subscription;
+            if (mInitialRequest > 0) subscription.request(mInitialRequest);
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            mItems.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mError.set(throwable);
+            mDone.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            mDone.countDown();
+        }
+    }
+
+}
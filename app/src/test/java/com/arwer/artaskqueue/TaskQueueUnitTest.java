@@ -1,16 +1,50 @@
 package com.arwer.artaskqueue;
 
+import android.content.ComponentCallbacks2;
+
 import com.arwer.arlibrary.threads.TaskQueue;
 
+import com.arwer.arlibrary.threads.AdaptiveConcurrencyLimit;
+import com.arwer.arlibrary.threads.CircuitBreaker;
+import com.arwer.arlibrary.threads.ElasticPoolSize;
+import com.arwer.arlibrary.threads.HedgePolicy;
+import com.arwer.arlibrary.threads.ResultSpiller;
+import com.arwer.arlibrary.threads.RingBufferExecutor;
+import com.arwer.arlibrary.threads.SpilledResult;
+import com.arwer.arlibrary.threads.TaskEvent;
+
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
 
 /**
  * Created by long on 16/2/28.
@@ -192,6 +226,1402 @@ public class TaskQueueUnitTest {
     }
 
 
+    /**
+     * 测试固定并发上限：同时执行的任务数不超过最大并发线程数
+     */
+    @Test
+    public void testMaxConcurrentThreadCountIsHonoured() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                assertEquals(8, result.size());
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(2);
+        for (int i=0; i<8; i++) {
+            taskQueue.add("task" + i, sleepTask(running, peak, 20));
+        }
+        taskQueue.start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue("peak=" + peak.get(), peak.get() <= 2);
+    }
+
+    /**
+     * 测试自适应并发上限：延迟稳定的任务使并发上限从下限逐步增长，且不超过上限
+     */
+    @Test
+    public void testAdaptiveConcurrencyLimit() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                finished.countDown();
+            }
+        });
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 4);
+        taskQueue.setAdaptiveConcurrencyLimit(limit);
+        assertEquals(1, taskQueue.getCurrentConcurrencyLimit());
+        for (int i=0; i<60; i++) {
+            taskQueue.add("task" + i, sleepTask(running, peak, 5));
+        }
+        taskQueue.start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue("limit=" + limit.getLimit(), limit.getLimit() > 1);
+        assertTrue("peak=" + peak.get(), peak.get() <= 4);
+    }
+
+    /**
+     * 测试自适应并发上限：执行中被取消的任务不作为失败样本，不会降低并发上限
+     */
+    @Test
+    public void testAdaptiveConcurrencyLimitIgnoresCancel() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger doneCount = new AtomicInteger();
+        TaskQueue taskQueue = new TaskQueue();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 8);
+        taskQueue.setAdaptiveConcurrencyLimit(limit);
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                doneCount.incrementAndGet();
+            }
+        });
+        taskQueue.retainStream();
+        taskQueue.start();
+        for (int i=0; i<60; i++) {
+            taskQueue.add("task" + i, sleepTask(running, peak, 5));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (doneCount.get() < 60 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        int grown = limit.getLimit();
+        assertTrue("limit=" + grown, grown > 1);
+
+        CountDownLatch gate = new CountDownLatch(1);
+        for (int i=0; i<grown; i++) {
+            taskQueue.add("blocked" + i, gateTask(gate));
+        }
+        Thread.sleep(100);
+        for (int i=0; i<grown; i++) {
+            taskQueue.cancel("blocked" + i);
+        }
+        deadline = System.currentTimeMillis() + 5000;
+        while (doneCount.get() < 60 + grown && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(60 + grown, doneCount.get());
+        assertEquals(grown, limit.getLimit());
+        taskQueue.releaseStream();
+    }
+
+    /**
+     * 测试取消执行中的任务：中断只会落在被取消的任务上，不会留给同一线程上接着执行的下一个任务
+     */
+    @Test
+    public void testCancelInterruptDoesNotLeakToNextTask() throws Exception {
+        final int count = 4000;
+        final AtomicInteger current = new AtomicInteger(-1);
+        final AtomicInteger strayInterrupts = new AtomicInteger();
+        final AtomicInteger resultCount = new AtomicInteger();
+        final TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setMaxConcurrentThreadCount(1);
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                resultCount.incrementAndGet();
+            }
+        });
+        taskQueue.retainStream();
+        for (int i=0; i<count; i++) {
+            final int index = i;
+            taskQueue.add("t" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    current.set(index);
+                    LockSupport.parkNanos(20000);
+                    if (Thread.interrupted()) {
+                        // 奇数任务从不被取消
+                        if (index % 2 == 1) strayInterrupts.incrementAndGet();
+                        throw new InterruptedException();
+                    }
+                    return index;
+                }
+            });
+        }
+        // 不停地取消正在执行的偶数任务，取消时任务可能恰好执行完
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int last = -1;
+                while (resultCount.get() < count) {
+                    int index = current.get();
+                    if (index != last && index % 2 == 0) {
+                        taskQueue.cancel("t" + index);
+                        last = index;
+                    }
+                }
+            }
+        });
+        canceller.start();
+        taskQueue.start();
+        canceller.join(30000);
+        assertEquals(count, resultCount.get());
+        assertEquals(0, strayInterrupts.get());
+        taskQueue.releaseStream();
+    }
+
+    /**
+     * 测试stop()后再次start()：停止时取消的任务（执行中、等待派发、线程池队列中）都归还名额和计数，
+     * 之后添加的任务执行完成后再次回调onFinished；普通线程池和环形队列线程池都测试
+     */
+    @Test
+    public void testRestartAfterStop() throws Exception {
+        for (int mode=0; mode<2; mode++) {
+            final AtomicInteger finishedCount = new AtomicInteger();
+            final AtomicReference<Map<String, Object>> results = new AtomicReference<>();
+            final CountDownLatch restarted = new CountDownLatch(1);
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger peak = new AtomicInteger();
+
+            TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+                @Override
+                public void onFinished(Map<String, Object> result) {
+                    if (finishedCount.incrementAndGet() == 2) {
+                        results.set(result);
+                        restarted.countDown();
+                    }
+                }
+            });
+            taskQueue.setMaxConcurrentThreadCount(1);
+            if (mode == 1) taskQueue.setRingBufferDispatch(16, RingBufferExecutor.WaitStrategy.PARK);
+            for (int i=0; i<3; i++) {
+                taskQueue.add("slow" + i, sleepTask(running, peak, 2000));
+            }
+            taskQueue.start();
+            Thread.sleep(100);
+            taskQueue.stop();
+            assertEquals(1, finishedCount.get());
+
+            taskQueue.add("task1", constantTask(1));
+            taskQueue.add("task2", constantTask(2));
+            taskQueue.start();
+            assertTrue("mode=" + mode, restarted.await(5, TimeUnit.SECONDS));
+            assertEquals(2, results.get().size());
+            assertEquals(1, results.get().get("task1"));
+            assertEquals(2, results.get().get("task2"));
+            // 被中断的慢任务晚到的完成不会再回调onFinished
+            Thread.sleep(100);
+            assertEquals(2, finishedCount.get());
+        }
+    }
+
+    /**
+     * 测试取消不响应中断的执行中任务：执行线程离开任务前，同键的下一个任务和其他任务都不会开始，
+     * 不会同键并发，也不会超出并发上限
+     */
+    @Test
+    public void testCancelRunningTaskHoldsSlotUntilRunnerLeaves() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean stubbornRunning = new AtomicBoolean();
+        final AtomicInteger keyOverlaps = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(2);
+        taskQueue.retainStream();
+        taskQueue.add("account", "stubborn", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                running.incrementAndGet();
+                stubbornRunning.set(true);
+                started.countDown();
+                // 忽略中断，执行到结束
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+                while (System.nanoTime() < deadline) {
+                    Thread.interrupted();
+                    Thread.yield();
+                }
+                stubbornRunning.set(false);
+                running.decrementAndGet();
+                return 0;
+            }
+        });
+        taskQueue.add("account", "sameKey", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                if (stubbornRunning.get()) keyOverlaps.incrementAndGet();
+                return 1;
+            }
+        });
+        taskQueue.add("busy", sleepTask(running, peak, 500));
+        taskQueue.add("other", sleepTask(running, peak, 50));
+        taskQueue.start();
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        taskQueue.cancel("stubborn");
+        taskQueue.releaseStream();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(0, keyOverlaps.get());
+        assertTrue("peak=" + peak.get(), peak.get() <= 2);
+    }
+
+    /**
+     * 测试有界队列BLOCK策略：队列满时生产者阻塞，任务完成腾出空间后继续添加
+     */
+    @Test
+    public void testBoundedQueueBlocksProducer() throws Exception {
+        final CountDownLatch gate1 = new CountDownLatch(1);
+        final CountDownLatch gate2 = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger resultCount = new AtomicInteger();
+
+        final TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                resultCount.set(result.size());
+                finished.countDown();
+            }
+        });
+        taskQueue.setCapacity(3, TaskQueue.OverflowPolicy.BLOCK);
+        taskQueue.start();
+
+        // 第1个任务一直占用空间直到生产者结束，避免队列中途完成
+        taskQueue.add("sentinel", gateTask(gate2));
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taskQueue.add("task1", gateTask(gate1));
+                    taskQueue.add("task2", gateTask(gate1));
+                    taskQueue.add("task3", gateTask(gate2));
+                    taskQueue.add("task4", gateTask(gate2));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        producer.start();
+
+        producer.join(300);
+        assertTrue("producer should be blocked", producer.isAlive());
+        assertFalse(taskQueue.tryAdd("rejected", gateTask(gate2)));
+        assertFalse(taskQueue.tryAdd("rejected", gateTask(gate2), 50, TimeUnit.MILLISECONDS));
+
+        gate1.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+
+        gate2.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(5, resultCount.get());
+    }
+
+    /**
+     * 测试有界队列DROP_OLDEST和DROP_NEWEST策略
+     */
+    @Test
+    public void testBoundedQueueDropPolicies() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<Map<String, Object>> results = new AtomicReference<>();
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                results.set(result);
+                finished.countDown();
+            }
+        });
+        taskQueue.setCapacity(2, TaskQueue.OverflowPolicy.DROP_OLDEST);
+        taskQueue.add("task1", constantTask(1));
+        taskQueue.add("task2", constantTask(2));
+        taskQueue.add("task3", constantTask(3));
+
+        taskQueue.setCapacity(2, TaskQueue.OverflowPolicy.DROP_NEWEST);
+        taskQueue.add("task4", constantTask(4));
+        assertFalse(taskQueue.tryAdd("task5", constantTask(5)));
+
+        taskQueue.start();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, results.get().size());
+        assertEquals(2, results.get().get("task2"));
+        assertEquals(3, results.get().get("task3"));
+    }
+
+    /**
+     * 测试DROP_OLDEST移除任务时，被移除任务的回调在锁外执行：回调中等待其他线程访问队列不会死锁
+     */
+    @Test
+    public void testDropOldestCallbackOutsideLock() throws Exception {
+        final TaskQueue taskQueue = new TaskQueue(null);
+        final AtomicReference<String> evictedName = new AtomicReference<>();
+        final AtomicBoolean queueAccessible = new AtomicBoolean();
+        taskQueue.setCapacity(1, TaskQueue.OverflowPolicy.DROP_OLDEST);
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                evictedName.set(taskName);
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        taskQueue.isDone("task2");
+                        queueAccessible.set(true);
+                    }
+                });
+                reader.start();
+                try {
+                    reader.join(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        taskQueue.add("task1", constantTask(1));
+        taskQueue.add("task2", constantTask(2));
+
+        assertEquals("task1", evictedName.get());
+        assertTrue(queueAccessible.get());
+        assertFalse(taskQueue.isCancelled("task2"));
+    }
+
+    /**
+     * 测试环形队列派发：各种等待策略下任务都能执行完成，且不超过最大并发线程数
+     */
+    @Test
+    public void testRingBufferDispatch() throws Exception {
+        for (RingBufferExecutor.WaitStrategy strategy : RingBufferExecutor.WaitStrategy.values()) {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger peak = new AtomicInteger();
+            final CountDownLatch finished = new CountDownLatch(1);
+            final AtomicInteger resultCount = new AtomicInteger();
+
+            TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+                @Override
+                public void onFinished(Map<String, Object> result) {
+                    resultCount.set(result.size());
+                    finished.countDown();
+                }
+            });
+            taskQueue.setMaxConcurrentThreadCount(2);
+            taskQueue.setRingBufferDispatch(16, strategy);
+            for (int i=0; i<200; i++) {
+                taskQueue.add("task" + i, sleepTask(running, peak, 0));
+            }
+            taskQueue.start();
+
+            assertTrue(strategy.name(), finished.await(10, TimeUnit.SECONDS));
+            assertEquals(200, resultCount.get());
+            assertTrue("peak=" + peak.get(), peak.get() <= 2);
+        }
+    }
+
+    /**
+     * 测试环形队列派发：多个线程同时添加任务、多个工作线程同时完成任务，在锁外交接给环形队列，
+     * 所有任务都执行一次，且不超过最大并发线程数
+     */
+    @Test
+    public void testRingBufferDispatchConcurrentProducers() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger resultCount = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(4);
+        taskQueue.setRingBufferDispatch(8, RingBufferExecutor.WaitStrategy.YIELD);
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                resultCount.incrementAndGet();
+            }
+        });
+        taskQueue.retainStream();
+        taskQueue.start();
+
+        Thread[] producers = new Thread[4];
+        for (int p=0; p<producers.length; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i=0; i<500; i++) {
+                            taskQueue.add("p" + producer + "-" + i, sleepTask(running, peak, 0));
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        taskQueue.releaseStream();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(2000, resultCount.get());
+        assertTrue("peak=" + peak.get(), peak.get() <= 4);
+    }
+
+    /**
+     * 测试有序返回结果：任务并发执行、完成顺序打乱，结果仍按添加顺序逐个回调，最终结果集合也按添加顺序排列
+     */
+    @Test
+    public void testOrderedResults() throws Exception {
+        final int count = 40;
+        final List<String> emitted = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicReference<Map<String, Object>> results = new AtomicReference<>();
+        final AtomicInteger emittedBeforeFinished = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                emittedBeforeFinished.set(emitted.size());
+                results.set(result);
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(8);
+        taskQueue.setOrderedResults(true);
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                emitted.add(taskName + "=" + result);
+            }
+        });
+        final Random random = new Random(7);
+        for (int i=0; i<count; i++) {
+            final int index = i;
+            final int sleepMillis = random.nextInt(10);
+            taskQueue.add("task" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    Thread.sleep(sleepMillis);
+                    return index;
+                }
+            });
+        }
+        taskQueue.start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(count, emittedBeforeFinished.get());
+        int i = 0;
+        for (Map.Entry<String, Object> entry : results.get().entrySet()) {
+            assertEquals("task" + i, entry.getKey());
+            assertEquals("task" + i + "=" + i, emitted.get(i));
+            ++i;
+        }
+        assertEquals(count, i);
+    }
+
+    /**
+     * 测试按键串行：同键任务按添加顺序逐个执行，不同键的任务并发执行
+     */
+    @Test
+    public void testKeyedSerialExecution() throws Exception {
+        final String[] keys = { "account1", "account2", "account3" };
+        final int perKey = 10;
+        final Map<String, List<Integer>> executed = new HashMap<>();
+        final Map<String, AtomicInteger> runningPerKey = new HashMap<>();
+        for (String key : keys) {
+            executed.put(key, Collections.synchronizedList(new ArrayList<Integer>()));
+            runningPerKey.put(key, new AtomicInteger());
+        }
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger keyViolations = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(4);
+        for (int i=0; i<perKey; i++) {
+            for (final String key : keys) {
+                final int seq = i;
+                final Callable<Integer> sleep = sleepTask(running, peak, 5);
+                taskQueue.add(key, key + "-" + i, new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        if (runningPerKey.get(key).incrementAndGet() > 1) keyViolations.incrementAndGet();
+                        try {
+                            executed.get(key).add(seq);
+                            return sleep.call();
+                        } finally {
+                            runningPerKey.get(key).decrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+        taskQueue.start();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(0, keyViolations.get());
+        for (String key : keys) {
+            List<Integer> order = executed.get(key);
+            assertEquals(perKey, order.size());
+            for (int i=0; i<perKey; i++) {
+                assertEquals(Integer.valueOf(i), order.get(i));
+            }
+        }
+        assertTrue("peak=" + peak.get(), peak.get() > 1);
+    }
+
+    /**
+     * 测试对冲执行：第一次执行很慢时发起对冲，取先完成的对冲结果，并计入对冲次数和胜出次数
+     */
+    @Test
+    public void testHedgedExecution() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicReference<Map<String, Object>> results = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        final TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                results.set(result);
+                finished.countDown();
+            }
+        });
+        taskQueue.add("slowUpstream", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (attempts.incrementAndGet() == 1) {
+                    Thread.sleep(5000);
+                    return "slow";
+                }
+                return "fast";
+            }
+        }, HedgePolicy.afterDelay(50, TimeUnit.MILLISECONDS));
+        taskQueue.add("fastUpstream", constantTask(1), HedgePolicy.afterDelay(1, TimeUnit.SECONDS));
+
+        long startTime = System.currentTimeMillis();
+        taskQueue.start();
+
+        assertTrue(finished.await(3, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - startTime < 3000);
+        assertEquals("fast", results.get().get("slowUpstream"));
+        assertEquals(1, results.get().get("fastUpstream"));
+        assertEquals(1, taskQueue.getHedgeCount());
+        assertEquals(1, taskQueue.getHedgeWinCount());
+    }
+
+    /**
+     * 测试对冲执行占用并发名额：名额用满时不对冲、不消耗对冲预算；有空闲名额时才对冲
+     */
+    @Test
+    public void testHedgeRespectsConcurrencyLimit() throws Exception {
+        for (int limit=1; limit<=2; limit++) {
+            final AtomicInteger attempts = new AtomicInteger();
+            final AtomicReference<Map<String, Object>> results = new AtomicReference<>();
+            final CountDownLatch finished = new CountDownLatch(1);
+            TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+                @Override
+                public void onFinished(Map<String, Object> result) {
+                    results.set(new HashMap<>(result));
+                    finished.countDown();
+                }
+            });
+            taskQueue.setMaxConcurrentThreadCount(limit);
+            taskQueue.setRingBufferDispatch(16, RingBufferExecutor.WaitStrategy.PARK);
+            taskQueue.add("slowUpstream", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (attempts.incrementAndGet() == 1) {
+                        Thread.sleep(300);
+                        return "slow";
+                    }
+                    return "fast";
+                }
+            }, HedgePolicy.afterDelay(20, TimeUnit.MILLISECONDS));
+            taskQueue.start();
+
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            if (limit == 1) {
+                // 唯一的名额被慢任务占用，对冲只能排在它后面，不发起
+                assertEquals("slow", results.get().get("slowUpstream"));
+                assertEquals(1, attempts.get());
+                assertEquals(0, taskQueue.getHedgeCount());
+            }
+            else {
+                assertEquals("fast", results.get().get("slowUpstream"));
+                assertEquals(1, taskQueue.getHedgeCount());
+            }
+        }
+    }
+
+    /**
+     * 测试分组熔断：上游连续失败后熔断器断开，该组剩余任务不再执行、直接以OpenException失败，其他任务不受影响
+     */
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        final AtomicInteger invocations = new AtomicInteger();
+        final AtomicReference<Map<String, Object>> results = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                results.set(result);
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(1);
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setWindow(4, 4);
+        breaker.setOpenDuration(10, TimeUnit.SECONDS);
+        taskQueue.setCircuitBreaker("down.example.com", breaker);
+
+        for (int i=0; i<10; i++) {
+            taskQueue.addToGroup("down.example.com", "down" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    invocations.incrementAndGet();
+                    throw new IOException("connection refused");
+                }
+            });
+        }
+        taskQueue.add("healthy", constantTask(1));
+        taskQueue.start();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(4, invocations.get());
+        assertEquals(CircuitBreaker.State.OPEN, taskQueue.getCircuitBreakerState("down.example.com"));
+        assertNull(taskQueue.getCircuitBreakerState("healthy.example.com"));
+        assertEquals(1, results.get().get("healthy"));
+        for (int i=0; i<10; i++) {
+            Object value = results.get().get("down" + i);
+            assertTrue(value instanceof ExecutionException);
+            Throwable cause = ((ExecutionException) value).getCause();
+            if (i < 4) assertTrue(cause instanceof IOException);
+            else assertTrue(cause instanceof CircuitBreaker.OpenException);
+        }
+    }
+
+    /**
+     * 测试批量并行转换：结果与输入顺序一致，并发线程数不超过并发上限；mapper出错时抛出ExecutionException
+     */
+    @Test
+    public void testBulkMap() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setMaxConcurrentThreadCount(4);
+
+        List<Integer> items = new LinkedList<>();
+        for (int i=0; i<100000; i++) {
+            items.add(i);
+        }
+        List<Long> squares = taskQueue.map(items, new TaskQueue.IMapper<Integer, Long>() {
+            @Override
+            public Long map(Integer item) throws Exception {
+                int now = running.incrementAndGet();
+                int max;
+                while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) { }
+                running.decrementAndGet();
+                return (long) item * item;
+            }
+        });
+        assertEquals(100000, squares.size());
+        for (int i=0; i<squares.size(); i++) {
+            assertEquals((long) i * i, squares.get(i).longValue());
+        }
+        assertTrue("peak=" + peak.get(), peak.get() <= 4);
+
+        try {
+            taskQueue.map(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), new TaskQueue.IMapper<Integer, Integer>() {
+                @Override
+                public Integer map(Integer item) throws Exception {
+                    if (item == 5) throw new IOException("bad item");
+                    return item;
+                }
+            });
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    /**
+     * 测试批量并行归约：只满足结合律的合并函数（字符串拼接）也得到与顺序执行相同的结果
+     */
+    @Test
+    public void testBulkMapReduce() throws Exception {
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setMaxConcurrentThreadCount(8);
+
+        List<Integer> items = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        long expectedSum = 0;
+        for (int i=0; i<5000; i++) {
+            items.add(i);
+            expected.append(i).append(',');
+            expectedSum += i;
+        }
+
+        String joined = taskQueue.mapReduce(items, new TaskQueue.IMapper<Integer, String>() {
+            @Override
+            public String map(Integer item) throws Exception {
+                return item + ",";
+            }
+        }, new TaskQueue.IReducer<String>() {
+            @Override
+            public String reduce(String left, String right) throws Exception {
+                return left + right;
+            }
+        });
+        assertEquals(expected.toString(), joined);
+
+        Long sum = taskQueue.mapReduce(items, new TaskQueue.IMapper<Integer, Long>() {
+            @Override
+            public Long map(Integer item) throws Exception {
+                return (long) item;
+            }
+        }, new TaskQueue.IReducer<Long>() {
+            @Override
+            public Long reduce(Long left, Long right) throws Exception {
+                return left + right;
+            }
+        });
+        assertEquals(expectedSum, sum.longValue());
+
+        assertNull(taskQueue.mapReduce(new ArrayList<Integer>(), new TaskQueue.IMapper<Integer, Long>() {
+            @Override
+            public Long map(Integer item) throws Exception {
+                return (long) item;
+            }
+        }, new TaskQueue.IReducer<Long>() {
+            @Override
+            public Long reduce(Long left, Long right) throws Exception {
+                return left + right;
+            }
+        }));
+    }
+
+    /**
+     * 测试批量操作与任务共用并发名额：名额全部被执行中的任务占用时不启动辅助线程，全部分块在调用线程上执行
+     */
+    @Test
+    public void testBulkMapRespectsConcurrencyLimit() throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch finished = new CountDownLatch(1);
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(2);
+        for (int i=0; i<2; i++) {
+            taskQueue.add("blocked" + i, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    started.countDown();
+                    return gate.await(10, TimeUnit.SECONDS);
+                }
+            });
+        }
+        taskQueue.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final Set<Thread> mapperThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        List<Integer> items = new ArrayList<>();
+        for (int i=0; i<100; i++) {
+            items.add(i);
+        }
+        List<Integer> doubled = taskQueue.map(items, new TaskQueue.IMapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer item) throws Exception {
+                mapperThreads.add(Thread.currentThread());
+                // 每个元素耗时，有辅助线程时一定会分担部分分块
+                Thread.sleep(1);
+                return item * 2;
+            }
+        });
+        assertEquals(100, doubled.size());
+        assertEquals(Collections.singleton(Thread.currentThread()), new HashSet<>(mapperThreads));
+
+        gate.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 测试回调执行器：onFinished和单个任务结果都在回调执行器的线程上回调
+     */
+    @Test
+    public void testCallbackExecutor() throws Exception {
+        final Set<String> callbackThreads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        ExecutorService callbackExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "callback");
+            }
+        });
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                callbackThreads.add(Thread.currentThread().getName());
+                finished.countDown();
+            }
+        });
+        taskQueue.setCallbackExecutor(callbackExecutor);
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                callbackThreads.add(Thread.currentThread().getName());
+            }
+        });
+        for (int i=0; i<10; i++) {
+            taskQueue.add("task" + i, constantTask(i));
+        }
+        taskQueue.start();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singleton("callback"), callbackThreads);
+        callbackExecutor.shutdown();
+    }
+
+    /**
+     * 测试进度回调合并：回调线程忙时完成的任务合并为一次进度回调，且在onFinished之前
+     */
+    @Test
+    public void testCoalescedProgress() throws Exception {
+        final int taskCount = 100;
+        final AtomicInteger progressCalls = new AtomicInteger();
+        final AtomicInteger reported = new AtomicInteger();
+        final AtomicInteger lastFinishedCount = new AtomicInteger();
+        final AtomicInteger reportedAtFinish = new AtomicInteger(-1);
+        final CountDownLatch executed = new CountDownLatch(taskCount);
+        final CountDownLatch uiBusy = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        ExecutorService uiThread = Executors.newSingleThreadExecutor();
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                reportedAtFinish.set(reported.get());
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(4);
+        taskQueue.setCallbackExecutor(uiThread);
+        taskQueue.setProgressCallback(new TaskQueue.IProgressCallback() {
+            @Override
+            public void onProgress(int finishedCount, Map<String, Object> results) {
+                progressCalls.incrementAndGet();
+                reported.addAndGet(results.size());
+                lastFinishedCount.set(finishedCount);
+            }
+        });
+        for (int i=0; i<taskCount; i++) {
+            final int value = i;
+            taskQueue.add("task" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    executed.countDown();
+                    return value;
+                }
+            });
+        }
+
+        // 模拟主线程正忙
+        uiThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    uiBusy.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        taskQueue.start();
+        assertTrue(executed.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        uiBusy.countDown();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, progressCalls.get());
+        assertEquals(taskCount, reported.get());
+        assertEquals(taskCount, lastFinishedCount.get());
+        assertEquals(taskCount, reportedAtFinish.get());
+        uiThread.shutdown();
+    }
+
+    /**
+     * 测试进度回调执行期间完成的最后一个任务：它的进度在onFinished之前回调，onFinished之后没有进度回调
+     */
+    @Test
+    public void testNoProgressAfterFinished() throws Exception {
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger reported = new AtomicInteger();
+        final AtomicInteger reportedAtFinish = new AtomicInteger(-1);
+        final AtomicInteger progressAfterFinish = new AtomicInteger();
+        final CountDownLatch lastTaskGate = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final ExecutorService uiThread = Executors.newSingleThreadExecutor();
+
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                reportedAtFinish.set(reported.get());
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(2);
+        taskQueue.setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitted.incrementAndGet();
+                uiThread.execute(command);
+            }
+        });
+        taskQueue.setProgressCallback(new TaskQueue.IProgressCallback() {
+            @Override
+            public void onProgress(int finishedCount, Map<String, Object> results) {
+                if (finished.getCount() == 0) progressAfterFinish.incrementAndGet();
+                reported.addAndGet(results.size());
+                if (lastTaskGate.getCount() == 0) return;
+                // 第一次进度回调期间让最后一个任务完成，等队列投递onFinished后再返回
+                lastTaskGate.countDown();
+                long deadline = System.currentTimeMillis() + 5000;
+                while (submitted.get() < 2 && System.currentTimeMillis() < deadline) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        });
+        taskQueue.add("first", constantTask(1));
+        taskQueue.add("last", gateTask(lastTaskGate));
+        taskQueue.start();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        // 等待可能晚于onFinished的进度回调
+        final CountDownLatch drained = new CountDownLatch(1);
+        uiThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        assertEquals(2, reportedAtFinish.get());
+        assertEquals(0, progressAfterFinish.get());
+        uiThread.shutdown();
+    }
+
+    /**
+     * 测试子队列：子队列共用根队列的并发名额，各自受配额限制、各自回调；父队列在子队列都完成后才回调
+     */
+    @Test
+    public void testChildQueues() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch childrenFinished = new CountDownLatch(2);
+        final AtomicInteger childrenFinishedAtParent = new AtomicInteger(-1);
+        final CountDownLatch parentFinished = new CountDownLatch(1);
+        final List<Map<String, Object>> childResults = Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+
+        TaskQueue parent = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                childrenFinishedAtParent.set((int) childrenFinished.getCount());
+                parentFinished.countDown();
+            }
+        });
+        parent.setMaxConcurrentThreadCount(3);
+        TaskQueue.IQueueFinishedCallback childCallback = new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                childResults.add(result);
+                childrenFinished.countDown();
+            }
+        };
+        TaskQueue child1 = parent.createChild(2, childCallback);
+        TaskQueue child2 = parent.createChild(2, childCallback);
+        assertSame(parent, child1.getParent());
+
+        AtomicInteger running1 = new AtomicInteger();
+        AtomicInteger peak1 = new AtomicInteger();
+        for (int i=0; i<6; i++) {
+            final Callable<Integer> total = sleepTask(running, peak, 20);
+            final Callable<Integer> own = sleepTask(running1, peak1, 20);
+            child1.add("child1-" + i, new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    own.call();
+                    return total.call();
+                }
+            });
+            child2.add("child2-" + i, sleepTask(running, peak, 20));
+        }
+        child1.start();
+        child2.start();
+
+        assertTrue(parentFinished.await(5, TimeUnit.SECONDS));
+        assertEquals(0, childrenFinishedAtParent.get());
+        assertEquals(2, childResults.size());
+        assertEquals(6, childResults.get(0).size());
+        assertEquals(6, childResults.get(1).size());
+        assertTrue("peak=" + peak.get(), peak.get() <= 3);
+        assertTrue("peak1=" + peak1.get(), peak1.get() <= 2);
+    }
+
+    /**
+     * 测试取消父队列时一并取消子队列：执行中的子任务被中断，未执行的子任务不再执行
+     */
+    @Test
+    public void testCancelParentCascadesToChildren() throws Exception {
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        final CountDownLatch twoStarted = new CountDownLatch(2);
+
+        TaskQueue parent = new TaskQueue();
+        parent.setMaxConcurrentThreadCount(2);
+        TaskQueue child = parent.createChild(0, null);
+        for (int i=0; i<5; i++) {
+            child.add("task" + i, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    started.incrementAndGet();
+                    twoStarted.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.incrementAndGet();
+                        throw e;
+                    }
+                    return true;
+                }
+            });
+        }
+        child.start();
+        assertTrue(twoStarted.await(5, TimeUnit.SECONDS));
+
+        parent.cancelAll();
+        Thread.sleep(200);
+        assertEquals(2, started.get());
+        assertEquals(2, interrupted.get());
+    }
+
+    /**
+     * 任务事件：黑匣子按顺序记录入队、开始、完成/失败/取消，失败事件带异常；监听器实时收到同样的事件
+     */
+    @Test
+    public void testTaskEvents() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<TaskEvent> heard = Collections.synchronizedList(new ArrayList<TaskEvent>());
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(1);
+        taskQueue.setTaskEventListener(new TaskQueue.ITaskEventListener() {
+            @Override
+            public void onEvent(TaskEvent event) {
+                heard.add(event);
+            }
+        });
+        taskQueue.add("ok", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                Thread.sleep(10);
+                return 1;
+            }
+        });
+        taskQueue.add("bad", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                throw new IOException("bad task");
+            }
+        });
+        taskQueue.add("cancelled", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return 3;
+            }
+        });
+        taskQueue.cancel("cancelled");
+        taskQueue.start();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+
+        List<TaskEvent> events = taskQueue.getFlightRecorder().dump();
+        List<String> trace = new ArrayList<>();
+        for (TaskEvent event : events) trace.add(event.getType() + ":" + event.getTaskName());
+        assertEquals(Arrays.asList("ENQUEUED:ok", "ENQUEUED:bad", "ENQUEUED:cancelled", "CANCELLED:cancelled",
+                "STARTED:ok", "FINISHED:ok", "STARTED:bad", "FAILED:bad"), trace);
+        assertTrue(events.get(5).getDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(events.get(7).getError() instanceof IOException);
+        assertEquals(0, events.get(3).getDurationNanos());
+
+        assertEquals(events.size(), heard.size());
+        for (int i=0; i<events.size(); i++) {
+            assertEquals(events.get(i).getType(), heard.get(i).getType());
+            assertEquals(events.get(i).getTaskName(), heard.get(i).getTaskName());
+        }
+
+        // 子队列默认与父队列共用黑匣子
+        assertSame(taskQueue.getFlightRecorder(), taskQueue.createChild(1, null).getFlightRecorder());
+        taskQueue.setFlightRecorder(null);
+        assertNull(taskQueue.getFlightRecorder());
+    }
+
+    /**
+     * 大结果转存：结果集合和单个任务回调中达到阈值的结果为SpilledResult，内容不变；小结果不变
+     */
+    @Test
+    public void testResultSpill() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<Map<String, Object>> results = new AtomicReference<>();
+        final Map<String, Object> callbackResults = Collections.synchronizedMap(new HashMap<String, Object>());
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                results.set(new HashMap<>(result));
+                finished.countDown();
+            }
+        });
+        taskQueue.setMaxConcurrentThreadCount(2);
+        taskQueue.setResultSpiller(new ResultSpiller(64 * 1024, null));
+        taskQueue.setTaskResultCallback(new TaskQueue.ITaskResultCallback() {
+            @Override
+            public void onResult(String taskName, Object result) {
+                callbackResults.put(taskName, result);
+            }
+        });
+        for (int i=0; i<4; i++) {
+            final int size = i < 2 ? 1024 * 1024 : 100;
+            taskQueue.add("page" + i, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    char[] page = new char[size];
+                    Arrays.fill(page, 'x');
+                    return new String(page);
+                }
+            });
+        }
+        taskQueue.start();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+        for (int i=0; i<4; i++) {
+            Object result = results.get().get("page" + i);
+            assertSame(result, callbackResults.get("page" + i));
+            if (i < 2) {
+                SpilledResult spilled = (SpilledResult) result;
+                assertEquals(1024 * 1024, spilled.size());
+                assertEquals('x', spilled.getString().charAt(1024 * 1024 - 1));
+                spilled.release();
+            }
+            else {
+                assertEquals(100, ((String) result).length());
+            }
+        }
+    }
+
+    /**
+     * 弹性线程池：任务排队过久时扩容到maxSize，空闲超过keepAlive的线程被回收
+     */
+    @Test
+    public void testElasticPoolGrowAndReap() throws Exception {
+        final List<String> resizes = Collections.synchronizedList(new ArrayList<String>());
+        ElasticPoolSize poolSize = new ElasticPoolSize(1, 4);
+        poolSize.setGrowWait(20, TimeUnit.MILLISECONDS);
+        poolSize.setKeepAlive(300, TimeUnit.MILLISECONDS);
+        poolSize.setResizeListener(new ElasticPoolSize.IResizeListener() {
+            @Override
+            public void onResize(int oldSize, int newSize, ElasticPoolSize.Reason reason) {
+                resizes.add(reason.name());
+            }
+        });
+        final CountDownLatch finished = new CountDownLatch(1);
+        TaskQueue taskQueue = new TaskQueue(new TaskQueue.IQueueFinishedCallback() {
+            @Override
+            public void onFinished(Map<String, Object> result) {
+                finished.countDown();
+            }
+        });
+        taskQueue.setElasticPoolSize(poolSize);
+        taskQueue.retainStream();
+        CountDownLatch gate = new CountDownLatch(1);
+        for (int i=0; i<6; i++) {
+            taskQueue.add("task" + i, gateTask(gate));
+        }
+        taskQueue.start();
+        assertEquals(1, taskQueue.getCurrentConcurrencyLimit());
+
+        // 执行中的任务不结束，由定时检查发现排队过久并扩容
+        long deadline = System.currentTimeMillis() + 5000;
+        while (taskQueue.getPoolSize() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, taskQueue.getCurrentConcurrencyLimit());
+        assertEquals(4, taskQueue.getPoolSize());
+        assertEquals(Arrays.asList("GROW", "GROW", "GROW"), new ArrayList<>(resizes));
+
+        gate.countDown();
+        deadline = System.currentTimeMillis() + 5000;
+        while (taskQueue.getPoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, taskQueue.getPoolSize());
+        // 线程被回收不影响队列继续运行
+        assertEquals(1, finished.getCount());
+        taskQueue.releaseStream();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 收到内存警告时并发上限立即缩到最小值，空闲线程不等keepAlive立即回收
+     */
+    @Test
+    public void testElasticPoolTrimMemory() throws Exception {
+        ElasticPoolSize poolSize = new ElasticPoolSize(1, 4);
+        poolSize.setGrowWait(10, TimeUnit.MILLISECONDS);
+        poolSize.setKeepAlive(60, TimeUnit.SECONDS);
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setElasticPoolSize(poolSize);
+        taskQueue.retainStream();
+        CountDownLatch gate = new CountDownLatch(1);
+        for (int i=0; i<4; i++) {
+            taskQueue.add("task" + i, gateTask(gate));
+        }
+        taskQueue.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (taskQueue.getPoolSize() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, taskQueue.getPoolSize());
+        gate.countDown();
+        Thread.sleep(200);
+        // 任务已完成，线程空闲但还在keepAlive内
+        assertEquals(4, taskQueue.getPoolSize());
+
+        taskQueue.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(1, taskQueue.getCurrentConcurrencyLimit());
+        deadline = System.currentTimeMillis() + 5000;
+        while (taskQueue.getPoolSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, taskQueue.getPoolSize());
+        taskQueue.releaseStream();
+    }
+
+    /**
+     * 开启堆检查时由定时器检查堆占用（不依赖任务的开始、结束），持续超过阈值时并发上限缩到最小值
+     */
+    @Test
+    public void testElasticPoolHeapCheck() throws Exception {
+        final AtomicReference<ElasticPoolSize.Reason> reason = new AtomicReference<>();
+        ElasticPoolSize poolSize = new ElasticPoolSize(1, 4) {
+            @Override
+            protected double getHeapUsage() {
+                return 0.95;
+            }
+        };
+        poolSize.setGrowWait(10, TimeUnit.MILLISECONDS);
+        poolSize.setHeapThreshold(0.9);
+        poolSize.setResizeListener(new ElasticPoolSize.IResizeListener() {
+            @Override
+            public void onResize(int oldSize, int newSize, ElasticPoolSize.Reason why) {
+                if (why == ElasticPoolSize.Reason.HEAP) reason.set(why);
+            }
+        });
+        TaskQueue taskQueue = new TaskQueue();
+        taskQueue.setElasticPoolSize(poolSize);
+        CountDownLatch gate = new CountDownLatch(1);
+        for (int i=0; i<2; i++) {
+            taskQueue.add("task" + i, gateTask(gate));
+        }
+        taskQueue.start();
+
+        // 任务一直在执行，期间没有派发活动
+        long deadline = System.currentTimeMillis() + 10000;
+        while (reason.get() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(ElasticPoolSize.Reason.HEAP, reason.get());
+        assertEquals(1, taskQueue.getCurrentConcurrencyLimit());
+        gate.countDown();
+    }
+
+    /**
+     * 创建一个等待gate打开后才返回的任务
+     */
+    private Callable<Boolean> gateTask(final CountDownLatch gate) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return gate.await(10, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    /**
+     * 创建一个直接返回指定值的任务
+     */
+    private Callable<Integer> constantTask(final int value) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * 创建一个休眠指定时间的任务，并统计同时执行的峰值数量
+     */
+    private Callable<Integer> sleepTask(final AtomicInteger running, final AtomicInteger peak, final long sleepMillis) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int now = running.incrementAndGet();
+                int max;
+                while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) { }
+                try {
+                    Thread.sleep(sleepMillis);
+                } finally {
+                    running.decrementAndGet();
+                }
+                return now;
+            }
+        };
+    }
+
+
     public String httpGet(String urlString) throws Exception {
 
         HttpURLConnection connection = null;